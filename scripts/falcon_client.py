@@ -0,0 +1,42 @@
+#!/usr/bin/env python3
+'''
+Thin client for a falcon query daemon, started with
+  java -jar dist/falcon.jar -D <port> [options] index_path
+Each request is a falcon command line for a query (-q) or a query batch (-b);
+the index path can be omitted to use the index of the daemon, and options not
+given in the request keep the values the daemon was started with. The output is
+the same of the corresponding falcon command line, without paying JVM startup
+and index loading at each call. Example:
+  falcon_client.py --port 5700 -b -l 300 -o 100 -t 3 < querylist.txt
+'''
+import argparse, socket, sys
+
+END_OF_RESPONSE = '.'
+
+def request(options, queryfiles=[], port=5700, host='localhost') :
+  ''' send a request to the daemon and return its output '''
+  s = socket.create_connection((host, port))
+  try :
+    f = s.makefile('rw', encoding='UTF-8', newline='\n')
+    f.write(' '.join(options) + '\n')
+    if '-b' in options :
+      for q in queryfiles :
+        f.write(q.strip() + '\n')
+      f.write('\n')
+    f.flush()
+    out = []
+    for line in f :
+      if line.rstrip('\n') == END_OF_RESPONSE :
+        break
+      out.append(line)
+    return ''.join(out)
+  finally :
+    s.close()
+
+if __name__ == '__main__':
+  parser = argparse.ArgumentParser(description='send a query or a query batch (read from stdin) to a falcon daemon')
+  parser.add_argument('--host', help='daemon host', default='localhost')
+  parser.add_argument('--port', type=int, help='daemon port', required=True)
+  args, options = parser.parse_known_args()
+  queryfiles = [l for l in sys.stdin if l.strip()] if '-b' in options else []
+  sys.stdout.write(request(options, queryfiles, args.port, args.host))
@@ -0,0 +1,82 @@
+#!/usr/bin/env python3
+'''
+Benchmark of the compact hash index (-x) against the Lucene index on the
+same collection. The collection is indexed once with -H, which writes the
+compact hash index next to the Lucene index; then a falcon daemon serves the
+same query batch alternately with and without -x, so that JVM startup and
+index loading are not measured. The scores of the two paths are checked
+to be the same, up to rounding. The remaining options are given both to
+indexing and to queries. Example:
+  hashindex_benchmark.py --collection chroma/ --queries querylist.txt --index /tmp/hidx -l 60 -o 50
+'''
+import argparse, os, shlex, shutil, socket, subprocess, sys, time, falcon_client
+
+def wait_for_daemon(port, timeout=120) :
+  ''' wait until the daemon accepts connections '''
+  start = time.time()
+  while True :
+    try :
+      socket.create_connection(('localhost', port)).close()
+      return
+    except socket.error :
+      if time.time() - start > timeout :
+        raise
+      time.sleep(0.2)
+
+def rankings(output) :
+  ''' map from (query, song) to score in the output of a query batch '''
+  scores = {}
+  query = None
+  for l in output.splitlines() :
+    if l.startswith('query:') :
+      query = l.split(None, 1)[1]
+    elif l.startswith('rank') :
+      score, song = l.split(':', 1)[1].split(' - ', 1)
+      scores[(query, song)] = float(score)
+  return scores
+
+def same_rankings(r1, r2, tolerance=1e-5) :
+  ''' the two paths sum the scores in a different order, hence the last digit may differ '''
+  return set(r1) == set(r2) and all(abs(r1[k] - r2[k]) <= tolerance for k in r1)
+
+if __name__ == '__main__':
+  parser = argparse.ArgumentParser(description='compare query times on the Lucene index and on the compact hash index')
+  parser.add_argument('--collection', help='folder of the chroma or audio files to index', required=True)
+  parser.add_argument('--queries', help='file listing the query files, one per line', required=True)
+  parser.add_argument('--index', help='index folder, deleted and re-created', required=True)
+  parser.add_argument('--rounds', type=int, help='number of timed rounds for each path', default=10)
+  parser.add_argument('--port', type=int, help='port of the benchmark daemon', default=5799)
+  parser.add_argument('--falcon', help='command running falcon', default='java -jar dist/falcon.jar')
+  args, options = parser.parse_known_args()
+  falcon = shlex.split(args.falcon)
+  queries = [l for l in open(args.queries) if l.strip()]
+
+  if os.path.exists(args.index) :
+    shutil.rmtree(args.index)
+  subprocess.check_call(falcon + ['-i', args.collection, '-H'] + options + [args.index])
+  size = lambda names : sum(os.path.getsize(os.path.join(args.index, f)) for f in names)
+  hashfiles = ['hashindex.dir', 'hashindex.post']
+  print('size: Lucene files %.1f MB, hash index %.1f MB' % (
+      size([f for f in os.listdir(args.index) if f.startswith('_') or f.startswith('segments')]) / 2.**20, size(hashfiles) / 2.**20))
+
+  daemon = subprocess.Popen(falcon + ['-D', str(args.port)] + options + [args.index])
+  try :
+    wait_for_daemon(args.port)
+    paths = [('Lucene', []), ('hash index', ['-x'])]
+    times = dict((name, []) for name, _ in paths)
+    results = {}
+    # one round of warm-up, not timed
+    for rnd in range(args.rounds + 1) :
+      for name, extra in paths :
+        start = time.time()
+        out = falcon_client.request(['-b'] + options + extra, queries, args.port)
+        if rnd > 0 :
+          times[name].append((time.time() - start) * 1000. / len(queries))
+        results[name] = rankings(out)
+    if not same_rankings(results['Lucene'], results['hash index']) :
+      sys.exit('the rankings of the two paths differ')
+    for name, _ in paths :
+      t = times[name]
+      print('%-10s: avg %.0f ms/query, best %.0f ms/query' % (name, sum(t) / len(t), min(t)))
+  finally :
+    daemon.kill()
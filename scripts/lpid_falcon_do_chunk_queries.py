@@ -11,7 +11,7 @@ Parameters:
 - transpositions
 '''
 import argparse, random, os, functools, shutil
-import chromachunker, evaluation
+import chromachunker, evaluation, falcon_client
 
 if __name__ == '__main__':
     parser = argparse.ArgumentParser(description='divide LP into segments and query each chunk')
@@ -25,6 +25,7 @@ if __name__ == '__main__':
     collgroup2.add_argument('--transpositions', help='number of transpositions', default=None)
     collgroup2.add_argument('--force-transposition', help='force a specific transposition in semitones', default=None)
     parser.add_argument('--subsampling', help='subsampling of chroma files', default=2)
+    parser.add_argument('--daemon-port', type=int, help='send queries to the falcon daemon on this port', default=None)
     args = parser.parse_args()
     # working directory ends with the lp id
     working_directory = 'lpid_tmp_%s' % os.path.basename(args.lp_chroma_file)
@@ -47,6 +48,11 @@ if __name__ == '__main__':
     querying_cmd = 'java -jar dist/falcon.jar -l %d -o %d %s -s %d %s -b < %s' % (
         args.segment_length, args.segment_overlap, transp_arg,
         args.subsampling, args.collection_index, qlistfile_path)
-    os.system(querying_cmd)
+    if args.daemon_port :
+        # drop 'java -jar dist/falcon.jar' and the redirection
+        options = querying_cmd.split()[3:-2]
+        print(falcon_client.request(options, open(qlistfile_path).readlines(), args.daemon_port), end='')
+    else :
+        os.system(querying_cmd)
     shutil.rmtree(working_directory)
 
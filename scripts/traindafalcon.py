@@ -1,5 +1,5 @@
 #!/usr/bin/env python3
-import argparse, random, os, subprocess, evaluation, io, math, copy
+import argparse, random, os, subprocess, evaluation, io, math, copy, falcon_client
 
 ''' Train the FALCON's query pruning strategy. '''
 
@@ -63,6 +63,8 @@ class FalconTrainingAlgo :
     self.chromapath = '../musiclef/classical/data/chroma'
     self.trainingsetfiles_complete = [line.strip() for line in open('trainingsetfiles_coverset_1.txt')]
     self.groundtruth = evaluation.parsegtfile(open('cover_info_set_1.csv'))
+    # if set (--daemon-port), queries are sent to a falcon daemon (java -jar dist/falcon.jar -D port index)
+    self.daemonPort = None
   
   def objectiveFunction(mrr, pruned):
     # return the value of the objective function
@@ -77,9 +79,13 @@ class FalconTrainingAlgo :
     # perform ranking using evaluation script and return the value of the objective function
     if verbose :
       print('#evaluating w/ '+self.getRankingCmdLine(qps,indexpath))
-    p = subprocess.Popen(self.getRankingCmdLine(qps,indexpath).split(' '),
-        stdin=subprocess.PIPE, stdout=subprocess.PIPE)
-    out = p.communicate(bytes('\n'.join(files), 'UTF-8'))[0].decode('UTF-8')
+    if self.daemonPort :
+      # drop 'java -jar dist/falcon.jar'
+      out = falcon_client.request(self.getRankingCmdLine(qps,indexpath).split(' ')[3:], files, self.daemonPort)
+    else :
+      p = subprocess.Popen(self.getRankingCmdLine(qps,indexpath).split(' '),
+          stdin=subprocess.PIPE, stdout=subprocess.PIPE)
+      out = p.communicate(bytes('\n'.join(files), 'UTF-8'))[0].decode('UTF-8')
     #print('queries: %s' % ' '.join([os.path.basename(q) for q in files]))
     res = evaluation.parseres(io.StringIO(out))
     #import pdb; pdb.set_trace()
@@ -129,6 +135,10 @@ class FalconTrainingAlgo :
     
 
 if __name__ == '__main__' :
+  parser = argparse.ArgumentParser(description='train the query pruning strategy')
+  parser.add_argument('--daemon-port', type=int, help='send queries to the falcon daemon on this port', default=None)
+  args = parser.parse_args()
   algo = FalconTrainingAlgo()
+  algo.daemonPort = args.daemon_port
   algo.dotraining()
   
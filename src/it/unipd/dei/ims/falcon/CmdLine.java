@@ -15,17 +15,28 @@ package it.unipd.dei.ims.falcon;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaExtraction;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.transposition.ForcedTranspositionEstimator;
 import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.IndexDirectoryType;
 import it.unipd.dei.ims.falcon.indexing.Indexing;
 import it.unipd.dei.ims.falcon.indexing.IndexingException;
+import it.unipd.dei.ims.falcon.ranking.CostBudgetQueryPruningStrategy;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
 import it.unipd.dei.ims.falcon.ranking.DocScorePair;
+import it.unipd.dei.ims.falcon.ranking.OnlineQuery;
 import it.unipd.dei.ims.falcon.ranking.QueryMethods;
 import it.unipd.dei.ims.falcon.ranking.QueryParsingException;
 import it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy;
 import it.unipd.dei.ims.falcon.ranking.QueryResults;
 import it.unipd.dei.ims.falcon.ranking.StaticQueryPruningStrategy;
+import it.unipd.dei.ims.falcon.server.ShardCoordinator;
+import it.unipd.dei.ims.falcon.server.ShardServer;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,7 +44,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
@@ -52,24 +71,37 @@ import org.apache.commons.cli.PosixParser;
  */
 public class CmdLine {
 
-	private static void doQuery(CommandLine cmd, String queryfilepath, int hashes_per_segment,
+	/** line terminating each response of a query daemon */
+	public static final String END_OF_RESPONSE = ".";
+
+	private static void doQuery(File index, String queryfilepath, int hashes_per_segment,
 					int overlap_per_segment, int nranks, int subsampling, TranspositionEstimator tpe,
-					int ntransp, double minkurtosis, QueryPruningStrategy qps, boolean verbose) {
+					int ntransp, double minkurtosis, QueryPruningStrategy qps, ShardCoordinator coordinator, boolean verbose, PrintStream out) {
 		// TODO if verbose, print out the number of skipped hashes
 		try {
-			QueryResults qres = QueryMethods.query(new FileInputStream(queryfilepath),
-							new File(cmd.getArgs()[0]), hashes_per_segment, overlap_per_segment, nranks,
-							subsampling, tpe, ntransp, minkurtosis, qps);
+			QueryResults qres;
+			File queryfile = new File(queryfilepath);
+			if (coordinator != null && (ChromaMatrixUtils.isAudioFile(queryfile) || ChromaMatrixUtils.isBinaryChromaFile(queryfile))) {
+				// shard servers receive the chroma matrix in text format, subsampled at the servers
+				ByteArrayOutputStream chroma = new ByteArrayOutputStream();
+				ChromaMatrixUtils.writeChromaMatrix(ChromaMatrixUtils.readChromaFeatures(queryfile, 1), chroma);
+				qres = coordinator.query(new ByteArrayInputStream(chroma.toByteArray()));
+			} else if (coordinator != null)
+				qres = coordinator.query(new FileInputStream(queryfilepath));
+			else
+				qres = QueryMethods.query(queryfile,
+								index, hashes_per_segment, overlap_per_segment, nranks,
+								subsampling, tpe, ntransp, minkurtosis, qps);
 			Map<String, Double> res = qres.getResults();
 			int r = 1;
-			System.out.println("query: " + queryfilepath);
+			out.println("query: " + queryfilepath);
 			for (DocScorePair p : DocScorePair.docscore2scoredoc(res)) {
-				System.out.println(String.format("rank %5d: %10.6f - %s", r++, p.getScore(), p.getDoc()));
+				out.println(String.format("rank %5d: %10.6f - %s", r++, p.getScore(), p.getDoc()));
 				if (r == 1001)
 					break;
 			}
 			if (verbose) {
-				System.out.println(String.format("pruned|total %d %d", qres.getPrunedHashes(), qres.getTotalConsideredHashes()));
+				out.println(String.format("pruned|total %d %d", qres.getPrunedHashes(), qres.getTotalConsideredHashes()));
 			}
 		} catch (IOException ex) {
 			Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
@@ -77,6 +109,63 @@ public class CmdLine {
 			Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
 		} catch (InterruptedException ex) {
 			Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+		} catch (RuntimeException ex) {
+			// e.g. a malformed chroma matrix; the next queries of a batch are performed anyway
+			Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, "invalid query " + queryfilepath, ex);
+		}
+	}
+
+	/**
+	 * Performs an online query on an audio stream, printing the best songs
+	 * over the last segments as each segment is evaluated, see {@link OnlineQuery}.
+	 *
+	 * @param source       audio file, or "-" for an audio stream (e.g. WAV or AU) on the standard input
+	 * @param keyHalfLife  half-life of the running key profile, in seconds
+	 * @param window       number of the last segments in the score of a song
+	 */
+	private static void doOnlineQuery(File index, String source, int hashes_per_segment, int overlap_per_segment,
+					int nranks, int subsampling, TranspositionEstimator tpe, int ntransp, double minkurtosis,
+					QueryPruningStrategy qps, double keyHalfLife, int window, final int nresults, final boolean verbose, final PrintStream out) {
+		AudioReader reader = null;
+		OnlineQuery query = null;
+		try {
+			Indexing.checkAnalysisPrecision(index);
+			reader = source.equals("-") ? ChromaMatrixUtils.openAudioStream(System.in) : ChromaMatrixUtils.openAudio(new File(source));
+			double vectorsPerSecond = reader.getSampleRate() / ChromaMatrixUtils.getAudioHopSize(reader.getSampleRate()) / subsampling;
+			query = new OnlineQuery(index, hashes_per_segment, overlap_per_segment, nranks, tpe, ntransp, minkurtosis, qps,
+							keyHalfLife * vectorsPerSecond, window, new OnlineQuery.Listener() {
+
+				public void segmentEvaluated(int segmentNumber, Map<String, Double> results, long latency) {
+					out.println("segment: " + segmentNumber);
+					int r = 1;
+					for (DocScorePair p : DocScorePair.docscore2scoredoc(results)) {
+						out.println(String.format("rank %5d: %10.6f - %s", r++, p.getScore(), p.getDoc()));
+						if (r > nresults)
+							break;
+					}
+					if (verbose)
+						out.println(String.format("latency %d ms", latency));
+					out.flush();
+				}
+			});
+			ChromaMatrixUtils.extractChromaFeatures(reader, subsampling, query);
+		} catch (IOException ex) {
+			Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+		} catch (QueryParsingException ex) {
+			Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+		} finally {
+			try {
+				if (query != null)
+					query.close();
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+			try {
+				if (reader != null)
+					reader.close();
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
 		}
 	}
 
@@ -89,7 +178,128 @@ public class CmdLine {
 		return ia;
 	}
 
+	/**
+	 * Serves the requests of a query daemon, see {@link #run}: each request
+	 * is a line with the options of a query (-q) or a query batch (-b); for
+	 * a batch, the query files follow, one per line, up to an empty line.
+	 * The index path can be omitted, in which case the index of the daemon is
+	 * used; options which are not in the request keep the values the daemon
+	 * was started with. The response is the output of the same command line,
+	 * followed by a line containing only {@link #END_OF_RESPONSE}, also when
+	 * the request is invalid.
+	 */
+	private static void serveDaemonRequests(BufferedReader in, PrintStream out, File index, Option[] daemonOptions) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.trim().isEmpty())
+				continue;
+			String[] args = line.trim().split("\\s+");
+			boolean valid;
+			// options are global, hence requests are served one at a time
+			synchronized (CmdLine.class) {
+				try {
+					valid = run(args, in, out, out, index, daemonOptions);
+				} catch (RuntimeException ex) {
+					// e.g. an invalid option value
+					out.println("ERROR - " + ex);
+					valid = false;
+				}
+			}
+			// the query files of an invalid batch request have not been read
+			if (!valid && Arrays.asList(args).contains("-b"))
+				while ((line = in.readLine()) != null && !line.trim().isEmpty())
+					;
+			out.println(END_OF_RESPONSE);
+			out.flush();
+		}
+	}
+
+	/**
+	 * starts a query daemon on the loopback interface, or on stdin/stdout if port is "-"
+	 *
+	 * @param options  options the daemon was started with, the defaults of the requests
+	 */
+	private static void startDaemon(String port, final File index, final Option[] options) throws IOException {
+		if (port.equals("-")) {
+			serveDaemonRequests(new BufferedReader(new InputStreamReader(System.in)), System.out, index, options);
+			return;
+		}
+		ServerSocket server = new ServerSocket(Integer.parseInt(port), 50, InetAddress.getByName(null));
+		while (true) {
+			final Socket socket = server.accept();
+			new Thread(new Runnable() {
+
+				public void run() {
+					try {
+						serveDaemonRequests(new BufferedReader(new InputStreamReader(socket.getInputStream())),
+										new PrintStream(new BufferedOutputStream(socket.getOutputStream())), index, options);
+					} catch (IOException ex) {
+						Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException ex) {
+							Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+						}
+					}
+				}
+			}).start();
+		}
+	}
+
 	public static void main(String[] args) {
+		if (!run(args, new BufferedReader(new InputStreamReader(System.in)), System.out, System.err, null, null))
+			System.exit(1);
+	}
+
+	// options which are given together: the ones of a request replace all the
+	// ones of the daemon in the same group
+	private static final String[][] DAEMON_OPTION_GROUPS = {{"t", "T", "f"}, {"p", "P", "c"}};
+
+	/**
+	 * @return the arguments of a daemon request, preceded by the options of
+	 *         the daemon which the request does not give
+	 */
+	private static String[] withDaemonOptions(String[] args, CommandLine request, Option[] daemonOptions) {
+		List<String> merged = new ArrayList<String>();
+		for (Option o : daemonOptions) {
+			boolean given = request.hasOption(o.getOpt());
+			for (String[] group : DAEMON_OPTION_GROUPS)
+				if (Arrays.asList(group).contains(o.getOpt()))
+					for (String opt : group)
+						given |= request.hasOption(opt);
+			if (!given)
+				// the value is attached to the option, since it can start with '-'
+				merged.add("-" + o.getOpt() + (o.hasArg() ? o.getValue() : ""));
+		}
+		merged.addAll(Arrays.asList(args));
+		return merged.toArray(new String[merged.size()]);
+	}
+
+	/** @return the options of the daemon command line, except the action and the remote shards */
+	private static Option[] getDaemonOptions(CommandLine cmd, OptionGroup actionGroup) {
+		List<Option> daemonOptions = new ArrayList<Option>();
+		for (Option o : cmd.getOptions())
+			if (!actionGroup.getOptions().contains(o) && !o.getOpt().equals("r"))
+				daemonOptions.add(o);
+		return daemonOptions.toArray(new Option[daemonOptions.size()]);
+	}
+
+	/**
+	 * Runs a command line.
+	 *
+	 * @param args          command line arguments
+	 * @param in            reader for the query batch
+	 * @param out           stream for the output
+	 * @param err           stream for parsing errors
+	 * @param daemonIndex   index of the daemon serving the command line; when
+	 *                      not null, only queries are accepted, and the index
+	 *                      path can be omitted
+	 * @param daemonOptions options the daemon was started with, used for the
+	 *                      options which are not given; null if not a daemon
+	 * @return false if the command line is invalid
+	 */
+	private static boolean run(String[] args, BufferedReader in, PrintStream out, PrintStream err, File daemonIndex, Option[] daemonOptions) {
 
 		// last argument is always index path
 		Options options = new Options();
@@ -98,6 +308,10 @@ public class CmdLine {
 		actionGroup.addOption(new Option("i", true, "perform indexing")); // if dir, all files, else only one file
 		actionGroup.addOption(new Option("q", true, "perform a single query"));
 		actionGroup.addOption(new Option("b", false, "perform a query batch (read from stdin)"));
+		actionGroup.addOption(new Option("D", "daemon", true, "run as a query daemon on the given local port (\"-\" for stdin/stdout), keeping the index open"));
+		actionGroup.addOption(new Option("E", "extract", true, "extract the chroma features of the given file, or of all the files in the given folder, into binary chroma files (" + ChromaMatrixUtils.BINARY_EXTENSION + ") in the output folder given in place of the index path"));
+		actionGroup.addOption(new Option("O", "online", true, "perform an online query on an audio file, or on an audio stream (e.g. WAV or AU) on stdin if \"-\", printing the best songs as each segment is evaluated"));
+		actionGroup.addOption(new Option("Z", "serve", true, "serve queries on the index over a local socket on the given port"));
 		actionGroup.setRequired(true);
 		options.addOptionGroup(actionGroup);
 
@@ -113,6 +327,30 @@ public class CmdLine {
 		options.addOption(new Option("f", "force-transp", true, "force transposition by an amount of semitones"));
 		options.addOption(new Option("p", "pruning", false, "enable query pruning; if -P is unspecified, use default strategy"));
 		options.addOption(new Option("P", "pruning-custom", true, "custom query pruning strategy"));
+		options.addOption(new Option("c", "pruning-budget", true, "prune hashes so that each segment query reads at most c times as many postings as there are segments in the index"));
+		options.addOption(new Option("d", "directory", true, "Lucene directory implementation: SIMPLE (default), NIO, MMAP, or RAM (index loaded in memory when read)"));
+		options.addOption(new Option("n", "shards", true, "when creating an index, partition the songs among n shards, searched in parallel"));
+		options.addOption(new Option("S", "stop-hashes", true, "when indexing, write the list of hashes occurring in more than the given fraction of segments; they are removed from queries"));
+		options.addOption(new Option("X", "skip-stop-postings", false, "when indexing with -S, do not index the stop hashes"));
+		options.addOption(new Option("I", "impact-postings", false, "when indexing, also write impact-ordered postings"));
+		options.addOption(new Option("M", "block-max", false, "when indexing, also write block-max metadata"));
+		options.addOption(new Option("m", "block-max-skipping", false, "skip blocks of postings that cannot change the results (index built with -M)"));
+		options.addOption(new Option("H", "hash-index", false, "when indexing, also write a compact copy of the Lucene index for -x"));
+		options.addOption(new Option("x", "use-hash-index", false, "evaluate queries on the compact copy of the index in place of Lucene (index built with -H)"));
+		options.addOption(new Option("w", "sliding-window", false, "evaluate consecutive query segments incrementally, reading only the hashes entering and leaving the window"));
+		options.addOption(new Option("a", "audio-frames", true, "analysis frames of audio files (WAV, AIFF, AU), indexed and queried directly: window length in ms and hopsize ratio, comma-separated (default 186,2)"));
+		options.addOption(new Option("A", "audio-sample-rate", true, "min sample rate of audio files, which are downsampled by the largest integer factor keeping at least this rate (default: no downsampling)"));
+		options.addOption(new Option("j", "extraction-threads", true, "number of threads extracting the hashes of the songs when indexing, or the chroma features of the files with -E (default: number of processors)"));
+		options.addOption(new Option("F", "single-precision", false, "analyze audio files in single precision (float FFT), using less memory; about 0.1% of the hashes differ from double precision with -Q 4, none is expected with -Q 3 or less; the precision is recorded in an index built from audio files, and audio queries or updates with another precision are rejected"));
+		options.addOption(new Option("J", "audio-threads", true, "number of threads analyzing chunks of each audio file in parallel (default 1)"));
+		options.addOption(new Option("L", "key-half-life", true, "with -O, half-life in seconds of the running key profile used to estimate transpositions (default 60)"));
+		options.addOption(new Option("W", "online-window", true, "with -O, number of the last segments in the score of a song (default 4)"));
+		options.addOption(new Option("r", "remote-shards", true, "query the shard servers at the given comma-separated host:port addresses; the index path is not used"));
+		options.addOption(new Option("C", "result-cache", true, "cache the results of repeated queries, up to the given total number of song scores"));
+		options.addOption(new Option("G", "segment-cache", true, "cache the evaluation of query segments shared by transpositions and queries, up to the given total number of song scores"));
+		options.addOption(new Option("g", "posting-cache", true, "cache the decoded posting lists of the most frequently queried hashes, up to the given number of megabytes"));
+		options.addOption(new Option("R", "read-ahead", true, "number of postings decoded at once when scoring"));
+		options.addOption(new Option("e", "early-termination", true, "read at most n highest-impact postings per hash (index built with -I)"));
 
 		// parse
 		HelpFormatter formatter = new HelpFormatter();
@@ -120,14 +358,24 @@ public class CmdLine {
 		CommandLine cmd = null;
 		try {
 			cmd = parser.parse(options, args);
-			if (cmd.getArgs().length != 1)
+			if (daemonOptions != null)
+				cmd = parser.parse(options, withDaemonOptions(args, cmd, daemonOptions));
+			if (cmd.getArgs().length != 1 && !cmd.hasOption("r") && daemonIndex == null)
 				throw new ParseException("no index path was specified");
+			if (daemonIndex != null && !cmd.hasOption("q") && !cmd.hasOption("b"))
+				throw new ParseException("only queries are accepted by the daemon");
+			if (cmd.hasOption("p") && cmd.hasOption("c"))
+				throw new ParseException("query pruning strategies -p and -c cannot be used together");
 		} catch (ParseException ex) {
-			System.err.println("ERROR - parsing command line:");
-			System.err.println(ex.getMessage());
-			formatter.printHelp("falcon -{i,q,b} [options] index_path", options);
-			return;
+			err.println("ERROR - parsing command line:");
+			err.println(ex.getMessage());
+			PrintWriter pw = new PrintWriter(out);
+			formatter.printHelp(pw, formatter.getWidth(), "falcon -{i,q,b,D,Z} [options] index_path", null,
+							options, formatter.getLeftPadding(), formatter.getDescPadding(), null);
+			pw.flush();
+			return false;
 		}
+		File index = cmd.getArgs().length > 0 ? new File(cmd.getArgs()[0]) : daemonIndex;
 
 		// default values
 		final float[] DEFAULT_TRANSPOSITION_ESTIMATOR_STRATEGY =
@@ -153,11 +401,12 @@ public class CmdLine {
 					tokens.addLast(new Double(cmd.getOptionValue("T").substring(m.start(), m.end())));
 				float[] strategy = new float[tokens.size()];
 				if (strategy.length != 12) {
-					System.err.println("invalid transposition estimator strategy");
-					System.exit(1);
+					err.println("ERROR - invalid transposition estimator strategy");
+					return false;
 				}
 				for (int i = 0; i < strategy.length; i++)
 					strategy[i] = new Float(tokens.pollFirst());
+				tpe = new TranspositionEstimator(strategy);
 			} else {
 				tpe = new TranspositionEstimator(DEFAULT_TRANSPOSITION_ESTIMATOR_STRATEGY);
 			}
@@ -174,11 +423,46 @@ public class CmdLine {
 				qpe = new StaticQueryPruningStrategy(DEFAULT_QUERY_PRUNING_STRATEGY);
 			}
 		}
+		if (cmd.hasOption("c")) {
+			qpe = new CostBudgetQueryPruningStrategy(Double.parseDouble(cmd.getOptionValue("c")));
+		}
+
+		// all the settings are set, since a daemon runs many command lines
+		Indexing.setShards(Integer.parseInt(cmd.getOptionValue("n", "0")));
+		Indexing.setDirectoryType(IndexDirectoryType.valueOf(cmd.getOptionValue("d", "SIMPLE").toUpperCase()));
+		Indexing.setStopHashes(Double.parseDouble(cmd.getOptionValue("S", "0")), cmd.hasOption("X"));
+		Indexing.setImpactOrderedPostings(cmd.hasOption("I"));
+		Indexing.setBlockMaxPostings(cmd.hasOption("M"));
+		Indexing.setHashIndex(cmd.hasOption("H"));
+		Indexing.setExtractionThreads(Integer.parseInt(cmd.getOptionValue("j", "" + Runtime.getRuntime().availableProcessors())));
+		String[] audioFrames = cmd.getOptionValue("a", ChromaMatrixUtils.DEFAULT_AUDIO_WINDOW_MS + "," + ChromaMatrixUtils.DEFAULT_AUDIO_HOPSIZE_RATIO).split(",");
+		ChromaMatrixUtils.setAudioFrames(Double.parseDouble(audioFrames[0]), Integer.parseInt(audioFrames[1]));
+		ChromaMatrixUtils.setAudioSampleRate(Float.parseFloat(cmd.getOptionValue("A", "0")));
+		ChromaMatrixUtils.setAudioThreads(Integer.parseInt(cmd.getOptionValue("J", "1")));
+		ChromaExtraction.setSinglePrecision(cmd.hasOption("F"));
+		QueryMethods.setBlockMaxEvaluation(cmd.hasOption("m"));
+		QueryMethods.setHashIndexEvaluation(cmd.hasOption("x"));
+		QueryMethods.setSlidingWindowEvaluation(cmd.hasOption("w"));
+		QueryMethods.setPostingBufferSize(Integer.parseInt(cmd.getOptionValue("R", Integer.toString(QueryMethods.DEFAULT_POSTING_BUFFER_SIZE))));
+		QueryMethods.setImpactOrderedEvaluation(Integer.parseInt(cmd.getOptionValue("e", "0")));
+		QueryMethods.setResultCacheSize(Integer.parseInt(cmd.getOptionValue("C", "0")));
+		QueryMethods.setSegmentCacheSize(Integer.parseInt(cmd.getOptionValue("G", "0")));
+		QueryMethods.setPostingCacheSize(Long.parseLong(cmd.getOptionValue("g", "0")) << 20);
+
+		ShardCoordinator coordinator = null;
+		if (cmd.hasOption("r")) {
+			try {
+				coordinator = new ShardCoordinator(ShardCoordinator.parseAddresses(cmd.getOptionValue("r")));
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+				return false;
+			}
+		}
 
 		// action
 		if (cmd.hasOption("i")) {
 			try {
-				Indexing.index(new File(cmd.getOptionValue("i")), new File(cmd.getArgs()[0]),
+				Indexing.index(new File(cmd.getOptionValue("i")), index,
 								hashes_per_segment, overlap_per_segment, subsampling, nranks, minkurtosis, tpe, verbose);
 			} catch (IndexingException ex) {
 				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
@@ -186,23 +470,66 @@ public class CmdLine {
 				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
 			}
 		}
+		if (cmd.hasOption("E")) {
+			File input = new File(cmd.getOptionValue("E"));
+			try {
+				ChromaMatrixUtils.extractChromaFiles(input.isDirectory() ? input.listFiles() : new File[]{input}, index,
+								Integer.parseInt(cmd.getOptionValue("j", "" + Runtime.getRuntime().availableProcessors())), verbose);
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+		if (cmd.hasOption("O")) {
+			if (coordinator != null)
+				err.println("online queries are not supported on remote shards");
+			else
+				doOnlineQuery(index, cmd.getOptionValue("O"), hashes_per_segment, overlap_per_segment, nranks, subsampling, tpe, ntransp, minkurtosis, qpe,
+								Double.parseDouble(cmd.getOptionValue("L", "60")), Integer.parseInt(cmd.getOptionValue("W", "4")), 10, verbose, out);
+		}
 		if (cmd.hasOption("q")) {
 			String queryfilepath = cmd.getOptionValue("q");
-			doQuery(cmd, queryfilepath, hashes_per_segment, overlap_per_segment, nranks, subsampling, tpe, ntransp, minkurtosis, qpe, verbose);
+			doQuery(index, queryfilepath, hashes_per_segment, overlap_per_segment, nranks, subsampling, tpe, ntransp, minkurtosis, qpe, coordinator, verbose, out);
 		}
 		if (cmd.hasOption("b")) {
 			try {
 				long starttime = System.currentTimeMillis();
-				BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 				String line = null;
 				while ((line = in.readLine()) != null && !line.trim().isEmpty())
-					doQuery(cmd, line, hashes_per_segment, overlap_per_segment, nranks, subsampling, tpe, ntransp, minkurtosis, qpe, verbose);
-				in.close();
+					doQuery(index, line, hashes_per_segment, overlap_per_segment, nranks, subsampling, tpe, ntransp, minkurtosis, qpe, coordinator, verbose, out);
 				long endtime = System.currentTimeMillis();
-				System.out.println(String.format("total time: %ds", (endtime - starttime) / 1000));
+				out.println(String.format("total time: %ds", (endtime - starttime) / 1000));
+				if (verbose && cmd.hasOption("C"))
+					out.println(String.format("result cache hits|misses %d %d", QueryMethods.getResultCacheHits(), QueryMethods.getResultCacheMisses()));
+				if (verbose && cmd.hasOption("G"))
+					out.println(String.format("segment cache hits|misses %d %d", QueryMethods.getSegmentCacheHits(), QueryMethods.getSegmentCacheMisses()));
+				if (verbose && cmd.hasOption("g"))
+					out.println(String.format("posting cache hits|misses %d %d", QueryMethods.getPostingCacheHits(), QueryMethods.getPostingCacheMisses()));
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+		if (cmd.hasOption("Z")) {
+			try {
+				new ShardServer(index, hashes_per_segment, overlap_per_segment, nranks,
+								subsampling, tpe, ntransp, minkurtosis, qpe).serve(Integer.parseInt(cmd.getOptionValue("Z")));
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+		if (cmd.hasOption("D")) {
+			try {
+				startDaemon(cmd.getOptionValue("D"), index, getDaemonOptions(cmd, actionGroup));
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+		if (coordinator != null) {
+			try {
+				coordinator.close();
 			} catch (IOException ex) {
 				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
 			}
 		}
+		return true;
 	}
 }
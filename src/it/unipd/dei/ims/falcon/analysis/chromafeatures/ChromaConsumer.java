@@ -0,0 +1,34 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+/**
+ * Receives the chroma vectors extracted from an audio stream, one frame at
+ * a time, see {@link ChromaExtraction#extractChromaFeatures}.
+ *
+ */
+public interface ChromaConsumer {
+
+	/**
+	 * @param chroma values of the 12 pitch classes of a frame, not normalized;
+	 *               the array is reused for the next frames, hence it has to
+	 *               be copied in order to be retained
+	 */
+	public void consume(float[] chroma) throws IOException;
+}
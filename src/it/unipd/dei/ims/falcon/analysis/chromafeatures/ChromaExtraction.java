@@ -20,15 +20,46 @@ package it.unipd.dei.ims.falcon.analysis.chromafeatures;
 import java.io.IOException;
 
 import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_1D;
 import it.unipd.dei.ims.falcon.audio.AudioReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class ChromaExtraction {
 
 	private final static double A0 = 440. / 16.;
+	/** number of frames of a chunk analyzed by a single task, in the parallel extraction */
+	private final static int CHUNK_FRAMES = 64;
+	private static volatile boolean singlePrecision = false;
+
+	/**
+	 * Selects the precision of the analysis: in single precision, the audio
+	 * buffers, the window and the FFT (FloatFFT_1D) are float, halving the
+	 * memory of the buffers (e.g. of the chunks queued by the parallel
+	 * extraction). The chroma differ from the double precision ones by
+	 * rounding errors only, which rarely change the order of close values,
+	 * hence the rank hashes: on synthetic triads (see ChromaExtractionTest)
+	 * no hash differs up to 3 ranks, about 0.1% of the hashes differ with 4
+	 * ranks and 0.4% with 6 ranks, up to 1% on some short files. It is not
+	 * faster: the float FFT measured up to 10% slower than the double one.
+	 * @param enabled true for single precision, false (default) for double precision
+	 */
+	public static void setSinglePrecision(boolean enabled) {
+		singlePrecision = enabled;
+	}
+
+	/** @return true if the analysis is in single precision, see {@link #setSinglePrecision(boolean)} */
+	public static boolean isSinglePrecision() {
+		return singlePrecision;
+	}
 
 	private static double[] getHammingWindow(int N) {
 		double[] win = new double[N];
@@ -49,6 +80,16 @@ public class ChromaExtraction {
 		return n;
 	}
 
+	/**
+	 * @param sampleRate sample rate of the audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @return number of samples between consecutive frames
+	 */
+	public static int getHopSize(float sampleRate, double winLenInMs, int hopsizeRatio) {
+		return closestPowerOfTwo((int) (sampleRate * (winLenInMs / 1000.))) / hopsizeRatio;
+	}
+
 	private static int closestPitch(double f) {
 		double octs = Math.log10(f / A0) / Math.log10(2);
 		octs -= Math.floor(octs);
@@ -57,28 +98,108 @@ public class ChromaExtraction {
 	}
 
 	/**
-	 * shift the audio buffer left, and read;
+	 * read n samples into the circular audio buffer, overwriting the oldest
+	 * ones, which start at the given position
 	 * @return true if all n samples were read; false otherise
 	 */
-	private static boolean shiftAndRead(double[] buffer, AudioReader reader, int n) throws IOException {
-		double[] tmp = reader.readDoubleSamples(n);
-		if (tmp.length < n)
-			return false;
-		for (int i = 0; i < buffer.length - n; i++)
-			buffer[i] = buffer[i + n];
-		for (int i = 0; i < n; i++)
-			buffer[buffer.length - n + i] = tmp[i];
-		return true;
-	}
-
-	private static double[] peakPick(double[] spectrum) {
-		double[] pp = new double[spectrum.length];
-		for (int i = 1; i < spectrum.length - 1; i++)
-			if (spectrum[i] > spectrum[i - 1] && spectrum[i] > spectrum[i + 1])
-				pp[i] = spectrum[i];
-			else
-				pp[i] = 0;
-		return pp;
+	private static boolean readCircular(double[] buffer, int start, AudioReader reader, int n) throws IOException {
+		int first = Math.min(n, buffer.length - start);
+		int read = reader.readDoubleSamples(buffer, start, first);
+		if (read == first && n > first)
+			read += reader.readDoubleSamples(buffer, 0, n - first);
+		return read == n;
+	}
+
+	/** as {@link #readCircular(double[], int, AudioReader, int)}, in single precision */
+	private static boolean readCircular(float[] buffer, int start, AudioReader reader, int n) throws IOException {
+		int first = Math.min(n, buffer.length - start);
+		int read = reader.readFloatSamples(buffer, start, first);
+		if (read == first && n > first)
+			read += reader.readFloatSamples(buffer, 0, n - first);
+		return read == n;
+	}
+
+	/**
+	 * Precomputed analysis of a window length at a sample rate: the Hamming
+	 * window, and the pitch class of each bin below 10 kHz, which is the
+	 * band folded into chroma.
+	 */
+	private static final class FoldingPlan {
+
+		private final double[] hammingwin;
+		private final float[] hammingwinFloat;
+		// pitch class of each bin in the band
+		private final int[] closestPitches;
+
+		private FoldingPlan(float sampleRate, int winLen) {
+			hammingwin = getHammingWindow(winLen);
+			hammingwinFloat = new float[winLen];
+			for (int i = 0; i < winLen; i++)
+				hammingwinFloat[i] = (float) hammingwin[i];
+			// bins above 10 kHz are not considered
+			float maxBin = Math.min(winLen / 2, 10000 / sampleRate * winLen);
+			closestPitches = new int[(int) Math.ceil(maxBin)];
+			for (int i = 0; i < closestPitches.length; i++) {
+				double f = i * sampleRate / winLen;  // frequency of the i-th bin
+				closestPitches[i] = closestPitch(f);
+			}
+		}
+	}
+	// plans by sample rate and window length
+	private static final Map<Long, FoldingPlan> plans = new HashMap<Long, FoldingPlan>();
+
+	private static synchronized FoldingPlan getFoldingPlan(float sampleRate, int winLen) {
+		Long key = ((long) Float.floatToIntBits(sampleRate) << 32) | winLen;
+		FoldingPlan plan = plans.get(key);
+		if (plan == null) {
+			plan = new FoldingPlan(sampleRate, winLen);
+			plans.put(key, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * fold the peaks of the magnitude spectrum of a frame into chroma, in a
+	 * single pass over the bins of the band: a bin is a peak if its magnitude
+	 * is greater than the ones of both neighbours, bins outside the band
+	 * having zero magnitude
+	 * @param fft output of the real forward FFT of the frame
+	 * @param chroma values of the pitch classes, overwritten
+	 */
+	private static void foldPeaks(double[] fft, int[] closestPitches, float[] chroma) {
+		for (int i = 0; i < chroma.length; i++)
+			chroma[i] = 0;
+		// the last bin of the spectrum is never a peak
+		int nbins = Math.min(closestPitches.length, fft.length / 2 - 1);
+		if (nbins < 2)
+			return;
+		double prev = Math.sqrt(fft[0] * fft[0] + fft[1] * fft[1]);
+		double cur = Math.sqrt(fft[2] * fft[2] + fft[3] * fft[3]);
+		for (int i = 1; i < nbins; i++) {
+			double next = i + 1 < closestPitches.length ? Math.sqrt(fft[2 * i + 2] * fft[2 * i + 2] + fft[2 * i + 3] * fft[2 * i + 3]) : 0;
+			if (cur > prev && cur > next)
+				chroma[closestPitches[i]] += cur;
+			prev = cur;
+			cur = next;
+		}
+	}
+
+	/** as {@link #foldPeaks(double[], int[], float[])}, in single precision */
+	private static void foldPeaks(float[] fft, int[] closestPitches, float[] chroma) {
+		for (int i = 0; i < chroma.length; i++)
+			chroma[i] = 0;
+		int nbins = Math.min(closestPitches.length, fft.length / 2 - 1);
+		if (nbins < 2)
+			return;
+		float prev = (float) Math.sqrt(fft[0] * fft[0] + fft[1] * fft[1]);
+		float cur = (float) Math.sqrt(fft[2] * fft[2] + fft[3] * fft[3]);
+		for (int i = 1; i < nbins; i++) {
+			float next = i + 1 < closestPitches.length ? (float) Math.sqrt(fft[2 * i + 2] * fft[2 * i + 2] + fft[2 * i + 3] * fft[2 * i + 3]) : 0;
+			if (cur > prev && cur > next)
+				chroma[closestPitches[i]] += cur;
+			prev = cur;
+			cur = next;
+		}
 	}
 
 	/**
@@ -89,48 +210,288 @@ public class ChromaExtraction {
 	 * @return 
 	 */
 	public static List<ChromaVector> getChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio) throws IOException {
+		return getChromaFeatures(reader, winLenInMs, hopsizeRatio, 1);
+	}
+
+	/**
+	 * return a matrix of chroma features, each chroma is a row; frames with
+	 * no energy (e.g. silence) are skipped
+	 * @param reader audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param subsampling only one every subsampling frames is used
+	 * @return 
+	 */
+	public static List<ChromaVector> getChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio, int subsampling) throws IOException {
+		final List<ChromaVector> chromas = new ArrayList<ChromaVector>();
+		extractChromaFeatures(reader, winLenInMs, hopsizeRatio, subsampling, new ChromaConsumer() {
+
+			public void consume(float[] chroma) {
+				chromas.add(new ChromaVector(chroma));
+			}
+		});
+		return chromas;
+	}
+
+	/**
+	 * return a matrix of chroma features as {@link #getChromaFeatures(AudioReader, double, int, int)}
+	 * does, analyzing chunks of frames in parallel, see
+	 * {@link #extractChromaFeatures(AudioReader, double, int, int, ChromaConsumer, ExecutorService, int)}
+	 * @param pool threads analyzing the chunks
+	 * @param parallelism number of threads of the pool
+	 */
+	public static List<ChromaVector> getChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio, int subsampling,
+					ExecutorService pool, int parallelism) throws IOException {
+		final List<ChromaVector> chromas = new ArrayList<ChromaVector>();
+		extractChromaFeatures(reader, winLenInMs, hopsizeRatio, subsampling, new ChromaConsumer() {
+
+			public void consume(float[] chroma) {
+				chromas.add(new ChromaVector(chroma));
+			}
+		}, pool, parallelism);
+		return chromas;
+	}
+
+	/**
+	 * extract chroma features from an audio stream, pushing the chroma of
+	 * each frame to a consumer; frames with no energy (e.g. silence) are
+	 * skipped. The audio is kept in a circular buffer of one window, and
+	 * all the buffers are reused from one frame to the next, hence memory
+	 * does not depend on the length of the stream. The window and the pitch
+	 * classes of the bins are computed once for each sample rate and window
+	 * length. The precision is set by {@link #setSinglePrecision}.
+	 * @param reader audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param subsampling only one every subsampling frames is used
+	 * @param consumer receives the chroma of each frame
+	 */
+	public static void extractChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio, int subsampling,
+					ChromaConsumer consumer) throws IOException {
+		extractChromaFeatures(reader, winLenInMs, hopsizeRatio, subsampling, false, consumer);
+	}
+
+	/**
+	 * extract chroma features as {@link #extractChromaFeatures(AudioReader, double, int, int, ChromaConsumer)}
+	 * does, optionally pushing the frames with no energy as zero vectors
+	 * @param keepSilentFrames if true, silent frames are not skipped, hence
+	 *                         the i-th chroma pushed is the one of the i-th
+	 *                         frame that is not subsampled away
+	 */
+	public static void extractChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio, int subsampling,
+					boolean keepSilentFrames, ChromaConsumer consumer) throws IOException {
 
 		int winLen = closestPowerOfTwo((int) (reader.getSampleRate() * (winLenInMs / 1000.)));
 		int hopSize = winLen / hopsizeRatio;
 
-		List<float[]> chromas_floats = new LinkedList<float[]>();
-		double[] hammingwin = getHammingWindow(winLen);
-
+		FoldingPlan plan = getFoldingPlan(reader.getSampleRate(), winLen);
+		if (singlePrecision) {
+			extractChromaFeaturesFloat(reader, winLen, hopsizeRatio, subsampling, keepSilentFrames, consumer, plan);
+			return;
+		}
+		double[] hammingwin = plan.hammingwin;
 
+		// circular buffer, the oldest sample is at position start
 		double[] audio = new double[winLen];
-		shiftAndRead(audio, reader, hopSize * (hopsizeRatio - 1));
+		int start = 0;
+		if (readCircular(audio, start, reader, hopSize * (hopsizeRatio - 1)))
+			start = (start + hopSize * (hopsizeRatio - 1)) % winLen;
 
 		DoubleFFT_1D fftizer = new DoubleFFT_1D(winLen);
 
-		int[] closestPitches = new int[winLen / 2];
-		for (int i = 0; i < closestPitches.length; i++) {
-			double f = i / reader.getSampleRate();
-			closestPitches[i] = closestPitch(f);
+		double[] fft = new double[winLen];
+		float[] chroma = new float[12];
+
+		for (int frame = 0; true; frame++) {
+			if (!readCircular(audio, start, reader, hopSize))
+				break;
+			start = (start + hopSize) % winLen;
+			if (frame % subsampling != 0)
+				continue;
+			for (int i = 0; i < winLen - start; i++)           // do windowing
+				fft[i] = audio[start + i] * hammingwin[i];
+			for (int i = winLen - start; i < winLen; i++)
+				fft[i] = audio[start + i - winLen] * hammingwin[i];
+			if (analyzeFrame(fftizer, fft, plan, chroma))
+				consumer.consume(chroma);
+			else if (keepSilentFrames)
+				consumer.consume(new float[12]);
 		}
+	}
+
+	/** as the double precision loop of {@link #extractChromaFeatures(AudioReader, double, int, int, ChromaConsumer)} */
+	private static void extractChromaFeaturesFloat(AudioReader reader, int winLen, int hopsizeRatio, int subsampling,
+					boolean keepSilentFrames, ChromaConsumer consumer, FoldingPlan plan) throws IOException {
+
+		int hopSize = winLen / hopsizeRatio;
+		float[] hammingwin = plan.hammingwinFloat;
+
+		// circular buffer, the oldest sample is at position start
+		float[] audio = new float[winLen];
+		int start = 0;
+		if (readCircular(audio, start, reader, hopSize * (hopsizeRatio - 1)))
+			start = (start + hopSize * (hopsizeRatio - 1)) % winLen;
+
+		FloatFFT_1D fftizer = new FloatFFT_1D(winLen);
 
-		while (true) {
-			if (!shiftAndRead(audio, reader, hopSize))
+		float[] fft = new float[winLen];
+		float[] chroma = new float[12];
+
+		for (int frame = 0; true; frame++) {
+			if (!readCircular(audio, start, reader, hopSize))
 				break;
-			double[] fft = Arrays.copyOf(audio, winLen);       // copy buffer 
-			for (int i = 0; i < winLen; i++)                    // do windowing
-				fft[i] *= hammingwin[i];
-			fftizer.realForward(fft);                          // do fft
-			double[] spectrum = new double[winLen / 2];          // compute abs fft
-			for (int i = 0; i < Math.min(spectrum.length, 10000 / reader.getSampleRate() * winLen); i++)
-				spectrum[i] = Math.sqrt(fft[2 * i] * fft[2 * i] + fft[2 * i + 1] * fft[2 * i + 1]);
-			spectrum = peakPick(spectrum);                     // spectrum peaks
-			float[] chroma = new float[12];
-			for (int i = 0; i < chroma.length; i++)
-				chroma[i] = 0;
-			for (int i = 0; i < closestPitches.length; i++)
-				chroma[closestPitches[i]] += spectrum[i];
-			chromas_floats.add(chroma);
+			start = (start + hopSize) % winLen;
+			if (frame % subsampling != 0)
+				continue;
+			for (int i = 0; i < winLen - start; i++)           // do windowing
+				fft[i] = audio[start + i] * hammingwin[i];
+			for (int i = winLen - start; i < winLen; i++)
+				fft[i] = audio[start + i - winLen] * hammingwin[i];
+			if (analyzeFrame(fftizer, fft, plan, chroma))
+				consumer.consume(chroma);
+			else if (keepSilentFrames)
+				consumer.consume(new float[12]);
 		}
+	}
 
-		List<ChromaVector> chromas = new ArrayList<ChromaVector>(chromas_floats.size());
-		for (float[] cd : chromas_floats)
-			chromas.add(new ChromaVector(cd));
-		
-		return chromas;
+	/**
+	 * compute the chroma of a windowed frame
+	 * @param fft windowed frame, overwritten by its FFT
+	 * @return false if the chroma is a zero vector
+	 */
+	private static boolean analyzeFrame(DoubleFFT_1D fftizer, double[] fft, FoldingPlan plan, float[] chroma) {
+		fftizer.realForward(fft);                          // do fft
+		foldPeaks(fft, plan.closestPitches, chroma);       // spectrum peaks into chroma
+		float sum = 0;
+		for (int i = 0; i < chroma.length; i++)
+			sum += chroma[i];
+		return sum > 0;
+	}
+
+	/** as {@link #analyzeFrame(DoubleFFT_1D, double[], FoldingPlan, float[])}, in single precision */
+	private static boolean analyzeFrame(FloatFFT_1D fftizer, float[] fft, FoldingPlan plan, float[] chroma) {
+		fftizer.realForward(fft);
+		foldPeaks(fft, plan.closestPitches, chroma);
+		float sum = 0;
+		for (int i = 0; i < chroma.length; i++)
+			sum += chroma[i];
+		return sum > 0;
+	}
+
+	/**
+	 * extract chroma features as {@link #extractChromaFeatures(AudioReader, double, int, int, ChromaConsumer)}
+	 * does, analyzing chunks of consecutive frames in parallel. The stream
+	 * is read sequentially into chunks which overlap by one window minus
+	 * one hop; up to twice parallelism chunks are queued to the pool, hence
+	 * memory does not depend on the length of the stream. The chroma are
+	 * pushed to the consumer by the calling thread, in order, and they are
+	 * the same computed by the sequential extraction, in the precision set by
+	 * {@link #setSinglePrecision}.
+	 * @param reader audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param subsampling only one every subsampling frames is used
+	 * @param consumer receives the chroma of each frame
+	 * @param pool threads analyzing the chunks
+	 * @param parallelism number of threads of the pool
+	 */
+	public static void extractChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio, int subsampling,
+					ChromaConsumer consumer, ExecutorService pool, int parallelism) throws IOException {
+		extractChromaFeatures(reader, winLenInMs, hopsizeRatio, subsampling, false, consumer, pool, parallelism);
+	}
+
+	/**
+	 * extract chroma features as {@link #extractChromaFeatures(AudioReader, double, int, int, ChromaConsumer, ExecutorService, int)}
+	 * does, optionally pushing the frames with no energy as zero vectors, see
+	 * {@link #extractChromaFeatures(AudioReader, double, int, int, boolean, ChromaConsumer)}
+	 */
+	public static void extractChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio, int subsampling,
+					boolean keepSilentFrames, ChromaConsumer consumer, ExecutorService pool, int parallelism) throws IOException {
+
+		final int winLen = closestPowerOfTwo((int) (reader.getSampleRate() * (winLenInMs / 1000.)));
+		final int hopSize = winLen / hopsizeRatio;
+		final FoldingPlan plan = getFoldingPlan(reader.getSampleRate(), winLen);
+		final int sub = subsampling;
+		final boolean single = singlePrecision;
+		final boolean keepSilent = keepSilentFrames;
+
+		// frame f is made of the samples from hopSize * (hopsizeRatio + f) - winLen
+		// (zeros if negative) to hopSize * (hopsizeRatio + f), excluded; a chunk
+		// holds the samples of CHUNK_FRAMES consecutive frames
+		int chunkLen = hopSize * (CHUNK_FRAMES - 1) + winLen;
+		int overlap = winLen - hopSize;
+		LinkedList<Future<float[]>> pending = new LinkedList<Future<float[]>>();
+		Object previous = null;
+		float[] chroma = new float[12];
+		try {
+			for (int firstFrame = 0; true; firstFrame += CHUNK_FRAMES) {
+				// samples of the chunk, in the selected precision
+				final double[] chunk = single ? null : new double[chunkLen];
+				final float[] chunkFloat = single ? new float[chunkLen] : null;
+				Object current = single ? chunkFloat : chunk;
+				int filled = overlap;
+				if (previous == null)
+					filled = winLen - hopSize * hopsizeRatio;
+				else
+					System.arraycopy(previous, chunkLen - overlap, current, 0, overlap);
+				filled += single ? reader.readFloatSamples(chunkFloat, filled, chunkLen - filled)
+								: reader.readDoubleSamples(chunk, filled, chunkLen - filled);
+				previous = current;
+				final int nframes = filled < winLen ? 0 : Math.min(CHUNK_FRAMES, (filled - winLen) / hopSize + 1);
+				final int first = firstFrame;
+				if (nframes > 0) {
+					pending.add(pool.submit(new Callable<float[]>() {
+
+						public float[] call() {
+							DoubleFFT_1D fftizer = single ? null : new DoubleFFT_1D(winLen);
+							FloatFFT_1D fftizerFloat = single ? new FloatFFT_1D(winLen) : null;
+							double[] fft = single ? null : new double[winLen];
+							float[] fftFloat = single ? new float[winLen] : null;
+							float[] chroma = new float[12];
+							// chroma of the non-zero frames (or of all the frames, with
+							// keepSilent), one after the other
+							float[] res = new float[12 * nframes];
+							int n = 0;
+							for (int f = 0; f < nframes; f++) {
+								if ((first + f) % sub != 0)
+									continue;
+								boolean nonzero;
+								if (single) {
+									for (int i = 0; i < winLen; i++)  // do windowing
+										fftFloat[i] = chunkFloat[f * hopSize + i] * plan.hammingwinFloat[i];
+									nonzero = analyzeFrame(fftizerFloat, fftFloat, plan, chroma);
+								} else {
+									for (int i = 0; i < winLen; i++)  // do windowing
+										fft[i] = chunk[f * hopSize + i] * plan.hammingwin[i];
+									nonzero = analyzeFrame(fftizer, fft, plan, chroma);
+								}
+								if (nonzero)
+									System.arraycopy(chroma, 0, res, 12 * n, 12);
+								if (nonzero || keepSilent)
+									n++;
+							}
+							return n < nframes ? Arrays.copyOf(res, 12 * n) : res;
+						}
+					}));
+				}
+				// consume the oldest chunks, once the queue is full or the stream has ended
+				while (!pending.isEmpty() && (pending.size() >= 2 * parallelism || nframes < CHUNK_FRAMES)) {
+					float[] res = pending.poll().get();
+					for (int i = 0; i < res.length; i += 12) {
+						System.arraycopy(res, i, chroma, 0, 12);
+						consumer.consume(chroma);
+					}
+				}
+				if (nframes < CHUNK_FRAMES)
+					break;
+			}
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause());
+		} catch (InterruptedException ex) {
+			throw new IOException(ex);
+		} finally {
+			for (Future<float[]> f : pending)
+				f.cancel(true);
+		}
 	}
 }
@@ -16,26 +16,385 @@ package it.unipd.dei.ims.falcon.analysis.chromafeatures;
  * limitations under the License.
  */
 import it.unipd.dei.ims.falcon.analysis.transposition.*;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 
 /**
  * Utility class containing methods for reading/writing Chroma feature matrices.
+ * <p>
+ * Chroma features are read either from a chroma matrix in text format, or
+ * extracted directly from an audio file (see {@link #isAudioFile(File)})
+ * with {@link ChromaExtraction}.
  * 
  */
 public class ChromaMatrixUtils {
 
+	/** extensions of the files whose chroma features are extracted from audio */
+	private static final String[] AUDIO_EXTENSIONS = {".wav", ".wave", ".aif", ".aiff", ".au"};
+	/** extension of the chroma matrices in binary format, see {@link #writeBinaryChromaMatrix} */
+	public static final String BINARY_EXTENSION = ".chroma";
+	/** default length of the analysis window for audio files, in ms */
+	public static final double DEFAULT_AUDIO_WINDOW_MS = 186;
+	/** default hopsize ratio for audio files, see {@link ChromaExtraction#getChromaFeatures} */
+	public static final int DEFAULT_AUDIO_HOPSIZE_RATIO = 2;
+	private static double audioWindowMs = DEFAULT_AUDIO_WINDOW_MS;
+	private static int audioHopsizeRatio = DEFAULT_AUDIO_HOPSIZE_RATIO;
+	private static float audioSampleRate = 0;
+	// threads analyzing the chunks of a single audio file, none if 1
+	private static int audioThreads = 1;
+	private static ExecutorService audioPool = null;
+
+	/**
+	 * Sets the analysis frames of the chroma features extracted from audio files.
+	 *
+	 * @param winLenInMs    window length in ms, rounded to the closest power of two samples
+	 * @param hopsizeRatio  1 = no overlap, 2 = 50% overlap, 3 = 66% overlap ...
+	 */
+	public static void setAudioFrames(double winLenInMs, int hopsizeRatio) {
+		if (winLenInMs <= 0 || hopsizeRatio < 1)
+			throw new IllegalArgumentException("invalid audio frames");
+		audioWindowMs = winLenInMs;
+		audioHopsizeRatio = hopsizeRatio;
+	}
+
+	/**
+	 * Sets the min sample rate of audio files, which are decimated by the
+	 * largest integer factor keeping at least this sample rate, see
+	 * {@link AudioReader#AudioReader(File, float)}; 0 disables decimation.
+	 */
+	public static void setAudioSampleRate(float minSampleRate) {
+		if (minSampleRate < 0)
+			throw new IllegalArgumentException("invalid audio sample rate");
+		audioSampleRate = minSampleRate;
+	}
+
+	/**
+	 * Sets the number of threads analyzing chunks of a single audio file in
+	 * parallel, see {@link ChromaExtraction#extractChromaFeatures(AudioReader, double, int, int, ChromaConsumer, ExecutorService, int)};
+	 * the chroma features are the same as the ones extracted by a single
+	 * thread. The threads are shared by all the files being analyzed.
+	 *
+	 * @param nthreads  number of threads, 1 for no parallelism within a file
+	 */
+	public static synchronized void setAudioThreads(int nthreads) {
+		if (nthreads < 1)
+			throw new IllegalArgumentException("number of threads must be positive");
+		if (nthreads != audioThreads && audioPool != null) {
+			audioPool.shutdown();
+			audioPool = null;
+		}
+		audioThreads = nthreads;
+		if (audioThreads > 1 && audioPool == null)
+			audioPool = Executors.newFixedThreadPool(audioThreads, new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "chroma-extraction");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/** @return true if the chroma features of the file are extracted from audio, based on its extension */
+	public static boolean isAudioFile(File f) {
+		String name = f.getName().toLowerCase();
+		for (String ext : AUDIO_EXTENSIONS)
+			if (name.endsWith(ext))
+				return true;
+		return false;
+	}
+
+	/** @return true if the file is a chroma matrix in binary format, based on its extension */
+	public static boolean isBinaryChromaFile(File f) {
+		return f.getName().endsWith(BINARY_EXTENSION);
+	}
+
+	/**
+	 * Reads the chroma features of a file: an audio file is analyzed
+	 * directly, a file with the {@link #BINARY_EXTENSION} is read as a chroma
+	 * matrix in binary format, any other file is read as a chroma matrix in
+	 * text format. Zero vectors are skipped.
+	 *
+	 * @param subsampling  only one every subsampling vectors is used
+	 */
+	public static ChromaVector[] readChromaFeatures(File f, int subsampling) throws IOException {
+		if (isBinaryChromaFile(f)) {
+			InputStream is = new FileInputStream(f);
+			try {
+				return readBinaryChromaMatrix(is, subsampling);
+			} finally {
+				is.close();
+			}
+		}
+		if (!isAudioFile(f)) {
+			InputStreamReader is = new InputStreamReader(new FileInputStream(f));
+			try {
+				return readChromaMatrixFromStream(is, subsampling);
+			} finally {
+				is.close();
+			}
+		}
+		AudioReader reader = openAudio(f);
+		ExecutorService pool;
+		int nthreads;
+		synchronized (ChromaMatrixUtils.class) {
+			pool = audioPool;
+			nthreads = audioThreads;
+		}
+		try {
+			if (pool != null)
+				return ChromaExtraction.getChromaFeatures(reader, audioWindowMs, audioHopsizeRatio, subsampling, pool, nthreads).toArray(new ChromaVector[0]);
+			return ChromaExtraction.getChromaFeatures(reader, audioWindowMs, audioHopsizeRatio, subsampling).toArray(new ChromaVector[0]);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Opens an audio file, with the sample rate set by {@link #setAudioSampleRate}. */
+	public static AudioReader openAudio(File f) throws IOException {
+		try {
+			return audioSampleRate > 0 ? new AudioReader(f, audioSampleRate) : new AudioReader(f);
+		} catch (UnsupportedAudioFileException ex) {
+			throw new IOException("unsupported audio file " + f + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Opens an audio stream, e.g. a live stream, with the sample rate set by
+	 * {@link #setAudioSampleRate}; its chroma features are extracted by
+	 * {@link #extractChromaFeatures(AudioReader, int, ChromaConsumer)}.
+	 */
+	public static AudioReader openAudioStream(InputStream is) throws IOException {
+		try {
+			AudioInputStream stream = AudioSystem.getAudioInputStream(is.markSupported() ? is : new BufferedInputStream(is));
+			return audioSampleRate > 0 ? new AudioReader(stream, audioSampleRate) : new AudioReader(stream);
+		} catch (UnsupportedAudioFileException ex) {
+			throw new IOException("unsupported audio stream: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * @param sampleRate sample rate of an audio stream
+	 * @return number of samples between consecutive frames of the stream,
+	 *         with the frames set by {@link #setAudioFrames}
+	 */
+	public static int getAudioHopSize(float sampleRate) {
+		return ChromaExtraction.getHopSize(sampleRate, audioWindowMs, audioHopsizeRatio);
+	}
+
+	/**
+	 * Extracts the chroma features of an audio stream, which may be
+	 * unbounded, pushing each one to the consumer as soon as its frame has
+	 * been read; frames are analyzed one at a time by the calling thread,
+	 * hence with the lowest latency. Zero vectors are skipped.
+	 *
+	 * @param subsampling  only one every subsampling frames is used
+	 */
+	public static void extractChromaFeatures(AudioReader reader, int subsampling, ChromaConsumer consumer) throws IOException {
+		ChromaExtraction.extractChromaFeatures(reader, audioWindowMs, audioHopsizeRatio, subsampling, consumer);
+	}
+
+	/**
+	 * Writes chroma features as a chroma matrix in text format, which can
+	 * be read back with {@link #convertChromaStreamIntoHashesStream}.
+	 */
+	public static void writeChromaMatrix(ChromaVector[] c, OutputStream os) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os));
+		for (ChromaVector v : c) {
+			float[] values = v.getChromaValues();
+			for (int i = 0; i < values.length; i++)
+				writer.write(i == 0 ? Float.toString(values[i]) : "," + values[i]);
+			writer.write("\n");
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Writes chroma features as a chroma matrix in binary format: the 12
+	 * values of each vector as big-endian floats, with no header. It is
+	 * read back by {@link #readChromaFeatures} from files with the
+	 * {@link #BINARY_EXTENSION}, much faster than the text format. Zero
+	 * vectors are skipped when reading, but subsampling counts them, as it
+	 * counts the lines of the text format and the frames of audio files.
+	 */
+	public static void writeBinaryChromaMatrix(ChromaVector[] c, OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		for (ChromaVector v : c)
+			for (float value : v.getChromaValues())
+				out.writeFloat(value);
+		out.flush();
+	}
+
+	private static ChromaVector[] readBinaryChromaMatrix(InputStream is, int subsampling) throws IOException {
+		List<ChromaVector> l = new ArrayList<ChromaVector>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		float[] v = new float[12];
+		for (int n = 0; true; n++) {
+			try {
+				for (int i = 0; i < v.length; i++)
+					v[i] = in.readFloat();
+			} catch (EOFException ex) {
+				break;
+			}
+			if (n % subsampling == 0) {
+				float vsum = 0;
+				for (float vi : v)
+					vsum += vi;
+				if (vsum > 0) // do not add zero vectors
+					l.add(new ChromaVector(v));
+			}
+		}
+		return l.toArray(new ChromaVector[0]);
+	}
+
+	/**
+	 * Extracts the chroma features of many files with a pool of threads,
+	 * see {@link #readChromaFeatures}, and writes each one in binary format
+	 * into the output folder, named after the input file with the
+	 * {@link #BINARY_EXTENSION}. Hidden files are skipped. The chroma of
+	 * every frame of an audio file is written, a zero vector for silent
+	 * frames, and every line of a text file, a zero vector for lines which
+	 * are not chroma vectors; hence reading the output with any subsampling
+	 * gives the same vectors as reading the input with the same subsampling.
+	 *
+	 * @param files      input files, audio files or chroma matrices
+	 * @param outputDir  output folder, created if it does not exist
+	 * @param nthreads   number of files processed at the same time
+	 * @param verbose    print the name of each file written
+	 */
+	public static void extractChromaFiles(File[] files, final File outputDir, int nthreads, final boolean verbose) throws IOException {
+		if (!outputDir.isDirectory() && !outputDir.mkdirs())
+			throw new IOException("cannot create " + outputDir);
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		List<Future<Object>> pending = new LinkedList<Future<Object>>();
+		try {
+			for (final File file : files) {
+				if (file.getName().startsWith("."))
+					continue;
+				pending.add(pool.submit(new Callable<Object>() {
+
+					public Object call() throws IOException {
+						File out = new File(outputDir, file.getName() + BINARY_EXTENSION);
+						final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+						final int[] count = new int[1];
+						try {
+							extractAllFrames(file, new ChromaConsumer() {
+
+								public void consume(float[] chroma) throws IOException {
+									for (float value : chroma)
+										os.writeFloat(value);
+									count[0]++;
+								}
+							});
+						} finally {
+							os.close();
+						}
+						if (verbose)
+							System.out.println(String.format("%d chroma vectors - %s", count[0], out.getAbsolutePath()));
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> f : pending)
+				f.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause());
+		} catch (InterruptedException ex) {
+			throw new IOException(ex);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Pushes to the consumer the chroma of every frame of a file, with no
+	 * subsampling, as written by {@link #extractChromaFiles}: zero vectors
+	 * stand for the silent frames of audio files, and for the lines of text
+	 * files which are not chroma vectors.
+	 */
+	private static void extractAllFrames(File f, ChromaConsumer consumer) throws IOException {
+		float[] v = new float[12];
+		if (isBinaryChromaFile(f)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				while (true) {
+					try {
+						for (int i = 0; i < v.length; i++)
+							v[i] = in.readFloat();
+					} catch (EOFException ex) {
+						break;
+					}
+					consumer.consume(v);
+				}
+			} finally {
+				in.close();
+			}
+			return;
+		}
+		if (!isAudioFile(f)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					StringTokenizer tok = new StringTokenizer(line.trim(), ",");
+					boolean vector = tok.countTokens() == 12;
+					for (int j = 0; j < 12; j++)
+						v[j] = vector ? Float.parseFloat(tok.nextToken()) : 0;
+					consumer.consume(v);
+				}
+			} finally {
+				in.close();
+			}
+			return;
+		}
+		AudioReader reader = openAudio(f);
+		ExecutorService pool;
+		int nthreads;
+		synchronized (ChromaMatrixUtils.class) {
+			pool = audioPool;
+			nthreads = audioThreads;
+		}
+		try {
+			if (pool != null)
+				ChromaExtraction.extractChromaFeatures(reader, audioWindowMs, audioHopsizeRatio, 1, true, consumer, pool, nthreads);
+			else
+				ChromaExtraction.extractChromaFeatures(reader, audioWindowMs, audioHopsizeRatio, 1, true, consumer);
+		} finally {
+			reader.close();
+		}
+	}
+
 	private static ChromaVector[] readChromaMatrixFromStream(InputStreamReader is, int subsampling) throws IOException, NumberFormatException {
 		List<ChromaVector> l = new LinkedList<ChromaVector>();
 		BufferedReader in = new BufferedReader(is);
@@ -91,7 +450,26 @@ public class ChromaMatrixUtils {
 	public static void convertChromaStreamIntoHashesStream(InputStreamReader is, List<OutputStream> os,
 					int nranks, TranspositionEstimator transpEst,
 					double minkurtosis, int subsampling) throws IOException {
-		ChromaVector[] c = ChromaMatrixUtils.readChromaMatrixFromStream(is, subsampling);
+		convertChromaIntoHashesStream(ChromaMatrixUtils.readChromaMatrixFromStream(is, subsampling), os, nranks, transpEst, minkurtosis);
+	}
+
+	/**
+	 * Converts the chroma features of a file, see {@link #readChromaFeatures},
+	 * into integer hashes streams, as done by {@link #convertChromaStreamIntoHashesStream}.
+	 */
+	public static void convertFileIntoHashesStream(File f, List<OutputStream> os,
+					int nranks, TranspositionEstimator transpEst,
+					double minkurtosis, int subsampling) throws IOException {
+		convertChromaIntoHashesStream(readChromaFeatures(f, subsampling), os, nranks, transpEst, minkurtosis);
+	}
+
+	/**
+	 * Converts chroma features into integer hashes streams, as done by
+	 * {@link #convertChromaStreamIntoHashesStream}; the vectors are rotated
+	 * in place.
+	 */
+	public static void convertChromaIntoHashesStream(ChromaVector[] c, List<OutputStream> os,
+					int nranks, TranspositionEstimator transpEst, double minkurtosis) throws IOException {
 		// init to 0-transp if no transposition estimator specified
 		int[] keys = transpEst != null ? transpEst.findKey(c, os.size()) : new int[]{0};
 		for (int k = 0; k < keys.length; k++) {
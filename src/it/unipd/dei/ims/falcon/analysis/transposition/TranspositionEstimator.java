@@ -63,27 +63,62 @@ public class TranspositionEstimator {
 	 * @param n   number of most probable transpositions to return
 	 */
 	public int[] findKey(ChromaVector profile, int n) {
-		// compute the correlations
 		float[] corr = new float[12];
-		for (int i = 0; i < 12; i++) {
-			corr[i] = 0;
-			for (int j = 0; j < 12; j++)
-				corr[i] += profile.getChromaValues()[j] * weights[j];
-			profile.rotate(1);
-		}
-		// sort the best n
 		int[] transp = new int[n];
-		for (int i = 0; i < n; i++) {
-			int max = 0;
-			for (int j = 0; j < 12; j++)
-				if (corr[j] > corr[max])
-					max = j;
-			transp[i] = max;
-			corr[max] = Float.MIN_VALUE;
-		}
+		correlate(profile.getChromaValues(), weights, corr, 0);
+		selectTop(corr, 0, n, transp);
 		return transp;
 	}
 
+	/**
+	 * Circular cross-correlation of a profile with normalized weights (see
+	 * {@link #getWeights()}): corr[off + r] is the correlation of the weights
+	 * with the profile rotated by r (see {@link ChromaVector#rotate(int)}).
+	 * The profile is not modified. This is also the kernel of
+	 * {@link TranspositionEstimatorTrainer}.
+	 */
+	static void correlate(float[] profile, float[] weights, float[] corr, int off) {
+		for (int r = 0; r < 12; r++) {
+			float c = 0;
+			int j = 0;
+			for (; j < 12 - r; j++)
+				c += profile[j + r] * weights[j];
+			for (; j < 12; j++)
+				c += profile[j + r - 12] * weights[j];
+			corr[off + r] = c;
+		}
+	}
+
+	/**
+	 * Store in transp the transpositions of the n highest correlations in
+	 * corr[off .. off + 11], in decreasing order; ties go to the lowest
+	 * transposition.
+	 */
+	static void selectTop(float[] corr, int off, int n, int[] transp) {
+		int size = 0;
+		for (int r = 0; r < 12 && n > 0; r++) {
+			if (size == n && !(corr[off + r] > corr[off + transp[n - 1]]))
+				continue;
+			int i = size < n ? size++ : n - 1;
+			for (; i > 0 && corr[off + r] > corr[off + transp[i - 1]]; i--)
+				transp[i] = transp[i - 1];
+			transp[i] = r;
+		}
+	}
+
+	/**
+	 * @return the position, from 1, of transposition t in the order given by
+	 *         {@link #selectTop(float[], int, int, int[])} for the
+	 *         correlations in corr[off .. off + 11]
+	 */
+	static int getRank(float[] corr, int off, int t) {
+		int rank = 1;
+		for (int r = 0; r < 12; r++)
+			if (corr[off + r] > corr[off + t] || (corr[off + r] == corr[off + t] && r < t))
+				rank++;
+		return rank;
+	}
+
 	/**
 	 * Extract a profile from a whole song, represented as a Chroma matrix, by
 	 * summing the chroma vectors for which kurtosis is higher than the
@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -17,6 +18,11 @@ import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Training algorithm for transposition estimator
@@ -24,10 +30,14 @@ import java.util.TreeSet;
  */
 public class TranspositionEstimatorTrainer {
 
-	private static Random random = new Random();
 	private static final int EPOCHS = 2000;
 	private static final int MOVESET_SIZE = 30;
 	private static final float VARIABILITY = 0.2f;
+	// number of pairs ranked by each task
+	private static final int BLOCK_PAIRS = 64;
+	private final ExecutorService pool;
+	// draws the transpositions of the pairs and the candidate weights, on the training thread only
+	private final Random random;
 
 	private class FilePair {
 
@@ -40,14 +50,14 @@ public class TranspositionEstimatorTrainer {
 		private float[] firstProfile;
 		private float[] secondProfile;
 
-		/** Construct a new file pair. Chroma matrices are automatically read and randomly transposed */
-		public FilePair(File f, File s) throws FileNotFoundException, IOException {
+		/** Construct a new file pair. Chroma matrices are automatically read and transposed as given */
+		public FilePair(File f, File s, int firstTransp, int secondTransp) throws FileNotFoundException, IOException {
 			first = f;
 			second = s;
 			firstChroma = ChromaMatrixUtils.readChromaFile(first);
 			secondChroma = ChromaMatrixUtils.readChromaFile(second);
-			firstTransp = random.nextInt(12);
-			secondTransp = random.nextInt(12);
+			this.firstTransp = firstTransp;
+			this.secondTransp = secondTransp;
 			for (ChromaVector v : firstChroma)
 				v.rotate(firstTransp);
 			for (ChromaVector v : secondChroma)
@@ -81,6 +91,26 @@ public class TranspositionEstimatorTrainer {
 		}
 	}
 
+	/**
+	 * @param nthreads number of threads used for reading the files and
+	 *                 evaluating the candidate weights
+	 */
+	public TranspositionEstimatorTrainer(int nthreads) {
+		this(nthreads, new Random());
+	}
+
+	/**
+	 * @param nthreads number of threads used for reading the files and
+	 *                 evaluating the candidate weights
+	 * @param random   random generator of the transpositions of the pairs and
+	 *                 of the candidate weights; the same seed gives the same
+	 *                 training for any number of threads
+	 */
+	public TranspositionEstimatorTrainer(int nthreads, Random random) {
+		pool = Executors.newFixedThreadPool(nthreads);
+		this.random = random;
+	}
+
 	private static void normalize1(float[] ww) {
 		for (int i = 0; i < ww.length; i++)
 			if (ww[i] < 0)
@@ -96,7 +126,7 @@ public class TranspositionEstimatorTrainer {
 				ww[i] = 1.f / ww.length;
 	}
 
-	private static List<float[]> getMoveSet(float[] w) {
+	private List<float[]> getMoveSet(float[] w) {
 		List<float[]> ff = new LinkedList<float[]>();
 		for (int i = 0; i < MOVESET_SIZE; i++) {
 			float[] q = new float[w.length];
@@ -127,115 +157,225 @@ public class TranspositionEstimatorTrainer {
 		return "[" + join(f, ",") + "]";
 	}
 
-	private static String printArray(int[] w) {
-		List<Integer> f = new LinkedList<Integer>();
-		for (int x : w)
-			f.add(x);
-		return "[" + join(f, ",") + "]";
-	}
+	/**
+	 * The pairs of a training or validation set, prepared for evaluation; the
+	 * profiles are correlated with the candidate weights and ranked as in
+	 * {@link TranspositionEstimator#findKey(ChromaVector, int)}.
+	 */
+	private class PairSet {
+
+		private final int size;
+		// the profiles of the i-th pair are p = 2*i (first) and p = 2*i+1 (second)
+		private final float[][] profiles;
+		// expected[p] = transposition of the other profile of the pair w.r.t. p
+		private final int[] expected;
 
-	// return the rank of the found match, as float
-	private static int getMatchingRank(float[] p1, float[] p2, TranspositionEstimator tpe, int expectedT) {
-		int t1 = tpe.findKey(new ChromaVector(p1), 1)[0];
-		int[] t2 = tpe.findKey(new ChromaVector(p2), 12);
-		for (int i = 0; i < t2.length; i++) {
-			if ((120 + t2[i] - t1 - expectedT) % 12 == 0)
-				return 1 + i;
+		public PairSet(List<FilePair> pairs) {
+			size = pairs.size();
+			profiles = new float[2 * size][];
+			expected = new int[2 * size];
+			int p = 0;
+			for (FilePair fp : pairs) {
+				profiles[p] = fp.getFirstProfile();
+				expected[p++] = fp.getFirstTransp() - fp.getSecondTransp();
+				profiles[p] = fp.getSecondProfile();
+				expected[p++] = fp.getSecondTransp() - fp.getFirstTransp();
+			}
 		}
-		// should never be reached ...
-		{
-			System.out.println("AAAAAAAAAAAA");
-			System.out.println("    t1 = " + t1);
-			System.out.println("    t2 = " + printArray(t2));
-			System.out.println("    exp = " + expectedT);
-			System.out.println("    p1 = " + printArray(p1));
-			System.out.println("    p2 = " + printArray(p2));
-			System.out.println("    w = " + printArray(tpe.getWeights()));
+
+		// corr[12 * c + r] = correlation of profile p rotated by r with candidate c
+		private void correlate(int p, float[][] candidates, float[] corr) {
+			for (int c = 0; c < candidates.length; c++)
+				TranspositionEstimator.correlate(profiles[p], candidates[c], corr, 12 * c);
 		}
-		return Integer.MAX_VALUE;
 
+		/**
+		 * Two-way evaluation of the pairs in [from, to) for all the candidates:
+		 * use the first transposition of one file and get the rank of the
+		 * matching transposition of the other; then reverse. The ranks are
+		 * stored in ranks[c][2*i] and ranks[c][2*i+1].
+		 */
+		public void rank(float[][] candidates, int from, int to, int[][] ranks) {
+			float[] corr1 = new float[12 * candidates.length];
+			float[] corr2 = new float[12 * candidates.length];
+			int[] best1 = new int[1];
+			int[] best2 = new int[1];
+			for (int i = from; i < to; i++) {
+				correlate(2 * i, candidates, corr1);
+				correlate(2 * i + 1, candidates, corr2);
+				for (int c = 0; c < candidates.length; c++) {
+					int off = 12 * c;
+					TranspositionEstimator.selectTop(corr1, off, 1, best1);
+					TranspositionEstimator.selectTop(corr2, off, 1, best2);
+					ranks[c][2 * i] = TranspositionEstimator.getRank(corr2, off, mod12(best1[0] + expected[2 * i]));
+					ranks[c][2 * i + 1] = TranspositionEstimator.getRank(corr1, off, mod12(best2[0] + expected[2 * i + 1]));
+				}
+			}
+		}
+	}
+
+	private static int mod12(int t) {
+		return (t % 12 + 12) % 12;
 	}
 
 	/**
-	 * Two-way evaluation. For each pair, use the first transposition of one file 
-	 * and get the best matching of the other; then reverse.
+	 * Computes the ranks of all the pairs of the set for all the candidates;
+	 * blocks of pairs are ranked in parallel.
 	 */
-	private static float evaluate(float[] w, List<FilePair> pairs) {
-		float totScore = 0.f;
-		TranspositionEstimator tpe = new TranspositionEstimator(w);
-		for (FilePair fp : pairs) {
-			int r1 = getMatchingRank(fp.getFirstProfile(), fp.getSecondProfile(), tpe, fp.firstTransp - fp.secondTransp);
-			int r2 = getMatchingRank(fp.getSecondProfile(), fp.getFirstProfile(), tpe, fp.secondTransp - fp.firstTransp);
-			totScore += r1 > 0 ? 1.f / (r1 * r1) : 1;
-			totScore += r2 > 0 ? 1.f / (r2 * r2) : 1;
+	private int[][] rank(final List<float[]> candidates, final PairSet set) throws IOException {
+		final float[][] w = new float[candidates.size()][];
+		for (int c = 0; c < w.length; c++)
+			w[c] = new TranspositionEstimator(candidates.get(c)).getWeights();
+		final int[][] ranks = new int[w.length][2 * set.size];
+		List<Future<Object>> pending = new LinkedList<Future<Object>>();
+		for (int from = 0; from < set.size; from += BLOCK_PAIRS) {
+			final int blockFrom = from;
+			final int blockTo = Math.min(from + BLOCK_PAIRS, set.size);
+			pending.add(pool.submit(new Callable<Object>() {
+
+				public Object call() {
+					set.rank(w, blockFrom, blockTo, ranks);
+					return null;
+				}
+			}));
+		}
+		waitFor(pending);
+		return ranks;
+	}
+
+	private static <T> List<T> waitFor(List<Future<T>> pending) throws IOException {
+		List<T> results = new LinkedList<T>();
+		try {
+			for (Future<T> f : pending)
+				results.add(f.get());
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause());
+		} catch (InterruptedException ex) {
+			throw new IOException(ex);
 		}
+		return results;
+	}
+
+	private static float score(int[] ranks) {
+		float totScore = 0.f;
+		for (int r : ranks)
+			totScore += r > 0 ? 1.f / (r * r) : 1;
 		return totScore;
 	}
 
-	private static void evaluateVerbose(float[] w, List<FilePair> pairs) {
+	/**
+	 * Scores of the candidate weights on the set: each pair contributes the
+	 * inverse of the squared rank, in both directions.
+	 */
+	private float[] evaluate(List<float[]> candidates, PairSet set) throws IOException {
+		int[][] ranks = rank(candidates, set);
+		float[] scores = new float[ranks.length];
+		for (int c = 0; c < ranks.length; c++)
+			scores[c] = score(ranks[c]);
+		return scores;
+	}
+
+	private float evaluate(float[] w, PairSet set) throws IOException {
+		return evaluate(Collections.singletonList(w), set)[0];
+	}
+
+	private void evaluateVerbose(float[] w, PairSet set, PrintStream out) throws IOException {
 		Map<Float, Integer> rankCount = new TreeMap<Float, Integer>();
-		TranspositionEstimator tpe = new TranspositionEstimator(w);
-		for (FilePair fp : pairs) {
-			float r1 = getMatchingRank(fp.getFirstProfile(), fp.getSecondProfile(), tpe, fp.firstTransp - fp.secondTransp);
-			float r2 = getMatchingRank(fp.getSecondProfile(), fp.getFirstProfile(), tpe, fp.secondTransp - fp.firstTransp);
-			rankCount.put(r1, rankCount.containsKey(r1) ? rankCount.get(r1) + 1 : 1);
-			rankCount.put(r2, rankCount.containsKey(r2) ? rankCount.get(r2) + 1 : 1);
+		for (int r : rank(Collections.singletonList(w), set)[0]) {
+			float f = r;
+			rankCount.put(f, rankCount.containsKey(f) ? rankCount.get(f) + 1 : 1);
 		}
 		for (Float f : new TreeSet<Float>(rankCount.keySet()))
-			System.out.println(String.format("       [%2d]: %5d", f.intValue(), rankCount.get(f)));
+			out.println(String.format("       [%2d]: %5d", f.intValue(), rankCount.get(f)));
 	}
 
-	public void train() throws IOException {
-		// read all file pairs from STDIN
-		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-		List<FilePair> pairs = new LinkedList<FilePair>();
+	private List<FilePair> readPairs(BufferedReader in) throws IOException {
+		List<Future<FilePair>> pending = new LinkedList<Future<FilePair>>();
 		List<String> couple = new LinkedList<String>();
 		String line = null;
 		while ((line = in.readLine()) != null) {
 			couple.add(line);
 			if (couple.size() == 2) {
-				pairs.add(new FilePair(new File(couple.get(0)), new File(couple.get(1))));
+				final File first = new File(couple.get(0));
+				final File second = new File(couple.get(1));
+				// drawn here, in the order of the pairs, rather than by the reading threads
+				final int firstTransp = random.nextInt(12);
+				final int secondTransp = random.nextInt(12);
+				pending.add(pool.submit(new Callable<FilePair>() {
+
+					public FilePair call() throws IOException {
+						return new FilePair(first, second, firstTransp, secondTransp);
+					}
+				}));
 				couple.clear();
 			}
 		}
+		return waitFor(pending);
+	}
+
+	/** trains on the file pairs listed on STDIN, printing the progress on STDOUT */
+	public void train() throws IOException {
+		train(new BufferedReader(new InputStreamReader(System.in)), System.out);
+	}
+
+	/**
+	 * @param in  list of files, every even line being a cover of the previous odd line; closed when read
+	 * @param out receives the progress of the training and the final report
+	 */
+	public void train(BufferedReader in, PrintStream out) throws IOException {
+		try {
+			doTrain(in, out);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void doTrain(BufferedReader in, PrintStream out) throws IOException {
+		// read all file pairs
+		List<FilePair> pairs = readPairs(in);
 		in.close();
 		// split into 5/1 training/validation set
 		List<FilePair> trainingPairs = new LinkedList<FilePair>();
 		List<FilePair> validationPairs = new LinkedList<FilePair>();
 		Collections.shuffle(pairs, random);
 		int p = 0;
-		while (!pairs.isEmpty())
-			(p++ % 5 != 0 ? trainingPairs : validationPairs).add(pairs.remove(0));
+		for (FilePair fp : pairs)
+			(p++ % 5 != 0 ? trainingPairs : validationPairs).add(fp);
+		PairSet trainingSet = new PairSet(trainingPairs);
+		PairSet validationSet = new PairSet(validationPairs);
 
 		// random initial weights
 		float[] bestWeights = new float[12];
 		for (int i = 0; i < bestWeights.length; i++)
 			bestWeights[i] = random.nextFloat();
 		normalize1(bestWeights);
-		float bestTrainingScore = evaluate(bestWeights, pairs);
-		System.out.println("initial random weights have score " + bestTrainingScore);
+		float bestTrainingScore = evaluate(bestWeights, trainingSet);
+		out.println("initial random weights have score " + bestTrainingScore);
 		// iterations
 		for (int it = 0; it < EPOCHS; it++) {
 			// evaluate a new moveset
 			List<float[]> moveset = getMoveSet(bestWeights);
-			List<Float> tScores = new LinkedList<Float>();
-			for (float[] move : moveset)
-				tScores.add(evaluate(move, trainingPairs));
+			float[] tScores = evaluate(moveset, trainingSet);
 			// get max and eventually move
-			float bs = Collections.max(tScores);
-			if (bs > bestTrainingScore) {
-				bestTrainingScore = bs;
-				bestWeights = moveset.get(tScores.indexOf(bs));
-				float vScore = evaluate(bestWeights, validationPairs);
-				System.out.println(String.format("new best found [t: %f v: %f]: %s", bestTrainingScore, vScore, printArray(bestWeights)));
-				System.out.println("  on training:");
-				evaluateVerbose(bestWeights, trainingPairs);		
-				System.out.println("  on validation:");
-				evaluateVerbose(bestWeights, validationPairs);		
+			int best = 0;
+			for (int i = 1; i < tScores.length; i++)
+				if (tScores[i] > tScores[best])
+					best = i;
+			if (tScores[best] > bestTrainingScore) {
+				bestTrainingScore = tScores[best];
+				bestWeights = moveset.get(best);
+				float vScore = evaluate(bestWeights, validationSet);
+				out.println(String.format("new best found [t: %f v: %f]: %s", bestTrainingScore, vScore, printArray(bestWeights)));
+				out.println("  on training:");
+				evaluateVerbose(bestWeights, trainingSet, out);
+				out.println("  on validation:");
+				evaluateVerbose(bestWeights, validationSet, out);
 			}
 		}
 		// output best
-		evaluateVerbose(bestWeights, pairs);
+		evaluateVerbose(bestWeights, new PairSet(pairs), out);
 	}
 
 	/**
@@ -246,6 +386,7 @@ public class TranspositionEstimatorTrainer {
 	 * are trained using a randomized hill climbing approach.
 	 */
 	public static void main(String[] args) throws IOException {
-		new TranspositionEstimatorTrainer().train();
+		int nthreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		new TranspositionEstimatorTrainer(nthreads).train();
 	}
 }
@@ -17,66 +17,408 @@ package it.unipd.dei.ims.falcon.audio;
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import javax.sound.sampled.*;
 
 /**
  * Read an audio file. Provided that the appropriate packages are in the 
  * classpath, mp3 and ogg should be readable too.
  * The safest route is to read from a MONO, WAV file.
+ * <p>
+ * PCM files are decoded directly from their native format, with a
+ * specialized loop for each sample size; PCM WAV files are memory-mapped.
+ * Other files are converted to 16-bit PCM by Java Sound.
+ * <p>
+ * Samples are always returned as a single channel: multi-channel files are
+ * downmixed by averaging the channels. Optionally, the signal is decimated
+ * by an integer factor, see {@link #AudioReader(File, float)}.
  */
 public class AudioReader {
 
-	private AudioInputStream signedBigEndianInputStream = null;
+	// stream of the samples, null if the file is memory-mapped
+	private AudioInputStream audioInputStream = null;
 	private AudioInputStream originalAudioInputStream = null;
+	// data of a memory-mapped file, null if the file is read as a stream
+	private ByteBuffer mapped = null;
+	private RandomAccessFile mappedFile = null;
+	// format of the samples
+	private float sampleRate;
+	private int channels;
+	private int sampleSizeInBytes;
+	private boolean signed;
+	// buffer for the bytes of the samples read from the stream, reused by the reads
+	private byte[] bytes = new byte[0];
+	private ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+	// buffer for the reads into float arrays which are downmixed or decimated
+	private double[] doubles = new double[0];
+	// buffer for the interleaved samples of multi-channel files
+	private double[] frames = new double[0];
+	// decimation factor, and low-pass filter applied before decimation
+	private int decimation = 1;
+	private double[] taps;
+	// the last taps.length - 1 samples read, followed by the samples of the current read
+	private double[] history;
+	/** number of taps of the decimation filter, for each unit of the decimation factor */
+	private static final int TAPS_PER_FACTOR = 32;
 
 	public AudioReader(File inputfile) throws UnsupportedAudioFileException, IOException {
-		originalAudioInputStream = AudioSystem.getAudioInputStream(inputfile);
-		AudioFormat destaf = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
-						originalAudioInputStream.getFormat().getSampleRate(),
-						16, 1, 16 / 8 * 1, originalAudioInputStream.getFormat().getSampleRate(), true);
-		signedBigEndianInputStream = AudioSystem.getAudioInputStream(destaf, originalAudioInputStream);
+		if (inputfile.getName().toLowerCase().endsWith(".wav") && mapWav(inputfile))
+			return;
+		openStream(AudioSystem.getAudioInputStream(inputfile));
 	}
 
-	/** Read next n samples (at most) from file (interleaved  if channels > 1). Return as double[]. */
-	public double[] readDoubleSamples(int n) throws IOException {
-		int fl = signedBigEndianInputStream.getFormat().getFrameSize();
-		int ss = signedBigEndianInputStream.getFormat().getSampleSizeInBits();
-		int ssB = ss / 8;
-		//		System.out.println(String.format("fl: %d, ss: %d, ssB: %d, samplerate: %f",
-		//						fl, ss, ssB, signedBigEndianInputStream.getFormat().getSampleRate()));
-		byte[] b = new byte[n * signedBigEndianInputStream.getFormat().getChannels() * ssB];
-		int read = signedBigEndianInputStream.read(b);
-		double[] res = new double[read / ssB];
-		for (int i = 0; i < res.length; i++) {
-			double val = 0;
-			switch (ss) {
-				case 8:
-					val = ((b[i * ssB] & 0xFF) - 128) / 128.0;
-					break;
-				case 16:
-					val = ((b[i * ssB + 0] << 8) | (b[i * ssB + 1] & 0xFF)) / 32768.0;
-					break;
-				case 24:
-					val = ((b[i * ssB + 0] << 16) | ((b[i * ssB + 1] & 0xFF) << 8)
-									| (b[i * ssB + 2] & 0xFF)) / 8388606.0;
-					break;
-				case 32:
-					val = ((b[i * ssB + 0] << 24) | ((b[i * ssB + 1] & 0xFF) << 16)
-									| ((b[i * ssB + 2] & 0xFF) << 8) | (b[i * ssB + 3] & 0xFF)) / 2147483648.0;
-					break;
+	/**
+	 * Opens an audio file, decimating the signal by the largest integer
+	 * factor which keeps the sample rate at least the given one, e.g. by 2
+	 * for 44.1 kHz or 48 kHz files and 22.05 kHz; by 4 for 11.025 kHz.
+	 * <p>
+	 * The signal is low-pass filtered before decimation by a windowed-sinc
+	 * FIR filter with cutoff at 90% of the new Nyquist frequency; only the
+	 * retained samples are filtered (polyphase decimation).
+	 *
+	 * @param inputfile      audio file
+	 * @param minSampleRate  min sample rate after decimation; files with a
+	 *                       lower sample rate are not decimated
+	 */
+	public AudioReader(File inputfile, float minSampleRate) throws UnsupportedAudioFileException, IOException {
+		this(inputfile);
+		setMinSampleRate(minSampleRate);
+	}
+
+	/**
+	 * Reads an audio stream, e.g. a live stream of unknown length, which is
+	 * read as the samples are requested.
+	 *
+	 * @param stream  audio stream, closed by {@link #close()}
+	 */
+	public AudioReader(AudioInputStream stream) throws UnsupportedAudioFileException, IOException {
+		openStream(stream);
+	}
+
+	/**
+	 * Reads an audio stream, decimating the signal as
+	 * {@link #AudioReader(File, float)} does.
+	 *
+	 * @param stream         audio stream, closed by {@link #close()}
+	 * @param minSampleRate  min sample rate after decimation
+	 */
+	public AudioReader(AudioInputStream stream, float minSampleRate) throws UnsupportedAudioFileException, IOException {
+		this(stream);
+		setMinSampleRate(minSampleRate);
+	}
+
+	/** sets up the decimation by the largest integer factor which keeps at least the given sample rate */
+	private void setMinSampleRate(float minSampleRate) {
+		decimation = Math.max(1, (int) (sampleRate / minSampleRate + 1e-6));
+		if (decimation > 1) {
+			taps = getDecimationFilter(decimation);
+			history = new double[taps.length - 1];
+		}
+	}
+
+	/** @return windowed-sinc low-pass filter for the given decimation factor, with unit gain */
+	private static double[] getDecimationFilter(int factor) {
+		int ntaps = TAPS_PER_FACTOR * factor + 1;
+		double cutoff = 0.45 / factor; // in cycles per sample
+		double[] h = new double[ntaps];
+		double sum = 0;
+		for (int i = 0; i < ntaps; i++) {
+			double t = i - (ntaps - 1) / 2.;
+			double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+			double blackman = .42 - .5 * Math.cos(2 * Math.PI * i / (ntaps - 1)) + .08 * Math.cos(4 * Math.PI * i / (ntaps - 1));
+			h[i] = sinc * blackman;
+			sum += h[i];
+		}
+		for (int i = 0; i < ntaps; i++)
+			h[i] /= sum;
+		return h;
+	}
+
+	private void openStream(AudioInputStream stream) throws UnsupportedAudioFileException, IOException {
+		originalAudioInputStream = stream;
+		AudioFormat af = originalAudioInputStream.getFormat();
+		boolean pcm = af.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED) || af.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+		int bits = af.getSampleSizeInBits();
+		if (pcm && (bits == 8 || bits == 16 || bits == 24 || bits == 32)) {
+			// decode the native format
+			audioInputStream = originalAudioInputStream;
+		} else {
+			AudioFormat destaf = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+							af.getSampleRate(), 16, af.getChannels(), 16 / 8 * af.getChannels(), af.getSampleRate(), true);
+			audioInputStream = AudioSystem.getAudioInputStream(destaf, originalAudioInputStream);
+		}
+		AudioFormat format = audioInputStream.getFormat();
+		sampleRate = format.getSampleRate();
+		channels = format.getChannels();
+		sampleSizeInBytes = format.getSampleSizeInBits() / 8;
+		signed = !format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+		byteBuffer.order(format.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Memory-maps the data of a PCM WAV file.
+	 * @return false if the file is not a PCM WAV file which can be mapped
+	 */
+	private boolean mapWav(File inputfile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(inputfile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			if (channel.read(header, 0) < 12 || header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) // "RIFF", "WAVE"
+				return false;
+			long pos = 12;
+			int format = -1, bits = 0;
+			ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+			while (pos + 8 <= channel.size()) {
+				chunk.clear().limit(8);
+				channel.read(chunk, pos);
+				int id = chunk.getInt(0);
+				long size = chunk.getInt(4) & 0xFFFFFFFFL;
+				if (id == 0x20746d66) { // "fmt "
+					if (size < 16)
+						return false;
+					chunk.clear().limit((int) Math.min(size, 40));
+					channel.read(chunk, pos + 8);
+					format = chunk.getShort(0) & 0xFFFF;
+					channels = chunk.getShort(2) & 0xFFFF;
+					sampleRate = chunk.getInt(4);
+					bits = chunk.getShort(14) & 0xFFFF;
+					if (format == 0xFFFE && size >= 26) // extensible format, the sub-format follows
+						format = chunk.getShort(24) & 0xFFFF;
+				} else if (id == 0x61746164) { // "data"
+					if (format != 1 || channels < 1 || (bits != 8 && bits != 16 && bits != 24 && bits != 32))
+						return false;
+					size = Math.min(size, channel.size() - pos - 8);
+					if (size > Integer.MAX_VALUE)
+						return false;
+					sampleSizeInBytes = bits / 8;
+					signed = bits > 8; // 8-bit WAV samples are unsigned
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, pos + 8, size).order(ByteOrder.LITTLE_ENDIAN);
+					mappedFile = raf;
+					return true;
+				}
+				pos += 8 + size + (size & 1); // chunks are padded to an even size
 			}
-			res[i] = val;
+			return false;
+		} finally {
+			if (mappedFile == null)
+				raf.close();
 		}
-		return res;
 	}
 
-	public float getSampleRate() {
-		return signedBigEndianInputStream.getFormat().getSampleRate();
+	/** Read next n samples (at most) from file. Return as double[]. */
+	public double[] readDoubleSamples(int n) throws IOException {
+		double[] res = new double[n];
+		int read = readDoubleSamples(res, 0, res.length);
+		return read < res.length ? Arrays.copyOf(res, read) : res;
+	}
+
+	/**
+	 * Read the next n samples into the given array, without allocating
+	 * memory once the internal buffers are large enough. Fewer than n
+	 * samples are read only at the end of the file.
+	 *
+	 * @param buffer  destination array
+	 * @param offset  position of the first sample in the destination array
+	 * @param n       number of samples to read
+	 * @return number of samples read
+	 */
+	public int readDoubleSamples(double[] buffer, int offset, int n) throws IOException {
+		if (decimation == 1)
+			return readMono(buffer, offset, n);
+		// filter the samples read after the history, computing only one
+		// output every decimation samples
+		int nhistory = taps.length - 1;
+		if (history.length < nhistory + n * decimation)
+			history = Arrays.copyOf(history, nhistory + n * decimation);
+		int read = readMono(history, nhistory, n * decimation);
+		int nout = (read + decimation - 1) / decimation;
+		int half = nhistory / 2; // the filter is symmetric, with an odd number of taps
+		for (int j = 0; j < nout; j++) {
+			int first = j * decimation, last = first + nhistory;
+			double y = taps[half] * history[first + half];
+			for (int t = 0; t < half; t++)
+				y += taps[t] * (history[first + t] + history[last - t]);
+			buffer[offset + j] = y;
+		}
+		System.arraycopy(history, read, history, 0, nhistory);
+		return nout;
+	}
+
+	/** read the next n samples, downmixing channels */
+	private int readMono(double[] buffer, int offset, int n) throws IOException {
+		if (channels == 1)
+			return readInterleaved(buffer, offset, n);
+		if (frames.length < n * channels)
+			frames = new double[n * channels];
+		int read = readInterleaved(frames, 0, n * channels) / channels;
+		for (int i = 0, k = 0; i < read; i++) {
+			double sum = 0;
+			for (int c = 0; c < channels; c++)
+				sum += frames[k++];
+			buffer[offset + i] = sum / channels;
+		}
+		return read;
+	}
+
+	/** read the next n samples, interleaved if channels > 1 */
+	private int readInterleaved(double[] buffer, int offset, int n) throws IOException {
+		ByteBuffer b = readBytes(n);
+		n = Math.min(n, b.remaining() / sampleSizeInBytes);
+		decode(b, buffer, offset, n);
+		return n;
+	}
 
+	/** read the next n samples, interleaved if channels > 1 */
+	private int readInterleaved(float[] buffer, int offset, int n) throws IOException {
+		ByteBuffer b = readBytes(n);
+		n = Math.min(n, b.remaining() / sampleSizeInBytes);
+		decode(b, buffer, offset, n);
+		return n;
+	}
+
+	/** @return the buffer to decode the next n samples from, which may hold fewer samples at the end of the file */
+	private ByteBuffer readBytes(int n) throws IOException {
+		if (mapped != null)
+			return mapped;
+		int nbytes = n * sampleSizeInBytes;
+		if (bytes.length < nbytes) {
+			bytes = new byte[nbytes];
+			byteBuffer = ByteBuffer.wrap(bytes).order(byteBuffer.order());
+		}
+		int read = 0;
+		while (read < nbytes) {
+			int r = audioInputStream.read(bytes, read, nbytes - read);
+			if (r < 0)
+				break;
+			read += r;
+		}
+		byteBuffer.clear();
+		byteBuffer.limit(read);
+		return byteBuffer;
+	}
+
+	/**
+	 * Read the next n samples into the given array, see
+	 * {@link #readDoubleSamples(double[], int, int)}. Mono samples which are
+	 * not decimated are decoded directly as floats; otherwise, channels are
+	 * averaged and filtered in double precision, and rounded once.
+	 *
+	 * @return number of samples read
+	 */
+	public int readFloatSamples(float[] buffer, int offset, int n) throws IOException {
+		if (decimation == 1 && channels == 1)
+			return readInterleaved(buffer, offset, n);
+		if (doubles.length < n)
+			doubles = new double[n];
+		n = readDoubleSamples(doubles, 0, n);
+		for (int i = 0; i < n; i++)
+			buffer[offset + i] = (float) doubles[i];
+		return n;
+	}
+
+	/** decodes n samples from the buffer, in [-1, 1) */
+	private void decode(ByteBuffer b, double[] buffer, int offset, int n) {
+		int end = offset + n;
+		switch (sampleSizeInBytes) {
+			case 1:
+				if (signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = b.get() / 128.0;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.get() & 0xFF) - 128) / 128.0;
+				break;
+			case 2:
+				if (signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = b.getShort() / 32768.0;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.getShort() & 0xFFFF) - 32768) / 32768.0;
+				break;
+			case 3:
+				if (b.order() == ByteOrder.LITTLE_ENDIAN)
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.get() & 0xFF) | ((b.get() & 0xFF) << 8) | (b.get() << 16)) / 8388608.0;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.get() << 16) | ((b.get() & 0xFF) << 8) | (b.get() & 0xFF)) / 8388608.0;
+				if (!signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = buffer[i] < 0 ? buffer[i] + 1 : buffer[i] - 1;
+				break;
+			case 4:
+				if (signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = b.getInt() / 2147483648.0;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.getInt() & 0xFFFFFFFFL) - 2147483648L) / 2147483648.0;
+				break;
+		}
+	}
+
+	/**
+	 * decodes n samples from the buffer, in [-1, 1); the samples are the
+	 * ones of {@link #decode(ByteBuffer, double[], int, int)} rounded to
+	 * float, since the scales are powers of two
+	 */
+	private void decode(ByteBuffer b, float[] buffer, int offset, int n) {
+		int end = offset + n;
+		switch (sampleSizeInBytes) {
+			case 1:
+				if (signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = b.get() / 128f;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.get() & 0xFF) - 128) / 128f;
+				break;
+			case 2:
+				if (signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = b.getShort() / 32768f;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.getShort() & 0xFFFF) - 32768) / 32768f;
+				break;
+			case 3:
+				if (b.order() == ByteOrder.LITTLE_ENDIAN)
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.get() & 0xFF) | ((b.get() & 0xFF) << 8) | (b.get() << 16)) / 8388608f;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.get() << 16) | ((b.get() & 0xFF) << 8) | (b.get() & 0xFF)) / 8388608f;
+				if (!signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = buffer[i] < 0 ? buffer[i] + 1 : buffer[i] - 1;
+				break;
+			case 4:
+				if (signed)
+					for (int i = offset; i < end; i++)
+						buffer[i] = b.getInt() / 2147483648f;
+				else
+					for (int i = offset; i < end; i++)
+						buffer[i] = ((b.getInt() & 0xFFFFFFFFL) - 2147483648L) / 2147483648f;
+				break;
+		}
+	}
+
+	/** @return sample rate of the samples read, after decimation */
+	public float getSampleRate() {
+		return sampleRate / decimation;
 	}
 
 	public void close() throws IOException {
-		signedBigEndianInputStream.close();
-		originalAudioInputStream.close();
+		if (mappedFile != null)
+			mappedFile.close();
+		if (audioInputStream != null)
+			audioInputStream.close();
+		if (originalAudioInputStream != null)
+			originalAudioInputStream.close();
 	}
 }
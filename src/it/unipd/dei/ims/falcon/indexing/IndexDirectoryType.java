@@ -0,0 +1,83 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+/**
+ * Lucene {@link org.apache.lucene.store.Directory} implementations which
+ * can be used to access an index.
+ * <p>
+ * With {@link #SIMPLE}, reads on the same file are serialized, so threads
+ * searching the same index at once, e.g. one for each transposition,
+ * contend on the index files; {@link #NIO} and {@link #MMAP} do not.
+ *
+ */
+public enum IndexDirectoryType {
+
+	/** {@link SimpleFSDirectory}, reads on the same file are synchronized */
+	SIMPLE,
+	/** {@link NIOFSDirectory}, positional reads without synchronization (slow on Windows) */
+	NIO,
+	/** {@link MMapDirectory}, index files are memory-mapped */
+	MMAP,
+	/**
+	 * {@link RAMDirectory}: when opened for reading, index files are loaded
+	 * in memory; they are written as with {@link #SIMPLE}
+	 */
+	RAM;
+
+	/**
+	 * Opens a file-system directory of this type, to be used for writing or
+	 * to check the existence of an index.
+	 *
+	 * @param path  index folder
+	 * @throws IOException
+	 */
+	public FSDirectory open(File path) throws IOException {
+		switch (this) {
+			case NIO:
+				return new NIOFSDirectory(path, null);
+			case MMAP:
+				return new MMapDirectory(path, null);
+			default:
+				return new SimpleFSDirectory(path, null);
+		}
+	}
+
+	/**
+	 * Opens a directory of this type for reading an index.
+	 *
+	 * @param path  index folder
+	 * @throws IOException
+	 */
+	public Directory openForReading(File path) throws IOException {
+		FSDirectory dir = open(path);
+		if (this != RAM)
+			return dir;
+		RAMDirectory ram = new RAMDirectory(dir);
+		dir.close();
+		return ram;
+	}
+}
@@ -15,27 +15,42 @@ package it.unipd.dei.ims.falcon.indexing;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaExtraction;
 import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.ranking.BlockMaxPostings;
+import it.unipd.dei.ims.falcon.ranking.HashIndex;
 import it.unipd.dei.ims.falcon.ranking.HashSimilarity;
+import it.unipd.dei.ims.falcon.ranking.ImpactOrderedPostings;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
@@ -47,7 +62,8 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.index.TermPositions;
-import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 /**
@@ -56,6 +72,11 @@ import org.apache.lucene.util.Version;
  * sequence of hashes extracted during the analysis phase. The entire hash sequence
  * for the song needs to be in a single text line. 
  * <p>
+ * Hashes are extracted from the chroma features of the input files, which
+ * are either chroma matrices in text format or audio files, analyzed directly
+ * (see {@link ChromaMatrixUtils#readChromaFeatures}); the songs are processed
+ * by a pool of threads, see {@link #setExtractionThreads(int)}.
+ * <p>
  * The basic rationale underlying the indexing step is that each song is mapped
  * in a set of possible overlapping subsequence of hashes of fixed length.
  * Each subsequence is named "segment". Both the number of hashes per segment,
@@ -112,10 +133,210 @@ import org.apache.lucene.util.Version;
  * </ol>
  * When the index is updated, the map is re-built.
  * <p>
+ * Optionally, an impact-ordered copy of the posting lists, block-max
+ * metadata for the posting lists and a compact copy of the whole index are
+ * stored in the index folder as well, see
+ * {@link it.unipd.dei.ims.falcon.ranking.ImpactOrderedPostings},
+ * {@link it.unipd.dei.ims.falcon.ranking.BlockMaxPostings} and
+ * {@link it.unipd.dei.ims.falcon.ranking.HashIndex}. All of them refer to
+ * Lucene document identifiers, thus they are re-built (or removed, if not
+ * requested) when the index is updated.
  * 
  */
 public class Indexing {
 
+	// if true, impact-ordered postings are written after indexing
+	private static boolean impactOrderedPostings = false;
+
+	/**
+	 * Enables writing of impact-ordered postings after indexing, required by
+	 * the approximate, early terminating query evaluation.
+	 * @param enabled true to write impact-ordered postings
+	 */
+	public static void setImpactOrderedPostings(boolean enabled) {
+		impactOrderedPostings = enabled;
+	}
+
+	/** name of the file storing the stop-hash list in the index folder */
+	public static final String STOP_HASHES_FILE_NAME = "stop_hashes.txt";
+	// hashes whose normalized document frequency exceeds this value are
+	// stop hashes; no stop-hash list is computed if not positive
+	private static double stopHashThreshold = 0;
+	// if true, stop hashes are not indexed
+	private static boolean skipStopHashPostings = false;
+
+	/**
+	 * Enables the computation of a stop-hash list during indexing. Stop
+	 * hashes are the hashes which occur in more than the given fraction of
+	 * all the segments; they are written in the file "stop_hashes.txt" in
+	 * the index folder and are removed from queries. Optionally, their
+	 * postings are not indexed at all.
+	 * <p>
+	 * When the index is updated, the document frequencies of the existing
+	 * index are taken into account, and the new list includes the old one.
+	 *
+	 * @param threshold     max normalized document frequency of a hash; the
+	 *                      stop-hash list is not computed if not positive
+	 * @param skipPostings  if true, stop hashes are not indexed
+	 */
+	public static void setStopHashes(double threshold, boolean skipPostings) {
+		stopHashThreshold = threshold;
+		skipStopHashPostings = skipPostings;
+	}
+
+	// if true, block-max metadata is written after indexing
+	private static boolean blockMaxPostings = false;
+
+	/**
+	 * Enables writing of block-max metadata after indexing, required by
+	 * the query evaluation with block-max skipping.
+	 * @param enabled true to write block-max metadata
+	 */
+	public static void setBlockMaxPostings(boolean enabled) {
+		blockMaxPostings = enabled;
+	}
+
+	// Lucene directory implementation used to access the index
+	private static IndexDirectoryType directoryType = IndexDirectoryType.SIMPLE;
+
+	/**
+	 * Sets the Lucene directory implementation used to access the index,
+	 * when indexing, querying and printing index information.
+	 *
+	 * @param type directory implementation
+	 */
+	public static void setDirectoryType(IndexDirectoryType type) {
+		directoryType = type;
+	}
+
+	/** @return the Lucene directory implementation used to access the index */
+	public static IndexDirectoryType getDirectoryType() {
+		return directoryType;
+	}
+
+	/** name of the file storing the number of shards in the folder of a sharded index */
+	public static final String SHARDS_FILE_NAME = "shards.txt";
+	/** prefix of the name of the shard folders in a sharded index */
+	public static final String SHARD_PREFIX = "shard_";
+	// number of shards of a new index, 0 if unspecified
+	private static int numberOfShards = 0;
+
+	/**
+	 * Sets the number of shards of a new index. Songs are partitioned among
+	 * the shards by the hash of their identifier; each shard is a complete
+	 * index, with its own hash features map and optional structures, stored
+	 * in the folder "shard_i" of the index folder. The number of shards is
+	 * stored in the file "shards.txt", and is used when the index is updated.
+	 * Since shards are independent, a single shard can be re-built by
+	 * indexing its songs in the shard folder. When an existing index is
+	 * updated, the number of shards must be unspecified or the same as the
+	 * one of the index.
+	 *
+	 * @param nshards number of shards; with 1, the index is not sharded; with
+	 *                0, the number of shards is unspecified, i.e. the one of
+	 *                the index being updated, or 1 for a new index
+	 */
+	public static void setShards(int nshards) {
+		numberOfShards = nshards;
+	}
+
+	// if true, the compact hash index is written after indexing
+	private static boolean hashIndex = false;
+
+	/**
+	 * Enables writing of the compact hash index after indexing, required by
+	 * the query evaluation which does not go through Lucene. The compact
+	 * index is a copy of the Lucene index, which is built anyway.
+	 * @param enabled true to write the compact hash index
+	 */
+	public static void setHashIndex(boolean enabled) {
+		hashIndex = enabled;
+	}
+
+	// number of threads extracting the hashes of the songs
+	private static int extractionThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Sets the number of threads which extract the hashes of the songs,
+	 * in parallel with indexing; songs are indexed in the order of the
+	 * input files anyway.
+	 * @param nthreads number of threads
+	 */
+	public static void setExtractionThreads(int nthreads) {
+		if (nthreads < 1)
+			throw new IllegalArgumentException("number of threads must be positive");
+		extractionThreads = nthreads;
+	}
+
+	/**
+	 * Extracts the hashes of the songs with a pool of threads, up to a
+	 * bounded number of songs ahead of indexing; hashes are returned in the
+	 * order of the songs.
+	 */
+	private static class HashExtractor {
+
+		private final ExecutorService pool = Executors.newFixedThreadPool(extractionThreads);
+		private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		private final File[] files;
+		private int next = 0;
+		private final int subsampling;
+		private final int nranks;
+		private final double minkurtosis;
+		private final TranspositionEstimator transpEst;
+
+		/** @param files input files, the ones which are not songs are skipped, see {@link #isSong} */
+		private HashExtractor(File[] files, int subsampling, int nranks, double minkurtosis, TranspositionEstimator transpEst) {
+			this.files = files;
+			this.subsampling = subsampling;
+			this.nranks = nranks;
+			this.minkurtosis = minkurtosis;
+			this.transpEst = transpEst;
+			submit();
+		}
+
+		private void submit() {
+			while (pending.size() < 2 * extractionThreads && next < files.length) {
+				final File file = files[next++];
+				if (!isSong(file))
+					continue;
+				pending.add(pool.submit(new Callable<byte[]>() {
+
+					public byte[] call() throws IOException {
+						ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+						List<OutputStream> fout = new LinkedList<OutputStream>();
+						fout.add(hashes);
+						ChromaMatrixUtils.convertFileIntoHashesStream(file, fout, nranks, transpEst, minkurtosis, subsampling);
+						return hashes.toByteArray();
+					}
+				}));
+			}
+		}
+
+		/** @return the hashes of the next song, as a text stream */
+		private byte[] next() throws IOException {
+			Future<byte[]> hashes = pending.poll();
+			submit();
+			try {
+				return hashes.get();
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+				throw new IOException(ex.getCause());
+			} catch (InterruptedException ex) {
+				throw new IOException(ex);
+			}
+		}
+
+		private void close() {
+			pool.shutdownNow();
+		}
+	}
+
+	/** @return true if the input file is a song to index, i.e. it exists and it is not hidden */
+	private static boolean isSong(File file) {
+		return file.exists() && !file.getName().startsWith(".");
+	}
+
 	/**
 	 * Indexes all the songs in the specified path.
 	 * The index is created in the specified directory "indexPath". If an index
@@ -135,6 +356,13 @@ public class Indexing {
 	 * based on occurrence statistics of the hash in the entire collection.
 	 * In the event of an index update the map is re-built and the map file
 	 * is over-written.
+	 * <p>
+	 * If the index is sharded, see {@link #setShards(int)}, each song is
+	 * indexed in its shard, and only the shards which received new songs
+	 * are updated.
+	 * <p>
+	 * When audio files are analyzed, the precision of the analysis is
+	 * recorded in the index, see {@link #checkAnalysisPrecision(File)}.
 	 * @param data Input file. If it is a directory, index all files inside it.
 	 * @param index Falcon index.
 	 * @param hashPerSegment Number of hashes per segment.
@@ -163,7 +391,108 @@ public class Indexing {
 		if (!index.canWrite())
 			throw new IOException("cannot write to index directory");
 
-		SimpleFSDirectory indexDir = new SimpleFSDirectory(index, null);
+		File[] inputfiles = data.isDirectory() ? data.listFiles() : new File[]{data};
+		boolean analyzed = false;
+		for (File f : inputfiles)
+			analyzed |= !f.isHidden() && ChromaMatrixUtils.isAudioFile(f);
+		String precision = getAnalysisPrecision(index);
+		if (analyzed && precision != null && !precision.equals(getCurrentAnalysisPrecision()))
+			throw new IndexingException(String.format("the index was analyzed in %s precision, %s precision was requested",
+							precision, getCurrentAnalysisPrecision()));
+		boolean newIndex = getNumberOfShards(index) == 0 && !indexExists(index);
+		int nshards = getNumberOfShards(index);
+		if (nshards > 0 && numberOfShards > 0 && numberOfShards != nshards)
+			throw new IndexingException(String.format("the index has %d shards, %d were requested", nshards, numberOfShards));
+		if (nshards == 0 && numberOfShards > 1) {
+			if (indexExists(index))
+				throw new IndexingException("an existing index cannot be partitioned in shards");
+			PrintWriter pw = new PrintWriter(new File(index, SHARDS_FILE_NAME));
+			pw.println(numberOfShards);
+			pw.close();
+			nshards = numberOfShards;
+		}
+
+		if (analyzed && precision == null && newIndex) {
+			PrintWriter pw = new PrintWriter(new File(index, PRECISION_FILE_NAME));
+			pw.println(getCurrentAnalysisPrecision());
+			pw.close();
+		}
+
+		if (nshards == 0) {
+			indexFiles(inputfiles, index, hashPerSegment, hashInOverlap, subsampling, nranks, minkurtosis, transpEst, verbose);
+		} else {
+			// partition the songs among the shards
+			List<List<File>> shardfiles = new ArrayList<List<File>>();
+			for (int i = 0; i < nshards; i++)
+				shardfiles.add(new ArrayList<File>());
+			for (File file : inputfiles)
+				shardfiles.get(getShardOfSong(file.getAbsolutePath(), nshards)).add(file);
+			for (int i = 0; i < nshards; i++) {
+				if (shardfiles.get(i).isEmpty())
+					continue;
+				File shard = new File(index, SHARD_PREFIX + i);
+				if (!shard.exists())
+					shard.mkdir();
+				if (verbose)
+					System.out.println(String.format("[INDEXING] - shard %d of %d", i + 1, nshards));
+				indexFiles(shardfiles.get(i).toArray(new File[0]), shard, hashPerSegment, hashInOverlap,
+								subsampling, nranks, minkurtosis, transpEst, verbose);
+			}
+		}
+
+		long end_time = System.currentTimeMillis();
+		if(verbose)
+			System.out.println(String.format("[INDEXING] - elapsed time: %10.3f", (end_time-start_time)/1000.));
+		
+	}
+
+	/**
+	 * Indexes the given songs in a single (non-sharded) index, and writes the
+	 * hash features map and the other structures requested.
+	 *
+	 * @param inputfiles  chroma or audio files of the songs; hidden files are skipped
+	 * @param index       index folder
+	 */
+	private static void indexFiles(File[] inputfiles, File index, final int hashPerSegment, final int hashInOverlap,
+					final int subsampling, final int nranks, final double minkurtosis,
+					final TranspositionEstimator transpEst, boolean verbose) throws IOException {
+
+		FSDirectory indexDir = directoryType.open(index);
+		try {
+			indexFiles(inputfiles, index, indexDir, hashPerSegment, hashInOverlap, subsampling, nranks, minkurtosis, transpEst, verbose);
+		} finally {
+			indexDir.close();
+		}
+	}
+
+	private static void indexFiles(File[] inputfiles, File index, FSDirectory indexDir, final int hashPerSegment,
+					final int hashInOverlap, final int subsampling, final int nranks, final double minkurtosis,
+					final TranspositionEstimator transpEst, boolean verbose) throws IOException {
+
+		// if a stop-hash list is requested, hashes are first extracted
+		// into temporary files in order to compute document frequencies
+		File[] hashfiles = null;
+		Set<Integer> stopHashes = Collections.emptySet();
+		if (stopHashThreshold > 0) {
+			hashfiles = new File[inputfiles.length];
+			HashExtractor extractor = new HashExtractor(inputfiles, subsampling, nranks, minkurtosis, transpEst);
+			try {
+				for (int f = 0; f < inputfiles.length; f++) {
+					if (isSong(inputfiles[f])) {
+						if (verbose)
+							System.out.println(String.format("%10.3f%% - extracting hashes from %s", f * 100. / inputfiles.length, inputfiles[f].getAbsolutePath()));
+						hashfiles[f] = File.createTempFile("falcon", ".hashes");
+						hashfiles[f].deleteOnExit();
+						OutputStream fout = new FileOutputStream(hashfiles[f]);
+						fout.write(extractor.next());
+						fout.close();
+					}
+				}
+			} finally {
+				extractor.close();
+			}
+			stopHashes = computeStopHashes(hashfiles, index, indexDir, hashPerSegment, hashInOverlap);
+		}
 
 		// initialize Lucene Analyzer and IndexWriter
 		Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_30);
@@ -171,37 +500,39 @@ public class Indexing {
 		writer.setSimilarity(new HashSimilarity());
 
 		// transform chroma data into hashes and write into index
-		File[] inputfiles = data.isDirectory() ? data.listFiles() : new File[]{data};
-		int fileNo = 0;
-		for (final File file : inputfiles) {
-			// if the current considered files exists and is not hidden
-			if (file.exists() && !file.getName().startsWith(".")) {
-				if(verbose)
-					System.out.println(String.format("%10.3f%% - indexing %s", fileNo*100./inputfiles.length, file.getAbsolutePath()));
-				final List<OutputStream> fout = new LinkedList<OutputStream>();
-				fout.add(new PipedOutputStream());
-				final PipedInputStream fin = new PipedInputStream((PipedOutputStream) fout.get(0));
-				Thread t = new Thread(new Runnable() {
-					public void run() {
-						try {
-							ChromaMatrixUtils.convertChromaStreamIntoHashesStream(new FileReader(file), fout, nranks, transpEst, minkurtosis, subsampling);
-						} catch (IOException ex) {
-							// TODO do something better for this exception ... (might hang all ...)
-							Logger.getLogger(Indexing.class.getName()).log(Level.SEVERE, null, ex);
-						}
-					}
-				});
-				t.start();
-				indexSong(writer, fin, hashPerSegment, hashInOverlap, file.getAbsolutePath(), file.getAbsolutePath());
-				fileNo++;
+		HashExtractor extractor = hashfiles == null ? new HashExtractor(inputfiles, subsampling, nranks, minkurtosis, transpEst) : null;
+		try {
+			int fileNo = 0;
+			for (int f = 0; f < inputfiles.length; f++) {
+				final File file = inputfiles[f];
+				// if the current considered files exists and is not hidden
+				if (isSong(file)) {
+					if(verbose)
+						System.out.println(String.format("%10.3f%% - indexing %s", fileNo*100./inputfiles.length, file.getAbsolutePath()));
+					InputStream fin;
+					if (hashfiles != null)
+						fin = new FileInputStream(hashfiles[f]);
+					else
+						fin = new ByteArrayInputStream(extractor.next());
+					indexSong(writer, fin, hashPerSegment, hashInOverlap, file.getAbsolutePath(), file.getAbsolutePath(),
+									skipStopHashPostings ? stopHashes : Collections.<Integer>emptySet());
+					fin.close();
+					if (hashfiles != null)
+						hashfiles[f].delete();
+					fileNo++;
+				}
 			}
+		} finally {
+			if (extractor != null)
+				extractor.close();
 		}
 		writer.optimize();
 		writer.close();
 
 		// additional falcon features
 		PrintWriter pw = new PrintWriter(index.getAbsolutePath() + "/qpruning_features.map");
-		IndexReader reader = IndexReader.open(new SimpleFSDirectory(index));
+		Directory readerDir = directoryType.openForReading(index);
+		IndexReader reader = IndexReader.open(readerDir);
 		int numSegments = reader.numDocs();
 		long total_hcf = numSegments * hashPerSegment;        // total number of hashes in the collection
 		TermEnum hashes = reader.terms();                     // distinct hashes in the collection
@@ -238,11 +569,241 @@ public class Indexing {
 		}
 		pw.flush();
 		pw.close();
-		
-		long end_time = System.currentTimeMillis();
-		if(verbose)
-			System.out.println(String.format("[INDEXING] - elapsed time: %10.3f", (end_time-start_time)/1000.));
-		
+
+		if (impactOrderedPostings)
+			ImpactOrderedPostings.write(reader, index);
+		else
+			new File(index, ImpactOrderedPostings.FILE_NAME).delete();
+		if (blockMaxPostings)
+			BlockMaxPostings.write(reader, index);
+		else
+			new File(index, BlockMaxPostings.FILE_NAME).delete();
+		if (hashIndex) {
+			HashIndex.write(reader, index);
+		} else {
+			new File(index, HashIndex.FILE_NAME).delete();
+			new File(index, HashIndex.POSTINGS_FILE_NAME).delete();
+		}
+		reader.close();
+		readerDir.close();
+	}
+
+	/**
+	 * Returns the number of shards of a sharded index.
+	 *
+	 * @param index  index folder
+	 * @return number of shards, 0 if the index is not sharded
+	 * @throws IOException
+	 */
+	public static int getNumberOfShards(File index) throws IOException {
+		File f = new File(index, SHARDS_FILE_NAME);
+		if (!f.exists())
+			return 0;
+		Scanner scan = new Scanner(f);
+		try {
+			return scan.nextInt();
+		} finally {
+			scan.close();
+		}
+	}
+
+	/** name of the file storing the precision of the audio analysis in the index folder */
+	public static final String PRECISION_FILE_NAME = "precision.txt";
+
+	/** @return the precision of the current audio analysis, "single" or "double" */
+	private static String getCurrentAnalysisPrecision() {
+		return ChromaExtraction.isSinglePrecision() ? "single" : "double";
+	}
+
+	/**
+	 * Returns the precision of the audio analysis of the songs of an index
+	 * (see {@link ChromaExtraction#setSinglePrecision(boolean)}), which is
+	 * stored in the file "precision.txt" when a new index is built from
+	 * audio files.
+	 *
+	 * @param index  index folder
+	 * @return "single" or "double", null if not recorded
+	 * @throws IOException
+	 */
+	public static String getAnalysisPrecision(File index) throws IOException {
+		File f = new File(index, PRECISION_FILE_NAME);
+		if (!f.exists())
+			return null;
+		Scanner scan = new Scanner(f);
+		try {
+			return scan.next();
+		} finally {
+			scan.close();
+		}
+	}
+
+	/**
+	 * Checks that audio can be analyzed for a query on an index with the
+	 * current precision: the hashes of the same audio may differ with a
+	 * different precision.
+	 *
+	 * @param index  index folder
+	 * @throws IOException if the index records a different precision
+	 */
+	public static void checkAnalysisPrecision(File index) throws IOException {
+		String precision = getAnalysisPrecision(index);
+		if (precision != null && !precision.equals(getCurrentAnalysisPrecision()))
+			throw new IOException(String.format("the index was analyzed in %s precision, the query in %s precision",
+							precision, getCurrentAnalysisPrecision()));
+	}
+
+	/**
+	 * Returns the folders of the indexes to be searched for the given index:
+	 * the index itself, if not sharded, or the shards which contain at least
+	 * one song.
+	 *
+	 * @param index  index folder
+	 * @return folders of the (non-sharded) indexes to search
+	 * @throws IOException
+	 */
+	public static File[] getShards(File index) throws IOException {
+		int nshards = getNumberOfShards(index);
+		if (nshards == 0)
+			return new File[]{index};
+		List<File> shards = new ArrayList<File>();
+		for (int i = 0; i < nshards; i++) {
+			File shard = new File(index, SHARD_PREFIX + i);
+			if (shard.exists() && indexExists(shard))
+				shards.add(shard);
+		}
+		return shards.toArray(new File[shards.size()]);
+	}
+
+	/** @return true if there is a Lucene index in the given folder */
+	private static boolean indexExists(File folder) throws IOException {
+		Directory dir = directoryType.open(folder);
+		try {
+			return IndexReader.indexExists(dir);
+		} finally {
+			dir.close();
+		}
+	}
+
+	/**
+	 * Returns the shard a song is assigned to.
+	 *
+	 * @param songId   song identifier, i.e. the absolute path of its chroma file
+	 * @param nshards  number of shards
+	 * @return shard number, between 0 and nshards - 1
+	 */
+	public static int getShardOfSong(String songId, int nshards) {
+		return (songId.hashCode() & Integer.MAX_VALUE) % nshards;
+	}
+
+	/**
+	 * Computes the stop hashes, that is the hashes whose normalized document
+	 * frequency exceeds the threshold set by {@link #setStopHashes(double, boolean)},
+	 * over the songs being indexed and the existing index, if any.
+	 * The list is written in the file "stop_hashes.txt" in the index folder,
+	 * one hash per line followed by its normalized document frequency.
+	 * Hashes in a previously written list are retained.
+	 *
+	 * @param hashfiles  text files with the hash sequence of the songs being indexed (null entries are ignored)
+	 * @return the stop hashes
+	 */
+	private static Set<Integer> computeStopHashes(File[] hashfiles, File index, FSDirectory indexDir,
+					int hashPerSegment, int hashInOverlap) throws IOException {
+		Map<Integer, Integer> docFreqs = new HashMap<Integer, Integer>();
+		long numSegments = 0;
+		for (File f : hashfiles) {
+			if (f != null) {
+				InputStream is = new FileInputStream(f);
+				numSegments += countSegmentHashes(is, hashPerSegment, hashInOverlap, docFreqs);
+				is.close();
+			}
+		}
+		if (IndexReader.indexExists(indexDir)) {
+			IndexReader reader = IndexReader.open(indexDir);
+			numSegments += reader.numDocs();
+			TermEnum hashes = reader.terms(new Term("CONTENT", ""));
+			do {
+				Term t = hashes.term();
+				if (t == null || !t.field().equals("CONTENT"))
+					break;
+				int hash = Integer.parseInt(t.text());
+				Integer df = docFreqs.get(hash);
+				docFreqs.put(hash, (df == null ? 0 : df) + hashes.docFreq());
+			} while (hashes.next());
+			hashes.close();
+			reader.close();
+		}
+		Map<Integer, Double> stopHashes = new TreeMap<Integer, Double>(loadStopHashes(index));
+		for (Map.Entry<Integer, Integer> e : docFreqs.entrySet()) {
+			double ndf = (double) e.getValue() / numSegments;
+			if (ndf > stopHashThreshold)
+				stopHashes.put(e.getKey(), ndf);
+		}
+		PrintWriter pw = new PrintWriter(new File(index, STOP_HASHES_FILE_NAME));
+		for (Map.Entry<Integer, Double> e : stopHashes.entrySet())
+			pw.print(e.getKey() + "\t" + e.getValue() + "\n");
+		pw.close();
+		return stopHashes.keySet();
+	}
+
+	/**
+	 * Loads the stop-hash list stored in the index folder.
+	 *
+	 * @param index  index folder
+	 * @return map from stop hashes to their normalized document frequency when
+	 *         the list was computed; empty if there is no stop-hash list
+	 * @throws FileNotFoundException
+	 */
+	public static Map<Integer, Double> loadStopHashes(File index) throws FileNotFoundException {
+		Map<Integer, Double> stopHashes = new HashMap<Integer, Double>();
+		File f = new File(index, STOP_HASHES_FILE_NAME);
+		if (!f.exists())
+			return stopHashes;
+		Scanner scan = new Scanner(f);
+		while (scan.hasNextLine()) {
+			Scanner lineScan = new Scanner(scan.nextLine());
+			if (lineScan.hasNext())
+				stopHashes.put(Integer.parseInt(lineScan.next()), Double.parseDouble(lineScan.next()));
+		}
+		scan.close();
+		return stopHashes;
+	}
+
+	/**
+	 * Divides a song in segments as done by {@link #indexSong} and, for each
+	 * hash, counts the number of segments it occurs in.
+	 *
+	 * @param is              text stream containing the hashes in the song
+	 * @param docFreqs        map from hashes to document frequency, updated
+	 * @return number of segments in the song
+	 */
+	private static int countSegmentHashes(InputStream is, int hashPerSegment, int hashInOverlap,
+					Map<Integer, Integer> docFreqs) throws IOException {
+		BufferedReader buffReader = new BufferedReader(new InputStreamReader(is));
+		String content = buffReader.readLine();
+		if (content == null)
+			return 0;
+		Scanner scanner = new Scanner(content);
+		LinkedList<Integer> hashCache = new LinkedList<Integer>();
+		int numSegments = 0;
+		while (scanner.hasNext()) {
+			int curHash = Integer.parseInt(scanner.next());
+			if (curHash == -1) {
+				continue;
+			}
+			hashCache.add(curHash);
+			if (hashCache.size() == hashPerSegment) {
+				for (int h : new HashSet<Integer>(hashCache)) {
+					Integer df = docFreqs.get(h);
+					docFreqs.put(h, df == null ? 1 : df + 1);
+				}
+				numSegments++;
+				// keep the hashes in the overlap
+				for (int h = 0; h < hashPerSegment - hashInOverlap; h++) {
+					hashCache.poll();
+				}
+			}
+		}
+		return numSegments;
 	}
 
 	/**
@@ -272,11 +833,13 @@ public class Indexing {
 	 *          number of hashes in each segment
 	 * @param hashInOverlap
 	 *          number of hashes in the overlap among segments
+	 * @param stopHashes
+	 *          hashes which are not indexed; they count for the segment length
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
 	private static void indexSong(IndexWriter writer, InputStream is,
-					int hashPerSegment, int hashInOverlap, String title, String id) throws FileNotFoundException, IOException {
+					int hashPerSegment, int hashInOverlap, String title, String id, Set<Integer> stopHashes) throws FileNotFoundException, IOException {
 
 		BufferedReader buffReader = new BufferedReader(new InputStreamReader(is));
 		String content = buffReader.readLine();
@@ -298,7 +861,8 @@ public class Indexing {
 				continue;
 			}
 
-			strBuilder.append(curHash).append(" ");
+			if (!stopHashes.contains(curHash))
+				strBuilder.append(curHash).append(" ");
 			hashCache.add(curHash);
 
 			curHashInSegment++;
@@ -323,32 +887,32 @@ public class Indexing {
 				doc.add(new Field("LENGTH", Integer.toString(hashPerSegment), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
 				writer.addDocument(doc);
 
-				if (strBuilder.length() > 0) {
-					// creates a new string builder for the next segment
-					strBuilder = new StringBuilder();
-
-					if (hashInOverlap == 0) { // if the overlap size is zero
-						// the number of segment already processed for the next
-						// segment is zero
-						curHashInSegment = 0;
-					} else {
-						// if overlap is required, removes from the cache
-						// the segments not in the overlap
-						for (int h = 0; h < hashPerSegment - hashInOverlap; h++) {
-							hashCache.poll();
-						}
-						// fills the buffer with the hashes in the overlap
-						int h = 0;
-						Iterator<Integer> iter = hashCache.iterator();
-						while (iter.hasNext() && h < hashInOverlap) {
-							strBuilder.append(iter.next()).append(" ");
-							h++;
-						}
-						// update the number of hashes currently processed for
-						// the next segment to the number of hashes in the overlap
-						// since they are in common for the two segments
-						curHashInSegment = hashInOverlap;
+				// creates a new string builder for the next segment
+				strBuilder = new StringBuilder();
+
+				if (hashInOverlap == 0) { // if the overlap size is zero
+					// the number of segment already processed for the next
+					// segment is zero
+					curHashInSegment = 0;
+				} else {
+					// if overlap is required, removes from the cache
+					// the segments not in the overlap
+					for (int h = 0; h < hashPerSegment - hashInOverlap; h++) {
+						hashCache.poll();
+					}
+					// fills the buffer with the hashes in the overlap
+					int h = 0;
+					Iterator<Integer> iter = hashCache.iterator();
+					while (iter.hasNext() && h < hashInOverlap) {
+						int overlapHash = iter.next();
+						if (!stopHashes.contains(overlapHash))
+							strBuilder.append(overlapHash).append(" ");
+						h++;
 					}
+					// update the number of hashes currently processed for
+					// the next segment to the number of hashes in the overlap
+					// since they are in common for the two segments
+					curHashInSegment = hashInOverlap;
 				}
 				// increases the number of segments for the current song
 				hashSegment++;
@@ -380,7 +944,7 @@ public class Indexing {
 	public static void indexUtils(String indexPath, String option) throws IndexingException {
 		IndexReader reader;
 		try {
-			reader = IndexReader.open(new SimpleFSDirectory(new File(indexPath), null));
+			reader = IndexReader.open(directoryType.openForReading(new File(indexPath)));
 
 			if (option.equals("show_doc_ids")) {
 				//  prints all the internal segment identifiers together with
@@ -0,0 +1,360 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Block-max metadata for the posting lists of the "CONTENT" field.
+ * <p>
+ * The posting list of each hash is divided in blocks of {@link #BLOCK_SIZE}
+ * consecutive postings; for each block, the last document and the maximum
+ * frequency of the hash are stored. This is the block-wise equivalent of the
+ * normalized maximum frequency stored in "qpruning_features.map", and gives
+ * an upper bound to the score of {@link HashScorer} over each block.
+ * <p>
+ * The evaluator returned by {@link #getEvaluator} uses these bounds to skip
+ * ranges of documents which cannot change the result of a query segment,
+ * that is ranges where the sum of the bounds does not exceed the best score
+ * already found for each of the songs the documents belong to. The result is
+ * the same as the exhaustive evaluation; scores differ from the Lucene ones
+ * in the last bits, since the float scores of the hashes are summed in
+ * another order.
+ * <p>
+ * The metadata is built after indexing, when requested, and is stored in
+ * the file "blockmax.dat" in the index folder.
+ *
+ */
+public class BlockMaxPostings {
+
+	/** name of the file storing the block-max metadata in the index folder */
+	public static final String FILE_NAME = "blockmax.dat";
+	/** number of postings in each block */
+	public static final int BLOCK_SIZE = 64;
+
+	/** blocks of a single posting list */
+	private static class BlockList {
+
+		private int[] lastDocs;
+		private int[] maxFreqs;
+	}
+	private Map<Integer, BlockList> lists;
+	private int numDocs;
+
+	private BlockMaxPostings(int numDocs, Map<Integer, BlockList> lists) {
+		this.numDocs = numDocs;
+		this.lists = lists;
+	}
+
+	/**
+	 * Writes the block-max metadata of all the hashes in the index.
+	 *
+	 * @param reader  reader for the (optimized) index
+	 * @param index   index folder
+	 * @throws IOException
+	 */
+	public static void write(IndexReader reader, File index) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(new File(index, FILE_NAME))));
+		int numHashes = 0;
+		TermEnum hashes = reader.terms(new Term("CONTENT", ""));
+		do {
+			Term t = hashes.term();
+			if (t == null || !t.field().equals("CONTENT"))
+				break;
+			numHashes++;
+		} while (hashes.next());
+		hashes.close();
+
+		out.writeInt(reader.maxDoc());
+		out.writeInt(numHashes);
+		hashes = reader.terms(new Term("CONTENT", ""));
+		for (int h = 0; h < numHashes; h++, hashes.next()) {
+			Term curHash = hashes.term();
+			int nblocks = (reader.docFreq(curHash) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			out.writeInt(Integer.parseInt(curHash.text()));
+			out.writeInt(nblocks);
+			TermDocs td = reader.termDocs(curHash);
+			int n = 0, maxFreq = 0, lastDoc = 0;
+			while (td.next()) {
+				lastDoc = td.doc();
+				maxFreq = Math.max(maxFreq, td.freq());
+				if (++n == BLOCK_SIZE) {
+					out.writeInt(lastDoc);
+					out.writeInt(maxFreq);
+					n = maxFreq = 0;
+				}
+			}
+			if (n > 0) {
+				out.writeInt(lastDoc);
+				out.writeInt(maxFreq);
+			}
+			td.close();
+		}
+		hashes.close();
+		out.close();
+	}
+
+	/**
+	 * Loads the block-max metadata stored in the index folder.
+	 *
+	 * @param index   index folder
+	 * @throws IOException  if the file is missing, e.g. when the index was
+	 *                      built without block-max metadata
+	 */
+	public static BlockMaxPostings load(File index) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(new File(index, FILE_NAME))));
+		try {
+			int numDocs = in.readInt();
+			int numHashes = in.readInt();
+			Map<Integer, BlockList> lists = new HashMap<Integer, BlockList>(2 * numHashes);
+			for (int h = 0; h < numHashes; h++) {
+				int hash = in.readInt();
+				BlockList l = new BlockList();
+				int nblocks = in.readInt();
+				l.lastDocs = new int[nblocks];
+				l.maxFreqs = new int[nblocks];
+				for (int b = 0; b < nblocks; b++) {
+					l.lastDocs[b] = in.readInt();
+					l.maxFreqs[b] = in.readInt();
+				}
+				lists.put(hash, l);
+			}
+			return new BlockMaxPostings(numDocs, lists);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return number of documents (segments) in the index the metadata refers to */
+	public int getNumberOfDocuments() {
+		return numDocs;
+	}
+
+	/**
+	 * Creates an evaluator which skips the blocks that cannot change the
+	 * result of a query segment.
+	 *
+	 * @param reader  reader for the index the metadata has been built from
+	 * @param songs   song of each segment in the index
+	 */
+	SegmentEvaluator getEvaluator(IndexReader reader, SegmentSongs songs) {
+		return new BlockMaxEvaluator(reader, songs);
+	}
+
+	/** buffered cursor on the posting list of a hash */
+	private static class Cursor {
+
+		private TermDocs td;
+		private BlockList bl;
+		private int[] docs = new int[128];
+		private int[] freqs = new int[128];
+		private int pointer, pointerMax;
+		// current document, and current block
+		private int doc, blk;
+		// upper bound for the score of a posting (normalized query term frequency)
+		private float cap;
+
+		private void reset(TermDocs td, BlockList bl, float cap) throws IOException {
+			this.td = td;
+			this.bl = bl;
+			this.cap = cap;
+			blk = 0;
+			pointer = pointerMax = 0;
+			refill();
+		}
+
+		private void refill() throws IOException {
+			pointerMax = td.read(docs, freqs);
+			pointer = 0;
+			if (pointerMax == 0) {
+				doc = Integer.MAX_VALUE;
+				td.close();
+				td = null;
+			} else {
+				doc = docs[0];
+			}
+		}
+
+		private int freq() {
+			return freqs[pointer];
+		}
+
+		private void next() throws IOException {
+			if (++pointer < pointerMax)
+				doc = docs[pointer];
+			else
+				refill();
+		}
+
+		// advance to the first document >= target
+		private void skipTo(int target) throws IOException {
+			for (pointer++; pointer < pointerMax; pointer++)
+				if (docs[pointer] >= target) {
+					doc = docs[pointer];
+					return;
+				}
+			if (td.skipTo(target)) {
+				pointer = 0;
+				pointerMax = 1;
+				docs[0] = doc = td.doc();
+				freqs[0] = td.freq();
+			} else {
+				doc = Integer.MAX_VALUE;
+				td.close();
+				td = null;
+			}
+		}
+	}
+
+	/**
+	 * Evaluation with block-max skipping.
+	 * Documents are grouped in runs of consecutive documents of the same song;
+	 * the best score of each run is kept. The documents are processed in ranges
+	 * where the current block of every posting list does not change: a range is
+	 * skipped when the upper bound for its documents does not exceed the best
+	 * score of any of the runs overlapping it, otherwise its postings are
+	 * accumulated list by list.
+	 */
+	private class BlockMaxEvaluator implements SegmentEvaluator {
+
+		private IndexReader reader;
+		private SegmentSongs.MaxScores scores;
+		// run of each document, first document and best score of each run
+		private int[] runOfDoc;
+		private int[] runStart;
+		private float[] runBest;
+		private int[] touchedRuns;
+		// score accumulators for the documents of the current range
+		private float[] acc;
+		private int[] touchedDocs;
+		private Cursor[] cursors = new Cursor[0];
+
+		private BlockMaxEvaluator(IndexReader reader, SegmentSongs songs) {
+			this.reader = reader;
+			this.scores = songs.new MaxScores();
+			int n = songs.getNumberOfSegments();
+			runOfDoc = new int[n];
+			int[] starts = new int[n];
+			int nruns = 0;
+			for (int d = 0; d < n; d++) {
+				if (d == 0 || songs.getSong(d) != songs.getSong(d - 1))
+					starts[nruns++] = d;
+				runOfDoc[d] = nruns - 1;
+			}
+			runStart = Arrays.copyOf(starts, nruns);
+			runBest = new float[nruns];
+			touchedRuns = new int[nruns];
+			acc = new float[n];
+			touchedDocs = new int[n];
+		}
+
+		public Map<String, Double> evaluate(QueryParser queryParser, int segmentNumber) throws IOException {
+			float docsSegmentNorm = queryParser.getDocumentSegmentNorm();
+			int querySegmentLength = queryParser.getQuerySegmentLength();
+			Map<Integer, Integer> hashes = queryParser.getHashesFromSegment(segmentNumber);
+			if (cursors.length < hashes.size()) {
+				Cursor[] c = Arrays.copyOf(cursors, hashes.size());
+				for (int i = cursors.length; i < c.length; i++)
+					c[i] = new Cursor();
+				cursors = c;
+			}
+			int n = 0;
+			for (Map.Entry<Integer, Integer> e : hashes.entrySet()) {
+				BlockList l = lists.get(e.getKey());
+				if (l == null)
+					continue; // not in the index
+				cursors[n++].reset(reader.termDocs(new Term("CONTENT", Integer.toString(e.getKey()))),
+								l, 1.0f * e.getValue() / querySegmentLength);
+			}
+			int ntouchedRuns = 0;
+			while (true) {
+				int d = Integer.MAX_VALUE;
+				for (int i = 0; i < n; i++)
+					d = Math.min(d, cursors[i].doc);
+				if (d == Integer.MAX_VALUE)
+					break;
+				// range [d,e] where the current block of each list does not change
+				int e = Integer.MAX_VALUE;
+				for (int i = 0; i < n; i++) {
+					Cursor c = cursors[i];
+					if (c.doc == Integer.MAX_VALUE)
+						continue;
+					while (c.bl.lastDocs[c.blk] < d)
+						c.blk++;
+					e = Math.min(e, c.bl.lastDocs[c.blk]);
+				}
+				// upper bound for the score of the documents in the range;
+				// terms are summed in the same order as the actual scores,
+				// so that rounding cannot make the bound smaller
+				float ub = 0;
+				for (int i = 0; i < n; i++)
+					if (cursors[i].doc <= e)
+						ub += Math.min(cursors[i].bl.maxFreqs[cursors[i].blk] * docsSegmentNorm, cursors[i].cap);
+				boolean skip = true;
+				for (int r = runOfDoc[d]; skip && r <= runOfDoc[e]; r++)
+					skip = ub <= runBest[r];
+				if (skip) {
+					for (int i = 0; i < n; i++)
+						if (cursors[i].doc <= e)
+							cursors[i].skipTo(e + 1);
+					continue;
+				}
+				// score the documents in the range
+				int ntouchedDocs = 0;
+				for (int i = 0; i < n; i++) {
+					Cursor c = cursors[i];
+					for (; c.doc <= e; c.next()) {
+						if (acc[c.doc] == 0)
+							touchedDocs[ntouchedDocs++] = c.doc;
+						acc[c.doc] += Math.min(c.freq() * docsSegmentNorm, c.cap);
+					}
+				}
+				for (int t = 0; t < ntouchedDocs; t++) {
+					int doc = touchedDocs[t];
+					int r = runOfDoc[doc];
+					if (runBest[r] == 0)
+						touchedRuns[ntouchedRuns++] = r;
+					if (acc[doc] > runBest[r])
+						runBest[r] = acc[doc];
+					acc[doc] = 0;
+				}
+			}
+			for (int t = 0; t < ntouchedRuns; t++) {
+				int r = touchedRuns[t];
+				scores.add(runStart[r], runBest[r]);
+				runBest[r] = 0;
+			}
+			return scores.drain();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+/**
+ * Defines a strategy for pruning hashes in the query which bounds the work
+ * needed to evaluate each segment query.
+ * <p>
+ * The cost of evaluating a hash is estimated by the length of its posting
+ * list, that is its document frequency normalized by the number of segments
+ * in the index. When the query parser has access to the index reader (see
+ * {@link QueryParser#setIndexReader(IndexReader)}) the document frequency is
+ * read live from the index with {@link IndexReader#docFreq(Term)};
+ * otherwise, e.g. when evaluating on the {@link HashIndex}, the normalized
+ * document frequency stored at indexing time is used (see
+ * {@link HashStats#getNdf()}), which is the same as long as the index is
+ * not modified after its statistics are computed. The hashes
+ * of a segment are considered from the most to the least discriminative one,
+ * i.e. by increasing document frequency, then by decreasing frequency in the
+ * segment; hashes are retained until the sum of their normalized document
+ * frequencies would exceed the budget. A budget of 2, for instance, allows at
+ * most twice as many postings as there are segments in the index for each
+ * segment query.
+ * <p>
+ * Hashes which do not appear in the index have no postings, and are pruned.
+ *
+ */
+public class CostBudgetQueryPruningStrategy implements QueryPruningStrategy {
+
+	// max sum of normalized document frequencies of the retained hashes
+	private double budget;
+
+	/**
+	 * @param budget
+	 *            max number of postings evaluated for each segment query,
+	 *            as a multiple of the number of segments in the index
+	 */
+	public CostBudgetQueryPruningStrategy(double budget) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("the cost budget must be positive");
+		this.budget = budget;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy#pruneHash(int,
+	 * double, it.unipd.dei.ims.falcon.ranking.HashStats)
+	 */
+	public boolean pruneHash(int hash, double ntf, HashStats hs) {
+		return hs == null || hs.getNdf() > budget;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy#pruneSegment(java.util.Map,
+	 * int, java.util.Map, org.apache.lucene.index.IndexReader)
+	 */
+	public Set<Integer> pruneSegment(Map<Integer, Integer> segment, int segmentLength,
+					Map<Integer, HashStats> hashStats, IndexReader reader) throws IOException {
+		return pruneSegment(segment, reader == null ? hashStats : readHashStats(segment, reader));
+	}
+
+	/** selects the hashes to prune with the given document frequencies */
+	private Set<Integer> pruneSegment(final Map<Integer, Integer> segment, final Map<Integer, HashStats> hashStats) {
+		Set<Integer> pruned = new HashSet<Integer>();
+		List<Integer> candidates = new ArrayList<Integer>(segment.size());
+		for (int hash : segment.keySet()) {
+			if (hashStats.get(hash) == null)
+				pruned.add(hash);
+			else
+				candidates.add(hash);
+		}
+		// most discriminative first
+		Collections.sort(candidates, new Comparator<Integer>() {
+
+			public int compare(Integer h1, Integer h2) {
+				int c = Double.compare(hashStats.get(h1).getNdf(), hashStats.get(h2).getNdf());
+				if (c == 0)
+					c = segment.get(h2) - segment.get(h1);
+				if (c == 0)
+					c = h1.compareTo(h2);
+				return c;
+			}
+		});
+		double cost = 0;
+		for (int hash : candidates) {
+			double ndf = hashStats.get(hash).getNdf();
+			if (cost + ndf <= budget)
+				cost += ndf;
+			else
+				pruned.add(hash);
+		}
+		return pruned;
+	}
+
+	/** @return the normalized document frequencies of the hashes of a segment, read from the index */
+	private static Map<Integer, HashStats> readHashStats(Map<Integer, Integer> segment, IndexReader reader) throws IOException {
+		Map<Integer, HashStats> hashStats = new HashMap<Integer, HashStats>();
+		double numSegments = reader.numDocs();
+		for (int hash : segment.keySet()) {
+			int df = reader.docFreq(new Term("CONTENT", Integer.toString(hash)));
+			if (df > 0)
+				hashStats.put(hash, new HashStats(df / numSegments, 0, 0));
+		}
+		return hashStats;
+	}
+
+	@Override
+	/** print out in pretty form */
+	public String toString() {
+		return String.format("budget:%f", budget);
+	}
+
+	/** two strategies are equal if they prune the same hashes, e.g. for caching query results */
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof CostBudgetQueryPruningStrategy
+						&& Double.compare(budget, ((CostBudgetQueryPruningStrategy) o).budget) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return Double.valueOf(budget).hashCode();
+	}
+}
@@ -0,0 +1,295 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.FieldCache;
+
+/**
+ * Compact inverted index of the hashes, alternative to the Lucene index
+ * at query time only.
+ * <p>
+ * Hashes are bounded integers, and the scoring function only needs the
+ * frequency of a hash in each segment, hence a purpose-built structure is
+ * much smaller than the general-purpose Lucene postings. The index is made
+ * of two files in the index folder:
+ * <ul>
+ *  <li> "hashindex.dir": the number of segments, the segment length, the
+ *       song each segment belongs to, and the directory of the hashes, that
+ *       is, for each hash in increasing order, the number of postings and
+ *       the offset of the posting list in the postings file; this file is
+ *       loaded in memory;
+ *  <li> "hashindex.post": the posting lists, which are memory-mapped.
+ *       Each posting is encoded as a variable-length integer, 7 bits per
+ *       byte, holding the gap from the previous segment identifier shifted
+ *       left by one; the lowest bit is set when the frequency is 1, which
+ *       is by far the most common case, otherwise the frequency follows as
+ *       another variable-length integer.
+ * </ul>
+ * Segments are scored by {@link #getEvaluator()} with per-segment
+ * accumulators, with the same scoring function of {@link HashScorer}.
+ * <p>
+ * This is not a separate indexing backend: songs are always indexed with
+ * Lucene, and the compact index is a side structure written from the Lucene
+ * index after indexing, when requested (see
+ * {@link it.unipd.dei.ims.falcon.indexing.Indexing#setHashIndex(boolean)}),
+ * and re-built whenever the index is updated. The Lucene index is thus
+ * still required to build, update and maintain the collection; it is only
+ * the evaluation of the queries that can do without it. The postings file
+ * cannot exceed 2GB.
+ *
+ */
+public class HashIndex {
+
+	/** name of the file storing the hash directory in the index folder */
+	public static final String FILE_NAME = "hashindex.dir";
+	/** name of the file storing the posting lists in the index folder */
+	public static final String POSTINGS_FILE_NAME = "hashindex.post";
+
+	private int segmentLength;
+	private SegmentSongs songs;
+	// hashes in increasing order, with number of postings and offset of
+	// the posting list of each of them
+	private int[] hashes;
+	private int[] docFreqs;
+	private int[] offsets;
+	private ByteBuffer postings;
+
+	private HashIndex(int segmentLength, SegmentSongs songs, int[] hashes, int[] docFreqs, int[] offsets, ByteBuffer postings) {
+		this.segmentLength = segmentLength;
+		this.songs = songs;
+		this.hashes = hashes;
+		this.docFreqs = docFreqs;
+		this.offsets = offsets;
+		this.postings = postings;
+	}
+
+	/**
+	 * Writes the compact index of all the hashes in the index.
+	 *
+	 * @param reader  reader for the (optimized) index
+	 * @param index   index folder
+	 * @throws IOException
+	 */
+	public static void write(IndexReader reader, File index) throws IOException {
+		// distinct hashes, in numerical order
+		int[] hashList = new int[16];
+		int numHashes = 0;
+		TermEnum terms = reader.terms(new Term("CONTENT", ""));
+		do {
+			Term t = terms.term();
+			if (t == null || !t.field().equals("CONTENT"))
+				break;
+			if (numHashes == hashList.length)
+				hashList = Arrays.copyOf(hashList, 2 * numHashes);
+			hashList[numHashes++] = Integer.parseInt(t.text());
+		} while (terms.next());
+		terms.close();
+		hashList = Arrays.copyOf(hashList, numHashes);
+		Arrays.sort(hashList);
+
+		int[] docFreqs = new int[numHashes];
+		int[] offsets = new int[numHashes];
+		OutputStream post = new BufferedOutputStream(new FileOutputStream(new File(index, POSTINGS_FILE_NAME)));
+		long offset = 0;
+		for (int h = 0; h < numHashes; h++) {
+			offsets[h] = (int) offset;
+			TermDocs td = reader.termDocs(new Term("CONTENT", Integer.toString(hashList[h])));
+			int prevDoc = 0;
+			while (td.next()) {
+				int freq = td.freq();
+				offset += writeVInt(post, ((td.doc() - prevDoc) << 1) | (freq == 1 ? 1 : 0));
+				if (freq != 1)
+					offset += writeVInt(post, freq);
+				prevDoc = td.doc();
+				docFreqs[h]++;
+			}
+			td.close();
+			if (offset > Integer.MAX_VALUE) {
+				post.close();
+				throw new IOException("hash index postings exceed 2GB");
+			}
+		}
+		post.close();
+
+		SegmentSongs songs = new SegmentSongs(FieldCache.DEFAULT.getStrings(reader, "TITLE"));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(new File(index, FILE_NAME))));
+		out.writeInt(reader.maxDoc());
+		out.writeInt(reader.maxDoc() == 0 ? 0 : Integer.parseInt(reader.document(0).get("LENGTH")));
+		out.writeInt(songs.getNumberOfSongs());
+		for (int s = 0; s < songs.getNumberOfSongs(); s++)
+			out.writeUTF(songs.getSongId(s));
+		for (int d = 0; d < reader.maxDoc(); d++)
+			out.writeInt(songs.getSong(d));
+		out.writeInt(numHashes);
+		for (int h = 0; h < numHashes; h++) {
+			out.writeInt(hashList[h]);
+			out.writeInt(docFreqs[h]);
+			out.writeInt(offsets[h]);
+		}
+		out.close();
+	}
+
+	/** writes a variable-length integer, returns the number of bytes written */
+	private static int writeVInt(OutputStream out, int v) throws IOException {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+			n++;
+		}
+		out.write(v);
+		return n;
+	}
+
+	/**
+	 * Loads the compact index stored in the index folder.
+	 *
+	 * @param index   index folder
+	 * @throws IOException  if the files are missing, e.g. when the index was
+	 *                      built without the compact index
+	 */
+	public static HashIndex load(File index) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(new File(index, FILE_NAME))));
+		int segmentLength;
+		SegmentSongs songs;
+		int[] hashes, docFreqs, offsets;
+		try {
+			int numDocs = in.readInt();
+			segmentLength = in.readInt();
+			String[] songIds = new String[in.readInt()];
+			for (int s = 0; s < songIds.length; s++)
+				songIds[s] = in.readUTF();
+			int[] songOfSegment = new int[numDocs];
+			for (int d = 0; d < numDocs; d++)
+				songOfSegment[d] = in.readInt();
+			songs = new SegmentSongs(songOfSegment, songIds);
+			int numHashes = in.readInt();
+			hashes = new int[numHashes];
+			docFreqs = new int[numHashes];
+			offsets = new int[numHashes];
+			for (int h = 0; h < numHashes; h++) {
+				hashes[h] = in.readInt();
+				docFreqs[h] = in.readInt();
+				offsets[h] = in.readInt();
+			}
+		} finally {
+			in.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(new File(index, POSTINGS_FILE_NAME), "r");
+		ByteBuffer postings;
+		try {
+			postings = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			// the mapping remains valid after the channel is closed
+			raf.close();
+		}
+		return new HashIndex(segmentLength, songs, hashes, docFreqs, offsets, postings);
+	}
+
+	/** @return number of documents (segments) in the index */
+	public int getNumberOfDocuments() {
+		return songs.getNumberOfSegments();
+	}
+
+	/** @return number of hashes in each segment of the index */
+	public int getSegmentLength() {
+		return segmentLength;
+	}
+
+	/** @return a new evaluator for query segments, which must be used by a single thread */
+	public SegmentEvaluator getEvaluator() {
+		return new HashIndexEvaluator();
+	}
+
+	/** term-at-a-time evaluator over the compact posting lists */
+	private class HashIndexEvaluator implements SegmentEvaluator {
+
+		// per-document score accumulators, and the documents which have been scored
+		private float[] acc;
+		private int[] touched;
+		private SegmentSongs.MaxScores scores;
+		// current position in the postings
+		private int pos;
+
+		private HashIndexEvaluator() {
+			acc = new float[songs.getNumberOfSegments()];
+			touched = new int[songs.getNumberOfSegments()];
+			scores = songs.new MaxScores();
+		}
+
+		private int readVInt() {
+			byte b = postings.get(pos++);
+			int v = b & 0x7F;
+			for (int shift = 7; b < 0; shift += 7) {
+				b = postings.get(pos++);
+				v |= (b & 0x7F) << shift;
+			}
+			return v;
+		}
+
+		public Map<String, Double> evaluate(QueryParser queryParser, int segmentNumber) throws IOException {
+			float docsSegmentNorm = queryParser.getDocumentSegmentNorm();
+			int querySegmentLength = queryParser.getQuerySegmentLength();
+			int ntouched = 0;
+			for (Map.Entry<Integer, Integer> e : queryParser.getHashesFromSegment(segmentNumber).entrySet()) {
+				int h = Arrays.binarySearch(hashes, e.getKey());
+				if (h < 0)
+					continue;
+				float norm_qtf = 1.0f * e.getValue() / querySegmentLength;
+				// score of the postings with frequency 1
+				float score1 = Math.min(docsSegmentNorm, norm_qtf);
+				pos = offsets[h];
+				int doc = 0;
+				for (int i = docFreqs[h]; i > 0; i--) {
+					int v = readVInt();
+					doc += v >>> 1;
+					float score = (v & 1) != 0 ? score1 : Math.min(readVInt() * docsSegmentNorm, norm_qtf);
+					if (acc[doc] == 0)
+						touched[ntouched++] = doc;
+					acc[doc] += score;
+				}
+			}
+			// retain the max score for each song, and reset accumulators
+			for (int i = 0; i < ntouched; i++) {
+				int d = touched[i];
+				scores.add(d, acc[d]);
+				acc[d] = 0;
+			}
+			return scores.drain();
+		}
+	}
+}
@@ -82,6 +82,12 @@ public class HashQuery extends Query {
 
 		@Override
 		public Scorer scorer(IndexReader reader, boolean scoreDocsInOrder, boolean topScorer) throws IOException {
+			PostingListCache cache = PostingListCache.getInstance();
+			if (cache != null) {
+				PostingListCache.PostingList postings = cache.get(reader, term);
+				if (postings != null)
+					return new HashScorer(this, postings, similarity, querySegmentLength, docsSegmentNorm);
+			}
 			TermDocs termDocs = reader.termDocs(term);
 
 			if (termDocs == null)
@@ -16,6 +16,7 @@ package it.unipd.dei.ims.falcon.ranking;
  * limitations under the License.
  */
 import java.io.IOException;
+import java.util.LinkedList;
 
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.search.Collector;
@@ -27,9 +28,25 @@ import org.apache.lucene.search.Weight;
  * Specific implementation of {@link org.apache.lucene.search.Scorer} for an {@link HashQuery}.
  * This class compute the minimum between the frequency of occurrence of an hash
  * in the query and its occurrence in the document segments
+ * <p>
+ * Postings are decoded in bulk into buffers of configurable size (see
+ * {@link #setBufferSize(int)}), which are recycled among the scorers created
+ * by the same thread once their posting list is exhausted. Posting lists
+ * cached by {@link PostingListCache} are read directly from the cache.
  */
 final class HashScorer extends Scorer {
 
+    /** default number of postings decoded for each buffer refill */
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+    private static int bufferSize = DEFAULT_BUFFER_SIZE;
+    // buffers released by exhausted scorers, for each thread
+    private static final ThreadLocal<LinkedList<int[][]>> bufferPool = new ThreadLocal<LinkedList<int[][]>>() {
+
+        @Override
+        protected LinkedList<int[][]> initialValue() {
+            return new LinkedList<int[][]>();
+        }
+    };
     @SuppressWarnings("unused")
     private static final float[] SIM_NORM_DECODER = Similarity.getNormDecoder();
     private Weight weight;
@@ -38,12 +55,25 @@ final class HashScorer extends Scorer {
     private byte[] norms;
     private float weightValue;
     private int doc = -1;
-    private final int[] docs = new int[32]; // buffered doc numbers
-    private final int[] freqs = new int[32]; // buffered term freqs
+    private int[] docs; // buffered doc numbers
+    private int[] freqs; // buffered term freqs
     private int pointer;
     private int pointerMax;
     private int querySegmentLength;
     private float docsSegmentNorm;
+    // normalized query term frequency, upper bound for the score of each posting
+    private float norm_qtf;
+
+    /**
+     * Sets the number of postings decoded for each buffer refill, for the
+     * scorers created afterwards.
+     * @param size  buffer size, in postings
+     */
+    static void setBufferSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("buffer size must be positive");
+        bufferSize = size;
+    }
 
     /**
      * Creates a specific {@link org.apache.lucene.search.Scorer} for the current {@link HashQuery}
@@ -66,7 +96,8 @@ final class HashScorer extends Scorer {
         this.norms = norms;
         this.weightValue = weight.getValue();
         this.querySegmentLength = segmentLength;
-
+        this.norm_qtf = 1.0f * weightValue / querySegmentLength;
+        acquireBuffers();
     }
 
     /**
@@ -90,7 +121,72 @@ final class HashScorer extends Scorer {
         this.weightValue = weight.getValue();
         this.querySegmentLength = querySegmentLength;
         this.docsSegmentNorm = docsSegmentNorm;
+        this.norm_qtf = 1.0f * weightValue / querySegmentLength;
+        acquireBuffers();
+    }
 
+    /**
+     * Creates a specific {@link org.apache.lucene.search.Scorer} for the current {@link HashQuery},
+     * reading a cached posting list
+     *
+     * @param weight
+     *          {@link org.apache.lucene.search.Weight} for the current {@link HashQuery}
+     * @param postings
+     *          decoded posting list of the current hash, which is not modified
+     * @param similarity
+     *          {@link org.apache.lucene.search.Similarity}
+     * @param querySegmentLength
+     *          number of hash per query segment
+     * @param docsSegmentNorm
+     *          document norm, i.e. reciprocal of the document segment length
+     */
+    HashScorer(Weight weight, PostingListCache.PostingList postings, Similarity similarity, int querySegmentLength, float docsSegmentNorm) {
+        super(similarity);
+        this.weight = weight;
+        this.weightValue = weight.getValue();
+        this.querySegmentLength = querySegmentLength;
+        this.docsSegmentNorm = docsSegmentNorm;
+        this.norm_qtf = 1.0f * weightValue / querySegmentLength;
+        docs = postings.docs;
+        freqs = postings.freqs;
+        pointer = -1;
+        pointerMax = postings.length;
+    }
+
+    private void acquireBuffers() {
+        LinkedList<int[][]> pool = bufferPool.get();
+        int[][] b = pool.poll();
+        while (b != null && b[0].length != bufferSize)
+            b = pool.poll(); // buffer size changed, drop old buffers
+        if (b == null)
+            b = new int[][]{new int[bufferSize], new int[bufferSize]};
+        docs = b[0];
+        freqs = b[1];
+    }
+
+    /**
+     * Refills the buffers from the underlying posting list; when the list is
+     * exhausted, closes it and releases the buffers.
+     * @return false if there are no more postings
+     */
+    private boolean refill() throws IOException {
+        if (termDocs == null) { // cached list
+            docs = freqs = null;
+            return false;
+        }
+        pointerMax = termDocs.read(docs, freqs);
+        pointer = 0;
+        if (pointerMax != 0)
+            return true;
+        release();
+        return false;
+    }
+
+    /** closes the posting list, and releases the buffers */
+    private void release() throws IOException {
+        termDocs.close(); // close stream
+        bufferPool.get().add(new int[][]{docs, freqs});
+        docs = freqs = null;
     }
 
     @Override
@@ -101,21 +197,21 @@ final class HashScorer extends Scorer {
     @Override
     protected boolean score(Collector c, int end, int firstDocID) throws IOException {
         c.setScorer(this);
-        while (doc < end) { // for docs in window
-            c.collect(doc); // collect score
-            if (++pointer >= pointerMax) {
-                pointerMax = termDocs.read(docs, freqs); // refill buffers
-                if (pointerMax != 0) {
-                    pointer = 0;
-                } else {
-                    termDocs.close(); // close stream
-                    doc = Integer.MAX_VALUE; // set to sentinel value
-                    return false;
-                }
+        if (doc == NO_MORE_DOCS)
+            return false;
+        while (true) {
+            // collect all the buffered docs in window
+            for (; pointer < pointerMax; pointer++) {
+                doc = docs[pointer];
+                if (doc >= end)
+                    return true;
+                c.collect(doc);
+            }
+            if (!refill()) {
+                doc = NO_MORE_DOCS; // set to sentinel value
+                return false;
             }
-            doc = docs[pointer];
         }
-        return true;
     }
 
     @Override
@@ -125,16 +221,11 @@ final class HashScorer extends Scorer {
 
     @Override
     public int nextDoc() throws IOException {
+        if (doc == NO_MORE_DOCS)
+            return doc;
         pointer++;
-        if (pointer >= pointerMax) {
-            pointerMax = termDocs.read(docs, freqs); // refill buffer
-            if (pointerMax != 0) {
-                pointer = 0;
-            } else {
-                termDocs.close(); // close stream
-                return doc = NO_MORE_DOCS;
-            }
-        }
+        if (pointer >= pointerMax && !refill())
+            return doc = NO_MORE_DOCS;
         doc = docs[pointer];
         return doc;
     }
@@ -148,16 +239,16 @@ final class HashScorer extends Scorer {
      */
     public float score() {
         assert doc != -1;
-        int f = freqs[pointer];
         // float norm_dtf = norms == null ? f*docsSegmentNorm : f *
         // SIM_NORM_DECODER[norms[doc] & 0xFF];
-        float norm_dtf = f * docsSegmentNorm;
-        float norm_qtf = 1.0f * weightValue / querySegmentLength;
+        float norm_dtf = freqs[pointer] * docsSegmentNorm;
         return Math.min(norm_dtf, norm_qtf);
     }
 
     @Override
     public int advance(int target) throws IOException {
+        if (doc == NO_MORE_DOCS)
+            return doc;
         // first scan in cache
         for (pointer++; pointer < pointerMax; pointer++) {
             if (docs[pointer] >= target) {
@@ -165,6 +256,10 @@ final class HashScorer extends Scorer {
             }
         }
         // not found in cache, seek underlying stream
+        if (termDocs == null) { // cached list
+            docs = freqs = null;
+            return doc = NO_MORE_DOCS;
+        }
         boolean result = termDocs.skipTo(target);
         if (result) {
             pointerMax = 1;
@@ -172,6 +267,7 @@ final class HashScorer extends Scorer {
             docs[pointer] = doc = termDocs.doc();
             freqs[pointer] = termDocs.freq();
         } else {
+            release();
             doc = NO_MORE_DOCS;
         }
         return doc;
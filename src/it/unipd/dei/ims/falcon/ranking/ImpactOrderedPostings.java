@@ -0,0 +1,236 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Impact-ordered copy of the posting lists of the "CONTENT" field.
+ * <p>
+ * The score of a posting is min(f * docsSegmentNorm, qtf / querySegmentLength),
+ * where f is the frequency of the hash in the document segment, hence postings
+ * with high frequency dominate the score of a segment. For each hash, this
+ * structure stores the postings grouped by frequency, groups being sorted by
+ * decreasing frequency and documents within a group by increasing identifier.
+ * An approximate evaluation can read only the first postings of each list,
+ * that is the ones with the highest impact, and skip the remaining part.
+ * <p>
+ * The structure is built after indexing, when requested, and is stored in
+ * the file "impact_postings.dat" in the index folder. Document identifiers
+ * are the Lucene identifiers of the optimized index, therefore the file is
+ * re-built whenever the index is updated.
+ *
+ */
+public class ImpactOrderedPostings {
+
+	/** name of the file storing impact-ordered postings in the index folder */
+	public static final String FILE_NAME = "impact_postings.dat";
+
+	/** postings of a single hash, grouped by decreasing frequency */
+	private static class ImpactList {
+
+		// frequency of the postings in each group
+		private int[] groupFreqs;
+		// end (exclusive) of each group in "docs"
+		private int[] groupEnds;
+		private int[] docs;
+	}
+	private Map<Integer, ImpactList> lists;
+	private int numDocs;
+
+	private ImpactOrderedPostings(int numDocs, Map<Integer, ImpactList> lists) {
+		this.numDocs = numDocs;
+		this.lists = lists;
+	}
+
+	/**
+	 * Writes the impact-ordered postings of all the hashes in the index.
+	 *
+	 * @param reader  reader for the (optimized) index
+	 * @param index   index folder
+	 * @throws IOException
+	 */
+	public static void write(IndexReader reader, File index) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(new File(index, FILE_NAME))));
+		SortedMap<Integer, long[]> postings = new TreeMap<Integer, long[]>();
+		TermEnum hashes = reader.terms(new Term("CONTENT", ""));
+		do {
+			Term curHash = hashes.term();
+			if (curHash == null || !curHash.field().equals("CONTENT"))
+				break;
+			// each posting is encoded so that natural ordering sorts by
+			// decreasing frequency first, then by increasing document
+			long[] pl = new long[reader.docFreq(curHash)];
+			int n = 0;
+			TermDocs td = reader.termDocs(curHash);
+			while (td.next())
+				pl[n++] = ((long) (Integer.MAX_VALUE - td.freq()) << 32) | td.doc();
+			td.close();
+			Arrays.sort(pl, 0, n);
+			postings.put(Integer.parseInt(curHash.text()), n == pl.length ? pl : Arrays.copyOf(pl, n));
+		} while (hashes.next());
+		hashes.close();
+
+		out.writeInt(reader.maxDoc());
+		out.writeInt(postings.size());
+		for (Map.Entry<Integer, long[]> e : postings.entrySet()) {
+			long[] pl = e.getValue();
+			int ngroups = 0;
+			for (int i = 0; i < pl.length; i++)
+				if (i == 0 || (pl[i] >>> 32) != (pl[i - 1] >>> 32))
+					ngroups++;
+			out.writeInt(e.getKey());
+			out.writeInt(ngroups);
+			int start = 0;
+			while (start < pl.length) {
+				int end = start;
+				while (end < pl.length && (pl[end] >>> 32) == (pl[start] >>> 32))
+					end++;
+				out.writeInt(Integer.MAX_VALUE - (int) (pl[start] >>> 32));
+				out.writeInt(end - start);
+				for (int i = start; i < end; i++)
+					out.writeInt((int) pl[i]);
+				start = end;
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * Loads the impact-ordered postings stored in the index folder.
+	 *
+	 * @param index   index folder
+	 * @throws IOException  if the file is missing, e.g. when the index was
+	 *                      built without impact-ordered postings
+	 */
+	public static ImpactOrderedPostings load(File index) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(new File(index, FILE_NAME))));
+		try {
+			int numDocs = in.readInt();
+			int numHashes = in.readInt();
+			Map<Integer, ImpactList> lists = new HashMap<Integer, ImpactList>(2 * numHashes);
+			for (int h = 0; h < numHashes; h++) {
+				int hash = in.readInt();
+				ImpactList l = new ImpactList();
+				int ngroups = in.readInt();
+				l.groupFreqs = new int[ngroups];
+				l.groupEnds = new int[ngroups];
+				int[] docs = new int[16];
+				int n = 0;
+				for (int g = 0; g < ngroups; g++) {
+					l.groupFreqs[g] = in.readInt();
+					int count = in.readInt();
+					if (n + count > docs.length)
+						docs = Arrays.copyOf(docs, Math.max(n + count, 2 * docs.length));
+					for (int i = 0; i < count; i++)
+						docs[n++] = in.readInt();
+					l.groupEnds[g] = n;
+				}
+				l.docs = n == docs.length ? docs : Arrays.copyOf(docs, n);
+				lists.put(hash, l);
+			}
+			return new ImpactOrderedPostings(numDocs, lists);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return number of documents (segments) in the index the postings refer to */
+	public int getNumberOfDocuments() {
+		return numDocs;
+	}
+
+	/**
+	 * Creates an evaluator which reads at most "maxPostingsPerHash" postings
+	 * for each hash of a query segment, starting from the highest impact ones.
+	 *
+	 * @param segmentSongIds      song identifier of each document (segment) in the index
+	 * @param maxPostingsPerHash  number of postings read for each hash
+	 */
+	public SegmentEvaluator getEvaluator(String[] segmentSongIds, int maxPostingsPerHash) {
+		return new ImpactOrderedEvaluator(segmentSongIds, maxPostingsPerHash);
+	}
+
+	/** early terminating evaluator, see {@link #getEvaluator(java.lang.String[], int)} */
+	private class ImpactOrderedEvaluator implements SegmentEvaluator {
+
+		private String[] segmentSongIds;
+		private int maxPostingsPerHash;
+		// per-document score accumulators, and the documents which have been scored
+		private float[] acc;
+		private int[] touched;
+
+		private ImpactOrderedEvaluator(String[] segmentSongIds, int maxPostingsPerHash) {
+			this.segmentSongIds = segmentSongIds;
+			this.maxPostingsPerHash = maxPostingsPerHash;
+			acc = new float[numDocs];
+			touched = new int[numDocs];
+		}
+
+		public Map<String, Double> evaluate(QueryParser queryParser, int segmentNumber) throws IOException {
+			float docsSegmentNorm = queryParser.getDocumentSegmentNorm();
+			int querySegmentLength = queryParser.getQuerySegmentLength();
+			int ntouched = 0;
+			for (Map.Entry<Integer, Integer> e : queryParser.getHashesFromSegment(segmentNumber).entrySet()) {
+				ImpactList l = lists.get(e.getKey());
+				if (l == null)
+					continue;
+				float norm_qtf = 1.0f * e.getValue() / querySegmentLength;
+				int end = Math.min(maxPostingsPerHash, l.docs.length);
+				int p = 0;
+				for (int g = 0; p < end; g++) {
+					float score = Math.min(l.groupFreqs[g] * docsSegmentNorm, norm_qtf);
+					int groupEnd = Math.min(l.groupEnds[g], end);
+					for (; p < groupEnd; p++) {
+						int d = l.docs[p];
+						if (acc[d] == 0)
+							touched[ntouched++] = d;
+						acc[d] += score;
+					}
+				}
+			}
+			// retain the max score for each song, and reset accumulators
+			Map<String, Double> songid2maxscore = new TreeMap<String, Double>();
+			for (int i = 0; i < ntouched; i++) {
+				int d = touched[i];
+				Double s = songid2maxscore.get(segmentSongIds[d]);
+				if (s == null || acc[d] > s)
+					songid2maxscore.put(segmentSongIds[d], Double.valueOf(acc[d]));
+				acc[d] = 0;
+			}
+			return songid2maxscore;
+		}
+	}
+}
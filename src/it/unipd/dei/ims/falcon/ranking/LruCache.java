@@ -0,0 +1,83 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache with least-recently-used eviction, bounded by the total size of the
+ * cached values, as measured by {@link #sizeOf}. Values larger than the
+ * maximum size are not cached. All the methods are thread-safe.
+ *
+ */
+abstract class LruCache<K, V> {
+
+	private final int maxSize;
+	private int size = 0;
+	// in access order, least recently used first
+	private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private long hits = 0;
+	private long misses = 0;
+
+	/** @param maxSize max total size of the cached values */
+	LruCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/** @return the size of a value */
+	protected abstract int sizeOf(V value);
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	/** @return the cached value, or null */
+	synchronized V get(K key) {
+		V value = entries.get(key);
+		if (value == null)
+			misses++;
+		else
+			hits++;
+		return value;
+	}
+
+	/** caches a value, evicting the least recently used ones if needed */
+	synchronized void put(K key, V value) {
+		int s = sizeOf(value);
+		if (s > maxSize)
+			return;
+		V old = entries.put(key, value);
+		if (old != null)
+			size -= sizeOf(old);
+		size += s;
+		Iterator<Map.Entry<K, V>> iter = entries.entrySet().iterator();
+		while (size > maxSize) {
+			size -= sizeOf(iter.next().getValue());
+			iter.remove();
+		}
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,82 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Evaluates query segments with a Lucene search of the corresponding
+ * {@link SegmentQuery}; all the matching index segments are scored, and
+ * the max score of each song is retained while collecting.
+ *
+ */
+public class LuceneSegmentEvaluator implements SegmentEvaluator {
+
+	private IndexSearcher searcher;
+	private SongMaxCollector collector;
+
+	/**
+	 * @param searcher  searcher for the index
+	 * @param songs     song of each segment in the index
+	 */
+	LuceneSegmentEvaluator(IndexSearcher searcher, SegmentSongs songs) {
+		this.searcher = searcher;
+		this.collector = new SongMaxCollector(songs);
+	}
+
+	/** retains the max score of each song among the collected segments */
+	private static class SongMaxCollector extends Collector {
+
+		private SegmentSongs.MaxScores scores;
+		private Scorer scorer;
+		private int docBase;
+
+		private SongMaxCollector(SegmentSongs songs) {
+			scores = songs.new MaxScores();
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) throws IOException {
+			this.scorer = scorer;
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			scores.add(docBase + doc, scorer.score());
+		}
+
+		@Override
+		public void setNextReader(IndexReader reader, int docBase) throws IOException {
+			this.docBase = docBase;
+		}
+
+		@Override
+		public boolean acceptsDocsOutOfOrder() {
+			return true;
+		}
+	}
+
+	public Map<String, Double> evaluate(QueryParser queryParser, int segmentNumber) throws IOException {
+		searcher.search(queryParser.getQueryFromSegment(segmentNumber), collector);
+		return collector.scores.drain();
+	}
+}
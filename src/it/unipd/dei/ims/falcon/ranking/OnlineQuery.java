@@ -0,0 +1,226 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaConsumer;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaVector;
+import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Query on an unbounded stream of chroma vectors, e.g. extracted from live
+ * audio by {@link it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils#extractChromaFeatures(it.unipd.dei.ims.falcon.audio.AudioReader, int, ChromaConsumer)}.
+ * <p>
+ * Chroma vectors are hashed as they arrive, and each query segment is
+ * evaluated as soon as its last hash is added, for all the transpositions
+ * and all the shards in parallel; the previous segments are released, hence
+ * memory and the latency of each segment do not depend on the length of the
+ * stream. The score of a song is computed as in
+ * {@link QueryMethods#query(File, File, int, int, int, int, TranspositionEstimator, int, double, QueryPruningStrategy)},
+ * over the last segments only, and it is passed to a {@link Listener}.
+ * <p>
+ * Since the whole stream is not available, transpositions are estimated
+ * from a running key profile, the sum of the chroma vectors received with
+ * exponentially decaying weights; each chroma vector is rotated according
+ * to the profile up to that vector.
+ *
+ */
+public class OnlineQuery implements ChromaConsumer {
+
+	/** Receives the results of an online query, one segment at a time. */
+	public interface Listener {
+
+		/**
+		 * @param segmentNumber  number of the segment just evaluated, from 0
+		 * @param results        map from song identifier to its score over the last segments
+		 * @param latency        time to evaluate the segment, after its last hash, in ms
+		 */
+		public void segmentEvaluated(int segmentNumber, Map<String, Double> results, long latency) throws IOException;
+	}
+
+	private final int nranks;
+	private final double minkurt;
+	private final TranspositionEstimator tpe;
+	private final int ntransp;
+	private final double profileDecay;
+	private final int windowSegments;
+	private final Listener listener;
+	// opened shards of the index, released by close()
+	private final QueryMethods.SearchedIndex[] shards;
+	// parser and evaluator of each transposition, for each shard
+	private final QueryParser[][] parsers;
+	private final SegmentEvaluator[][] evaluators;
+	private final ExecutorService pool;
+	// running key profile, and current transpositions
+	private final float[] profile = new float[12];
+	private int[] keys = {0};
+	// for each transposition, max score of each song in the last segments, the most recent last
+	private final List<LinkedList<Map<String, Double>>> lastSegments = new ArrayList<LinkedList<Map<String, Double>>>();
+	private long vectors = 0;
+
+	/**
+	 * Starts an online query; the parameters are the ones of
+	 * {@link QueryMethods#query(File, File, int, int, int, int, TranspositionEstimator, int, double, QueryPruningStrategy)},
+	 * except subsampling which is applied while the chroma features are
+	 * extracted.
+	 *
+	 * @param keyHalfLife     number of chroma vectors after which the weight
+	 *                        of a vector in the key profile is halved
+	 * @param windowSegments  number of the last segments in the score of a song
+	 * @param listener        receives the results of each segment
+	 */
+	public OnlineQuery(File index, int hps, int overlap, int nranks, TranspositionEstimator tpe, int ntransp, double minkurt,
+					QueryPruningStrategy pruningStrategy, double keyHalfLife, int windowSegments, Listener listener)
+					throws IOException, QueryParsingException {
+		if (keyHalfLife <= 0 || windowSegments < 1)
+			throw new IllegalArgumentException("invalid online query parameters");
+		this.nranks = nranks;
+		this.minkurt = minkurt;
+		this.tpe = tpe;
+		this.ntransp = tpe == null ? 1 : ntransp;
+		this.profileDecay = Math.pow(.5, 1 / keyHalfLife);
+		this.windowSegments = windowSegments;
+		this.listener = listener;
+		shards = QueryMethods.openIndex(index);
+		parsers = new QueryParser[this.ntransp][shards.length];
+		evaluators = new SegmentEvaluator[this.ntransp][shards.length];
+		try {
+			for (int t = 0; t < this.ntransp; t++) {
+				for (int s = 0; s < shards.length; s++) {
+					parsers[t][s] = QueryMethods.newQueryParser(shards[s], pruningStrategy);
+					parsers[t][s].startQuery(hps, overlap);
+					evaluators[t][s] = shards[s].newSegmentEvaluator();
+				}
+			}
+		} catch (IOException ex) {
+			QueryMethods.release(shards);
+			throw ex;
+		} catch (QueryParsingException ex) {
+			QueryMethods.release(shards);
+			throw ex;
+		}
+		for (int t = 0; t < this.ntransp; t++)
+			lastSegments.add(new LinkedList<Map<String, Double>>());
+		pool = Executors.newFixedThreadPool(this.ntransp * shards.length);
+	}
+
+	/** @return number of chroma vectors received */
+	public long getNumberOfVectors() {
+		return vectors;
+	}
+
+	/** hashes the next chroma vector of the stream, evaluating the segment it completes */
+	public void consume(float[] chroma) throws IOException {
+		vectors++;
+		ChromaVector v = new ChromaVector(chroma);
+		if (tpe != null) {
+			float[] values = v.getChromaValues();
+			for (int i = 0; i < 12; i++)
+				profile[i] = (float) (profile[i] * profileDecay + values[i]);
+			keys = tpe.findKey(new ChromaVector(profile), ntransp);
+		}
+		boolean considered = v.getKurtosis() >= minkurt;
+		boolean completed = false;
+		int rotation = 0;
+		for (int t = 0; t < ntransp; t++) {
+			int hash = -1;
+			if (considered) {
+				v.rotate(keys[t] - rotation);
+				rotation = keys[t];
+				hash = v.rankRepresentation(nranks);
+			}
+			for (QueryParser parser : parsers[t])
+				completed |= parser.addHash(hash);
+		}
+		if (completed)
+			evaluateLastSegment();
+	}
+
+	private void evaluateLastSegment() throws IOException {
+		long start = System.currentTimeMillis();
+		final int segment = parsers[0][0].getNumberOfSegments() - 1;
+		List<List<Future<Map<String, Double>>>> results = new ArrayList<List<Future<Map<String, Double>>>>();
+		for (int t = 0; t < ntransp; t++) {
+			results.add(new ArrayList<Future<Map<String, Double>>>());
+			for (int s = 0; s < parsers[t].length; s++) {
+				final QueryParser parser = parsers[t][s];
+				final SegmentEvaluator evaluator = evaluators[t][s];
+				results.get(t).add(pool.submit(new Callable<Map<String, Double>>() {
+
+					public Map<String, Double> call() throws IOException {
+						Map<String, Double> res = evaluator.evaluate(parser, segment);
+						parser.discardSegmentsBefore(segment + 1);
+						return res;
+					}
+				}));
+			}
+		}
+		// as in a query made of the last segments, the score of a song is
+		// the geometric mean of the scores of its matching segments, and the
+		// max over the transpositions and the shards
+		Map<String, Double> songScores = new TreeMap<String, Double>();
+		try {
+			for (int t = 0; t < ntransp; t++) {
+				Map<String, Double> segmentScores = new TreeMap<String, Double>();
+				for (Future<Map<String, Double>> res : results.get(t))
+					segmentScores.putAll(res.get());
+				LinkedList<Map<String, Double>> window = lastSegments.get(t);
+				window.add(segmentScores);
+				if (window.size() > windowSegments)
+					window.poll();
+				Map<String, Double> transpScores = new HashMap<String, Double>();
+				for (Map<String, Double> scores : window) {
+					for (Entry<String, Double> e : scores.entrySet()) {
+						Double score = transpScores.get(e.getKey());
+						transpScores.put(e.getKey(), (score == null ? 1. : score) * Math.pow(e.getValue(), 1. / window.size()));
+					}
+				}
+				for (Entry<String, Double> e : transpScores.entrySet()) {
+					Double score = songScores.get(e.getKey());
+					if (score == null || e.getValue() > score)
+						songScores.put(e.getKey(), e.getValue());
+				}
+			}
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause());
+		} catch (InterruptedException ex) {
+			throw new IOException(ex);
+		}
+		listener.segmentEvaluated(segment, songScores, System.currentTimeMillis() - start);
+	}
+
+	/** stops the threads evaluating the segments, and releases the index */
+	public void close() throws IOException {
+		pool.shutdown();
+		QueryMethods.release(shards);
+	}
+}
@@ -0,0 +1,257 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+
+/**
+ * Cache of decoded posting lists of the most frequently queried hashes,
+ * read by {@link HashScorer} in place of the index.
+ * <p>
+ * The cache counts how many times each posting list is requested. A list
+ * is decoded and cached when it fits in the memory bound, possibly after
+ * evicting lists which have been requested fewer times; lists requested
+ * less often than the cached ones are read from the index as usual.
+ * Counts are periodically halved, so that the cache follows changes in
+ * the queried material. The cache is shared by all the threads performing
+ * queries.
+ * <p>
+ * Lists are kept per reader, and a reader is only weakly referenced: once
+ * an index is closed and its readers are no longer used, their lists are
+ * dropped at the next halving of the counts.
+ *
+ */
+final class PostingListCache {
+
+	// number of lookups after which request counts are halved
+	private static final int AGING_PERIOD = 1 << 16;
+	// approximate memory used by a cached list besides its postings, in bytes
+	private static final int ENTRY_OVERHEAD = 128;
+	// cache used by the scorers, null if disabled
+	private static volatile PostingListCache cache = null;
+
+	/** Decoded posting list of a hash. */
+	static final class PostingList {
+
+		final int[] docs;
+		final int[] freqs;
+		final int length;
+
+		private PostingList(int[] docs, int[] freqs, int length) {
+			this.docs = docs;
+			this.freqs = freqs;
+			this.length = length;
+		}
+	}
+
+	/** Requested lists of a reader. */
+	private static final class ReaderEntries {
+
+		private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	}
+
+	/** Posting list of a term in a reader, with its request count. */
+	private static final class Entry {
+
+		private final ReaderEntries owner;
+		private final String text;
+		private int count;
+		private long id;
+		private PostingList postings;
+		private long bytes;
+
+		private Entry(ReaderEntries owner, String text) {
+			this.owner = owner;
+			this.text = text;
+		}
+	}
+	// cached entries, least requested first
+	private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+
+		public int compare(Entry a, Entry b) {
+			if (a.count != b.count)
+				return a.count < b.count ? -1 : 1;
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+	private final long maxBytes;
+	private long bytes = 0;
+	// all the requested lists, cached or not, by reader
+	private final Map<IndexReader, ReaderEntries> readers = new WeakHashMap<IndexReader, ReaderEntries>();
+	private final TreeSet<Entry> cached = new TreeSet<Entry>(BY_COUNT);
+	private long nextId = 0;
+	private int lookups = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	private PostingListCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets the memory bound of the cache; the cache is kept if the bound
+	 * does not change.
+	 *
+	 * @param maxBytes max memory used by the cached lists, in bytes; 0 disables the cache
+	 */
+	static synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes <= 0)
+			cache = null;
+		else if (cache == null || cache.maxBytes != maxBytes)
+			cache = new PostingListCache(maxBytes);
+	}
+
+	/** @return the cache used by the scorers, or null if disabled */
+	static PostingListCache getInstance() {
+		return cache;
+	}
+
+	/**
+	 * Returns the decoded posting list of a term, if it is cached or it is
+	 * worth caching it.
+	 *
+	 * @return the decoded posting list, or null if it has to be read from the index
+	 */
+	PostingList get(IndexReader reader, Term term) throws IOException {
+		Entry e;
+		synchronized (this) {
+			if (++lookups == AGING_PERIOD)
+				age();
+			ReaderEntries r = readers.get(reader);
+			if (r == null) {
+				r = new ReaderEntries();
+				readers.put(reader, r);
+			}
+			e = r.entries.get(term.text());
+			if (e == null) {
+				e = new Entry(r, term.text());
+				r.entries.put(e.text, e);
+			}
+			if (e.postings != null) {
+				hits++;
+				cached.remove(e);
+				e.count++;
+				cached.add(e);
+				return e.postings;
+			}
+			misses++;
+			e.count++;
+		}
+		// the size is read out of the lock, since it may require a disk access
+		long size = ENTRY_OVERHEAD + 8L * reader.docFreq(term);
+		synchronized (this) {
+			if (e.postings != null)
+				return e.postings;
+			if (!canAdmit(e.count, size))
+				return null;
+		}
+		// decode out of the lock, other threads may decode the same list
+		PostingList postings = decode(reader, term);
+		synchronized (this) {
+			if (e.postings != null || e.owner.entries.get(e.text) != e || !canAdmit(e.count, size))
+				return postings;
+			Iterator<Entry> iter = cached.iterator();
+			while (bytes + size > maxBytes) {
+				Entry evicted = iter.next();
+				iter.remove();
+				bytes -= evicted.bytes;
+				evicted.postings = null;
+			}
+			e.postings = postings;
+			e.bytes = size;
+			e.id = nextId++;
+			bytes += size;
+			cached.add(e);
+			return postings;
+		}
+	}
+
+	/**
+	 * @return true if a list of the given size fits in the cache, possibly
+	 *         evicting lists requested fewer times than the given count
+	 */
+	private boolean canAdmit(int count, long size) {
+		if (size > maxBytes)
+			return false;
+		long free = maxBytes - bytes;
+		for (Iterator<Entry> iter = cached.iterator(); free < size && iter.hasNext();) {
+			Entry c = iter.next();
+			if (c.count >= count)
+				return false;
+			free += c.bytes;
+		}
+		return free >= size;
+	}
+
+	/**
+	 * halves the request counts, forgets the lists not requested recently
+	 * and the lists of the readers no longer in use
+	 */
+	private void age() {
+		lookups = 0;
+		cached.clear();
+		bytes = 0;
+		for (ReaderEntries r : readers.values())
+			for (Iterator<Entry> iter = r.entries.values().iterator(); iter.hasNext();) {
+				Entry e = iter.next();
+				e.count /= 2;
+				if (e.postings != null) {
+					cached.add(e);
+					bytes += e.bytes;
+				} else if (e.count == 0)
+					iter.remove();
+			}
+	}
+
+	private static PostingList decode(IndexReader reader, Term term) throws IOException {
+		// the document frequency includes deleted documents, hence it is an upper bound
+		int[] docs = new int[reader.docFreq(term)];
+		int[] freqs = new int[docs.length];
+		int[] docBuffer = new int[Math.min(docs.length, HashScorer.DEFAULT_BUFFER_SIZE) + 1];
+		int[] freqBuffer = new int[docBuffer.length];
+		int length = 0;
+		TermDocs termDocs = reader.termDocs(term);
+		try {
+			int n;
+			while ((n = termDocs.read(docBuffer, freqBuffer)) > 0) {
+				System.arraycopy(docBuffer, 0, docs, length, n);
+				System.arraycopy(freqBuffer, 0, freqs, length, n);
+				length += n;
+			}
+		} finally {
+			termDocs.close();
+		}
+		return new PostingList(docs, freqs, length);
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -17,20 +17,25 @@ package it.unipd.dei.ims.falcon.ranking;
  */
 import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import it.unipd.dei.ims.falcon.indexing.IndexDirectoryType;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -39,11 +44,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.store.Directory;
 
 // TODO subsampling appears not to work ...
 /**
@@ -52,47 +55,399 @@ import org.apache.lucene.store.SimpleFSDirectory;
  */
 public class QueryMethods {
 
-	// cache which stores for each lucene identifier, namely for each
-	// segment, the TITLE of the song which contains that segment
-	private static Map<Integer, String> docId2songidCache;
+	/** default number of postings decoded at once, see {@link #setPostingBufferSize(int)} */
+	public static final int DEFAULT_POSTING_BUFFER_SIZE = HashScorer.DEFAULT_BUFFER_SIZE;
+	// indexes, or shards of a sharded index, opened by previous queries, by
+	// index folder and directory type
+	private static Map<String, SearchedIndex[]> openIndexes = new HashMap<String, SearchedIndex[]>();
+	// when greater than zero, only the highest impact postings of each hash are read
+	private static int maxImpactPostingsPerHash = 0;
+	// if true, segments are evaluated with block-max skipping
+	private static boolean blockMaxEvaluation = false;
+	// if true, consecutive segments are evaluated incrementally
+	private static boolean slidingWindowEvaluation = false;
+	// if true, segments are evaluated on the compact hash index, without Lucene
+	private static boolean hashIndexEvaluation = false;
+	// results of previous queries, null if disabled
+	private static volatile QueryResultCache resultCache = null;
+	// evaluations of query segments, null if disabled
+	private static volatile SegmentScoreCache segmentScoreCache = null;
+	// identifier of the next opened index, see SearchedIndex#id
+	private static int nextIndexId = 0;
 
 	/**
-	 * Given a set of documents with multiple scores, retain the max score for
-	 * each document
+	 * Enables the approximate evaluation of query segments on impact-ordered
+	 * postings (see {@link ImpactOrderedPostings}): at most the given number
+	 * of postings, the ones with highest impact, are read for each hash.
+	 * The index must have been built with impact-ordered postings.
 	 *
-	 * @param topdocs
-	 *            Lucene TopDocs; documents, namely segments, are ranked by
-	 *            score. The score of a segment is the sum of the score of its
-	 *            constituting hashes, specifically obtained by
-	 *            {@link it.unipd.dei.ims.falcon.ranking.SegmentQuery}
-	 * @param searcher
-	 *            Lucene {@link org.apache.lucene.search.IndexSearcher}
-	 * @return
-	 * @throws IOException
+	 * @param maxPostingsPerHash number of postings read for each hash; 0 restores exact evaluation
+	 */
+	public static void setImpactOrderedEvaluation(int maxPostingsPerHash) {
+		maxImpactPostingsPerHash = maxPostingsPerHash;
+	}
+
+	/**
+	 * Enables the evaluation of query segments with block-max skipping
+	 * (see {@link BlockMaxPostings}); results are the same as the default
+	 * evaluation, up to rounding, since segment scores are summed in another
+	 * order. The index must have been built with block-max metadata.
+	 *
+	 * @param enabled true to enable block-max skipping
+	 */
+	public static void setBlockMaxEvaluation(boolean enabled) {
+		blockMaxEvaluation = enabled;
+	}
+
+	/**
+	 * Enables the incremental evaluation of consecutive query segments
+	 * (see {@link SlidingWindowEvaluator}), which reads only the postings
+	 * of the hashes entering and leaving the window.
+	 *
+	 * @param enabled true to evaluate consecutive segments incrementally
+	 */
+	public static void setSlidingWindowEvaluation(boolean enabled) {
+		slidingWindowEvaluation = enabled;
+	}
+
+	/**
+	 * Enables the evaluation of query segments on the compact hash index
+	 * (see {@link HashIndex}) in place of the Lucene index, which is not
+	 * opened at all; results are the same as the default evaluation, up to
+	 * rounding. The index must have been built with the compact hash index,
+	 * which is written from the Lucene index.
+	 *
+	 * @param enabled true to evaluate on the compact hash index
+	 */
+	public static void setHashIndexEvaluation(boolean enabled) {
+		hashIndexEvaluation = enabled;
+	}
+
+	/**
+	 * Enables caching of query results (see {@link QueryResultCache}), for
+	 * repeated queries. Results are cached by a fingerprint of the query
+	 * hashes and of the parameters of the query, including the version of
+	 * the index: results are not reused once the index is updated. The
+	 * cache is kept if the size does not change.
+	 *
+	 * @param maxScores max total number of song scores in the cached results; 0 disables the cache
+	 */
+	public static synchronized void setResultCacheSize(int maxScores) {
+		if (maxScores <= 0)
+			resultCache = null;
+		else if (resultCache == null || resultCache.getMaxSize() != maxScores)
+			resultCache = new QueryResultCache(maxScores);
+	}
+
+	/** @return number of queries answered by the result cache */
+	public static long getResultCacheHits() {
+		QueryResultCache c = resultCache;
+		return c == null ? 0 : c.getHits();
+	}
+
+	/** @return number of queries not found in the result cache */
+	public static long getResultCacheMisses() {
+		QueryResultCache c = resultCache;
+		return c == null ? 0 : c.getMisses();
+	}
+
+	/**
+	 * Enables caching of the evaluation of query segments (see
+	 * {@link SegmentScoreCache}): segments retaining the same hashes with
+	 * the same frequencies, in any transposition and in any query, are
+	 * evaluated once. Segments evaluated on a previous version of the index
+	 * or with different settings are not reused. The cache is kept if the
+	 * size does not change.
+	 *
+	 * @param maxScores max total number of song scores in the cached segments; 0 disables the cache
+	 */
+	public static synchronized void setSegmentCacheSize(int maxScores) {
+		if (maxScores <= 0)
+			segmentScoreCache = null;
+		else if (segmentScoreCache == null || segmentScoreCache.getMaxSize() != maxScores)
+			segmentScoreCache = new SegmentScoreCache(maxScores);
+	}
+
+	/** @return number of query segments found in the segment cache */
+	public static long getSegmentCacheHits() {
+		SegmentScoreCache c = segmentScoreCache;
+		return c == null ? 0 : c.getHits();
+	}
+
+	/** @return number of query segments not found in the segment cache */
+	public static long getSegmentCacheMisses() {
+		SegmentScoreCache c = segmentScoreCache;
+		return c == null ? 0 : c.getMisses();
+	}
+
+	/**
+	 * Enables caching of the decoded posting lists of the most frequently
+	 * queried hashes (see {@link PostingListCache}), for the Lucene
+	 * evaluation. The cache is kept if the size does not change.
+	 *
+	 * @param maxBytes max memory used by the cached lists, in bytes; 0 disables the cache
 	 */
-	private static Map<String, Double> reduceMaxScoreForEachSong(TopDocs topdocs, IndexSearcher searcher)
-					throws IOException {
-		if (docId2songidCache == null) {
-			// TODO although this should work, it has not been checked for concurrency issues
-			docId2songidCache = new ConcurrentHashMap<Integer, String>();
-		}
-		Map<String, Double> songid2maxscore = new TreeMap<String, Double>();
-		int r = 1;
-		for (ScoreDoc sd : topdocs.scoreDocs) {
-			String stringId = docId2songidCache.get(sd.doc);
-			if (stringId == null) {
-				stringId = searcher.doc(sd.doc).getField("TITLE").stringValue();
-				docId2songidCache.put(sd.doc, stringId);
+	public static void setPostingCacheSize(long maxBytes) {
+		PostingListCache.setMaxBytes(maxBytes);
+	}
+
+	/** @return number of posting lists read from the posting list cache */
+	public static long getPostingCacheHits() {
+		PostingListCache c = PostingListCache.getInstance();
+		return c == null ? 0 : c.getHits();
+	}
+
+	/** @return number of posting lists not found in the posting list cache */
+	public static long getPostingCacheMisses() {
+		PostingListCache c = PostingListCache.getInstance();
+		return c == null ? 0 : c.getMisses();
+	}
+
+	/**
+	 * Sets the number of postings decoded at once by the scorers of the
+	 * Lucene evaluation, see {@link HashScorer}.
+	 *
+	 * @param size number of postings per buffer refill
+	 */
+	public static void setPostingBufferSize(int size) {
+		HashScorer.setBufferSize(size);
+	}
+
+	/**
+	 * Structures of a single (non-sharded) index; they are initialized when
+	 * the first query is performed, according to the current settings.
+	 * <p>
+	 * An index is reference counted: {@link #openIndex(File)} holds a
+	 * reference while the index is the current version, and each query
+	 * holds one until {@link #release(SearchedIndex[])}. The index is closed
+	 * when the last reference is released.
+	 */
+	static class SearchedIndex {
+
+		private File index;
+		private IndexDirectoryType directoryType;
+		private Directory directory = null;
+		private IndexReader reader = null;
+		private IndexSearcher searcher = null;
+		private ImpactOrderedPostings impactPostings = null;
+		private String[] segmentSongIds = null;
+		private SegmentSongs segmentSongs = null;
+		private BlockMaxPostings blockMaxPostings = null;
+		private HashIndex hashIndex = null;
+		private int documentSegmentLength;
+		// version of the index when it was opened
+		private long version;
+		// identifies this index and version in the segment cache
+		private int id;
+		private int refCount = 1;
+
+		private SearchedIndex(File index, IndexDirectoryType directoryType) throws IOException {
+			this.index = index;
+			this.directoryType = directoryType;
+			this.version = getCurrentVersion(index, directoryType);
+			this.id = nextIndexId++;
+		}
+
+		/** @return the current version of the index in the given folder */
+		private static long getCurrentVersion(File index, IndexDirectoryType directoryType) throws IOException {
+			Directory dir = directoryType.open(index);
+			try {
+				return IndexReader.getCurrentVersion(dir);
+			} finally {
+				dir.close();
 			}
-			if (!songid2maxscore.containsKey(stringId))
-				songid2maxscore.put(stringId, new Double(sd.score));
-			r++;
 		}
-		return songid2maxscore;
+
+		/** opens the structures required by the current settings */
+		private synchronized void open() throws IOException {
+			if (hashIndexEvaluation) {
+				if (hashIndex == null)
+					hashIndex = HashIndex.load(index);
+				documentSegmentLength = hashIndex.getSegmentLength();
+				return;
+			}
+			if (reader == null) {
+				directory = directoryType.openForReading(index);
+				reader = IndexReader.open(directory);
+			}
+			if (searcher == null) {
+				searcher = new IndexSearcher(reader);
+				searcher.setSimilarity(new HashSimilarity());
+				segmentSongIds = FieldCache.DEFAULT.getStrings(reader, "TITLE");
+				segmentSongs = new SegmentSongs(segmentSongIds);
+			}
+			if (maxImpactPostingsPerHash > 0 && impactPostings == null) {
+				impactPostings = ImpactOrderedPostings.load(index);
+				if (impactPostings.getNumberOfDocuments() != reader.maxDoc())
+					throw new IOException("impact-ordered postings do not match the index, re-index with impact-ordered postings");
+			}
+			if (blockMaxEvaluation && blockMaxPostings == null) {
+				blockMaxPostings = BlockMaxPostings.load(index);
+				if (blockMaxPostings.getNumberOfDocuments() != reader.maxDoc())
+					throw new IOException("block-max metadata does not match the index, re-index with block-max metadata");
+			}
+			documentSegmentLength = new Integer(reader.document(0).getField("LENGTH").stringValue());
+		}
+
+		private synchronized void incRef() {
+			refCount++;
+		}
+
+		/** releases a reference, closing the index if it was the last one */
+		private synchronized void decRef() throws IOException {
+			if (--refCount > 0)
+				return;
+			searcher = null;
+			impactPostings = null;
+			segmentSongIds = null;
+			segmentSongs = null;
+			blockMaxPostings = null;
+			hashIndex = null;
+			try {
+				if (reader != null)
+					reader.close();
+			} finally {
+				reader = null;
+				if (directory != null)
+					directory.close();
+				directory = null;
+			}
+		}
+
+		/** @return true if the index has been closed */
+		synchronized boolean isClosed() {
+			return refCount == 0;
+		}
+
+		/** @return a new evaluator for the segments of a query, according to the current settings */
+		SegmentEvaluator newSegmentEvaluator() {
+			SegmentEvaluator evaluator = newUncachedSegmentEvaluator();
+			SegmentScoreCache cache = segmentScoreCache;
+			if (cache == null)
+				return evaluator;
+			int[] tag = {id, maxImpactPostingsPerHash, blockMaxEvaluation ? 1 : 0, hashIndexEvaluation ? 1 : 0, slidingWindowEvaluation ? 1 : 0};
+			return cache.getEvaluator(evaluator, tag);
+		}
+
+		private SegmentEvaluator newUncachedSegmentEvaluator() {
+			if (hashIndexEvaluation)
+				return hashIndex.getEvaluator();
+			if (maxImpactPostingsPerHash > 0)
+				return impactPostings.getEvaluator(segmentSongIds, maxImpactPostingsPerHash);
+			if (slidingWindowEvaluation)
+				return new SlidingWindowEvaluator(reader, segmentSongs, documentSegmentLength);
+			if (blockMaxEvaluation)
+				return blockMaxPostings.getEvaluator(reader, segmentSongs);
+			return new LuceneSegmentEvaluator(searcher, segmentSongs);
+		}
+	}
+
+	/**
+	 * Returns the opened indexes to search for the given index, one for each
+	 * shard, with the current directory type. Indexes are opened again when
+	 * they have been updated; the previous version is closed once the
+	 * running queries have released it. The returned indexes must be
+	 * released with {@link #release(SearchedIndex[])}.
+	 */
+	static synchronized SearchedIndex[] openIndex(File index) throws IOException {
+		IndexDirectoryType directoryType = Indexing.getDirectoryType();
+		String key = index.getAbsolutePath() + '@' + directoryType;
+		SearchedIndex[] shards = openIndexes.get(key);
+		File[] paths = Indexing.getShards(index);
+		boolean current = shards != null && shards.length == paths.length;
+		for (int i = 0; current && i < shards.length; i++)
+			current = shards[i].version == SearchedIndex.getCurrentVersion(shards[i].index, directoryType);
+		if (!current) {
+			if (shards != null) {
+				openIndexes.remove(key);
+				release(shards);
+			}
+			if (paths.length == 0)
+				throw new IOException("no songs in the index");
+			shards = new SearchedIndex[paths.length];
+			for (int i = 0; i < paths.length; i++)
+				shards[i] = new SearchedIndex(paths[i], directoryType);
+			openIndexes.put(key, shards);
+		}
+		for (SearchedIndex shard : shards)
+			shard.open();
+		for (SearchedIndex shard : shards)
+			shard.incRef();
+		return shards;
+	}
+
+	/** releases indexes returned by {@link #openIndex(File)} */
+	static void release(SearchedIndex[] shards) throws IOException {
+		IOException error = null;
+		for (SearchedIndex shard : shards) {
+			try {
+				shard.decRef();
+			} catch (IOException ex) {
+				error = ex;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/** @return a parser for a query on the given shard */
+	static QueryParser newQueryParser(SearchedIndex shard, QueryPruningStrategy pruningStrategy) throws IOException {
+		QueryParser queryParser = new QueryParser(pruningStrategy);
+		queryParser.loadQueryPruningHashFeatures(shard.index.getPath());
+		queryParser.loadStopHashes(shard.index.getPath());
+		queryParser.setDocumentSegmentLength(shard.documentSegmentLength);
+		queryParser.setIndexReader(shard.reader);
+		return queryParser;
+	}
+
+	/**
+	 * Evaluates the segments of a query, and combines the scores of each
+	 * song as the geometric mean of the scores of its matching segments.
+	 *
+	 * @return map from song identifier to its final score
+	 */
+	private static Map<String, Double> evaluateSegments(QueryParser queryParser, SegmentEvaluator evaluator) throws IOException {
+		int nSegments = queryParser.getNumberOfSegments();
+		Map<String, Double> songid2finalscore = new TreeMap<String, Double>();
+		for (int i = 0; i < nSegments; i++) {
+			Map<String, Double> songid2maxscore = evaluator.evaluate(queryParser, i);
+			for (Entry<String, Double> e : songid2maxscore.entrySet()) {
+				Double currentscore = songid2finalscore.get(e.getKey());
+				if (currentscore == null)
+					currentscore = 1.;
+				currentscore *= Math.pow(e.getValue(), 1. / nSegments);
+				songid2finalscore.put(e.getKey(), currentscore);
+			}
+		}
+		return songid2finalscore;
+	}
+
+	/**
+	 * Computes the fingerprint of a query for the result cache, from the
+	 * hashes of all the transpositions and all the parameters which affect
+	 * the results. Transposition settings are reflected by the hashes.
+	 */
+	private static byte[] fingerprint(SearchedIndex[] shards, List<ByteArrayOutputStream> hashStreams,
+					int hps, int overlap, int nranks, int subsampling, double minkurt) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException("SHA-1 not available");
+		}
+		StringBuilder params = new StringBuilder();
+		for (SearchedIndex shard : shards)
+			params.append(shard.index.getAbsolutePath()).append('@').append(shard.version).append(';');
+		params.append(hps).append(';').append(overlap).append(';').append(nranks).append(';').append(subsampling).append(';').append(minkurt);
+		params.append(';').append(hashIndexEvaluation).append(';').append(blockMaxEvaluation).append(';').append(maxImpactPostingsPerHash);
+		params.append(';').append(slidingWindowEvaluation);
+		md.update(params.toString().getBytes("UTF-8"));
+		for (ByteArrayOutputStream hashes : hashStreams) {
+			md.update(ByteBuffer.allocate(4).putInt(hashes.size()).array());
+			md.update(hashes.toByteArray());
+		}
+		return md.digest();
 	}
-	// the following objects are initialized when the first query is performed
-	private static IndexReader reader = null;
-	private static IndexSearcher searcher = null;
 
 	/**
 	 * Perform a query.
@@ -116,69 +471,97 @@ public class QueryMethods {
 					final int nranks, final int subsampling, final TranspositionEstimator tpe, int ntransp, final double minkurt,
 					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
 
-		if (reader == null) {
-			reader = IndexReader.open(new SimpleFSDirectory(index));
+		// convert the query into ntransp streams of integer hashes
+		List<ByteArrayOutputStream> hashStreams = newHashStreams(tpe == null ? 1 : ntransp);
+		ChromaMatrixUtils.convertChromaStreamIntoHashesStream(new InputStreamReader(query),
+						new LinkedList<OutputStream>(hashStreams), nranks, tpe, minkurt, subsampling);
+		return query(hashStreams, index, hps, overlap, nranks, subsampling, minkurt, pruningStrategy);
+	}
+
+	/**
+	 * Perform a query from a file, which is either a chroma matrix in text
+	 * format or an audio file, whose chroma features are extracted directly
+	 * (see {@link ChromaMatrixUtils#readChromaFeatures}); audio files are
+	 * rejected if the index was analyzed with a different precision, see
+	 * {@link Indexing#checkAnalysisPrecision(File)}. The parameters
+	 * are the same as {@link #query(InputStream, File, int, int, int, int, TranspositionEstimator, int, double, QueryPruningStrategy)}.
+	 */
+	public static QueryResults query(File query, File index, final int hps, final int overlap,
+					final int nranks, final int subsampling, final TranspositionEstimator tpe, int ntransp, final double minkurt,
+					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+
+		if (ChromaMatrixUtils.isAudioFile(query))
+			Indexing.checkAnalysisPrecision(index);
+		List<ByteArrayOutputStream> hashStreams = newHashStreams(tpe == null ? 1 : ntransp);
+		ChromaMatrixUtils.convertFileIntoHashesStream(query, new LinkedList<OutputStream>(hashStreams), nranks, tpe, minkurt, subsampling);
+		return query(hashStreams, index, hps, overlap, nranks, subsampling, minkurt, pruningStrategy);
+	}
+
+	private static List<ByteArrayOutputStream> newHashStreams(int ntransp) {
+		List<ByteArrayOutputStream> hashStreams = new LinkedList<ByteArrayOutputStream>();
+		for (int i = 0; i < ntransp; i++)
+			hashStreams.add(new ByteArrayOutputStream());
+		return hashStreams;
+	}
+
+	/** performs a query from the streams of hashes of its transpositions */
+	private static QueryResults query(List<ByteArrayOutputStream> hashStreams, File index, final int hps, final int overlap,
+					final int nranks, final int subsampling, final double minkurt,
+					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+
+		SearchedIndex[] shards = openIndex(index);
+		try {
+			return query(shards, hashStreams, hps, overlap, nranks, subsampling, minkurt, pruningStrategy);
+		} finally {
+			release(shards);
 		}
-		if (searcher == null) {
-			searcher = new IndexSearcher(reader);
-			searcher.setSimilarity(new HashSimilarity());
+	}
+
+	private static QueryResults query(SearchedIndex[] shards, List<ByteArrayOutputStream> hashStreams, final int hps, final int overlap,
+					final int nranks, final int subsampling, final double minkurt,
+					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+
+		QueryResultCache cache = resultCache;
+		QueryResultCache.Key key = null;
+		if (cache != null) {
+			key = new QueryResultCache.Key(fingerprint(shards, hashStreams, hps, overlap, nranks, subsampling, minkurt), pruningStrategy);
+			QueryResults cached = cache.get(key);
+			if (cached != null)
+				return cached;
 		}
+
 		ExecutorService tpool = Executors.newCachedThreadPool();
-		final List<OutputStream> os = new LinkedList<OutputStream>();               // ntransp streams of integer hashes
 		final List<Map<String, Double>> allTranspRes = Collections.synchronizedList(new LinkedList<Map<String, Double>>());
 
 		final AtomicLong totalConsideredHashes = new AtomicLong(0);
 		final AtomicLong prunedHashes = new AtomicLong(0);
 
-		// enqueue ntransp extractQuery
-		for (int i = 0; i < (tpe == null ? 1 : ntransp); i++) {
-			PipedOutputStream po1 = new PipedOutputStream();
-			os.add(po1);
-			final QueryParser queryParser = new QueryParser(pruningStrategy);
-			queryParser.loadQueryPruningHashFeatures(index.getPath());
-			queryParser.setDocumentSegmentLength(new Integer(reader.document(0).getField("LENGTH").stringValue()));
-			Map<String, Double> songid2finalscore = new TreeMap<String, Double>();
-			final PipedInputStream pi2 = new PipedInputStream(po1);
-			tpool.submit(new Runnable() {
-				public void run() {
-					try {
-						queryParser.extractQuery(pi2, hps, overlap);
-						Map<String, Double> songid2finalscore = new TreeMap<String, Double>();
-						for (int i = 0; i < queryParser.getNumberOfSegments(); i++) {
-							Query query = queryParser.getQueryFromSegment(i);
-							TopDocs td = searcher.search(query, reader.numDocs());
-							Map<String, Double> songid2maxscore = reduceMaxScoreForEachSong(td, searcher);
-							for (String songid : songid2maxscore.keySet()) {
-								Double currentscore = songid2finalscore.get(songid);
-								if (currentscore == null)
-									currentscore = 1.;
-								currentscore *= Math.pow(songid2maxscore.get(songid), 1. / queryParser.getNumberOfSegments());
-								songid2finalscore.put(songid, currentscore);
+		// enqueue ntransp extractQuery, for each shard; every shard parses the
+		// same query, hence the pruning statistics are those of the first one
+		for (ByteArrayOutputStream hashes : hashStreams) {
+			for (final SearchedIndex shard : shards) {
+				final boolean countHashes = shard == shards[0];
+				final QueryParser queryParser = newQueryParser(shard, pruningStrategy);
+				final InputStream hashStream = new ByteArrayInputStream(hashes.toByteArray());
+				final SegmentEvaluator evaluator = shard.newSegmentEvaluator();
+				tpool.submit(new Runnable() {
+					public void run() {
+						try {
+							queryParser.extractQuery(hashStream, hps, overlap);
+							allTranspRes.add(evaluateSegments(queryParser, evaluator));
+							if (countHashes) {
+								prunedHashes.addAndGet(queryParser.getPrunedHashInQuerySession());
+								totalConsideredHashes.addAndGet(queryParser.getTotalHashInQuerySession());
 							}
+						} catch (IOException ex) {
+							Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
+						} catch (QueryParsingException ex) {
+							Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
 						}
-						allTranspRes.add(songid2finalscore);
-						prunedHashes.addAndGet(queryParser.getPrunedHashInQuerySession());
-						totalConsideredHashes.addAndGet(queryParser.getTotalHashInQuerySession());
-					} catch (IOException ex) {
-						Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
-					} catch (QueryParsingException ex) {
-						Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
 					}
-				}
-			});
-		}
-
-		// enqueue conversion from initial input stream into integer hashes seq. (note that 'os' must be already constructed)
-		tpool.submit(new Runnable() {
-
-			public void run() {
-				try {
-					ChromaMatrixUtils.convertChromaStreamIntoHashesStream(new InputStreamReader(query), os, nranks, tpe, minkurt, subsampling);
-				} catch (IOException ex) {
-					Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
-				}
+				});
 			}
-		});
+		}
 
 		// wait for all to complete and merge results
 		Map<String, Double> finalRes = new TreeMap<String, Double>();
@@ -192,6 +575,9 @@ public class QueryMethods {
 			}
 		}
 
-		return new QueryResults(finalRes, prunedHashes.get(), totalConsideredHashes.get());
+		QueryResults res = new QueryResults(finalRes, prunedHashes.get(), totalConsideredHashes.get());
+		if (cache != null)
+			res = cache.cache(key, res);
+		return res;
 	}
 }
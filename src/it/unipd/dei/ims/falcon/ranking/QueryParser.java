@@ -15,6 +15,7 @@ package it.unipd.dei.ims.falcon.ranking;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import it.unipd.dei.ims.falcon.indexing.Indexing;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -23,15 +24,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
 
@@ -68,6 +73,9 @@ import org.apache.lucene.search.Query;
  * in the index folder). The features are loaded in an {@link java.util.Map} 
  * (hash to features map) by the method
  * {@link it.unipd.dei.ims.falcon.ranking.QueryParser#loadQueryPruningHashFeatures(java.lang.String) }.
+ * Independently of the pruning strategy, the stop hashes possibly computed
+ * at indexing time are removed from all the segments, once loaded by
+ * {@link it.unipd.dei.ims.falcon.ranking.QueryParser#loadStopHashes(java.lang.String) }.
  * <p>
  * Methods {@link it.unipd.dei.ims.falcon.ranking.QueryParser#getTotalHashInQuerySession()}
  * and {@link it.unipd.dei.ims.falcon.ranking.QueryParser#getPrunedHashInQuerySession()}
@@ -89,21 +97,42 @@ public class QueryParser {
 	private List<SegmentBagOfFeatures> querySegments;
 	// map of the feature to describe each hash
 	private Map<Integer, HashStats> hashFeatureMap;
+	// reader of the index the query is evaluated on, if any, for the
+	// pruning strategies which use live collection statistics
+	private IndexReader indexReader;
+	// hashes always removed from the query, see Indexing#setStopHashes
+	private Set<Integer> stopHashes = Collections.emptySet();
 	// strategy adopted to prune hash in each segment of the query
 	private QueryPruningStrategy pruningStrategy;
 	// if true, query pruning is enabled
 	private boolean pruning_enabled;
 	// total number of hashes pruned when during an evaluation session
 	// where the same query parser is used
-	private static long prunedHash;
+	private long prunedHash;
 	// total number of hashes should be used to build a the segments queries
 	// for the queries considered during an evaluation session using the same
 	// query parser
-	private static long totalHash;
+	private long totalHash;
 	// number of hashes which constitute a segment of the query
 	private int querySegmentLength;
 	// number of hashes in a segment of a document in the index
 	private float docsSegmentNorm;
+	// number of hashes in the overlap between consecutive segments of the query
+	private int querySegmentOverlap;
+	// number of the first segment in querySegments, the previous ones being discarded
+	private int firstSegmentNumber = 0;
+	// state of the segment being filled: hashes of the current segment in
+	// order, map from each distinct hash to its local identifier, local
+	// identifiers available for new hashes, frequency of each local
+	// identifier, number of hashes in the segment
+	private LinkedList<Integer> hashCache;
+	private TreeMap<Integer, Integer> hashID_localPointer_map;
+	private LinkedList<Integer> localHashPointersAvailable;
+	private int[] hash_freq_per_segment;
+	private int curHashInSegment;
+	// retained hashes of the last segment requested, which are counted only once
+	private int lastSegmentNumber = -1;
+	private SortedMap<Integer, Integer> lastSegmentHashes;
 
 	/**
 	 * Creates a query parser with a specific strategy for query pruning 
@@ -159,6 +188,15 @@ public class QueryParser {
 			return this.segmentBagOfFeatures.get(hash_ID);
 		}
 
+		/**
+		 * Returns the frequency of occurrence of each hash in the segment
+		 *
+		 * @return  map from the distinct hashes in the segment to their frequency
+		 */
+		public Map<Integer, Integer> getHashFrequencies() {
+			return Collections.unmodifiableMap(this.segmentBagOfFeatures);
+		}
+
 		/**
 		 * Returns the distinct hashes in the segment
 		 *
@@ -184,7 +222,7 @@ public class QueryParser {
 	 * @return number of segment in the query
 	 */
 	public int getNumberOfSegments() {
-		return this.querySegments.size();
+		return firstSegmentNumber + this.querySegments.size();
 	}
 
 	/**
@@ -200,25 +238,9 @@ public class QueryParser {
 	 */
 	public void extractQuery(InputStream query, int hashPerSegment, int hashInSegmentOverlap) throws QueryParsingException {
 
-		// the number of hash in a segment cannot be equal to the number
-		// of hash in the overlap: that will lead to an infinite loop
-		if (hashPerSegment == hashInSegmentOverlap) {
-			throw new QueryParsingException("Number of hash per segment cannot be equal to the"
-							+ "number of hash in the overlap");
-		}
-
-		querySegmentLength = hashPerSegment;
-
-		querySegments = new ArrayList<SegmentBagOfFeatures>();
+		startQuery(hashPerSegment, hashInSegmentOverlap);
 
 		BufferedReader buffReader = null;
-		int cur_hash;
-
-		// cache of hashes adopted to manage segment overlap
-		LinkedList<Integer> hashCache = new LinkedList<Integer>();
-		// list of local hash identifiers avaliable after the removal
-		// of hash non in the overlap 
-		LinkedList<Integer> localHashPointersAvailable = new LinkedList<Integer>();
 
 		try {
 
@@ -227,79 +249,9 @@ public class QueryParser {
 			String content = buffReader.readLine();
 			// scanner to extract hash
 			Scanner scanner = new Scanner(content);
-			// number of segments currently considered for the song being
-			// processed
-			int hashSegment = 0;
-			// number of hash
-			int curHashInSegment = 0;
-			// map from the HASH to the ID of the hash in the currently
-			// considered segment
-			TreeMap<Integer, Integer> hashID_localPointer_map = new TreeMap<Integer, Integer>();
-
-			int[] hash_freq_per_segment = new int[hashPerSegment];
-			// identifier of the hash in the segment
-			int localHashPointer = 0;
-
-			while (scanner.hasNext()) {
-				// current considered hash
-				cur_hash = Integer.parseInt(scanner.next());
-				if (cur_hash == -1) {
-					continue;
-				}
-				// add current hash to the cache
-				hashCache.add(cur_hash);
-
-				curHashInSegment++;
-				// update local map for segment hash IDs
-				if (hashID_localPointer_map.containsKey(cur_hash)) {
-					localHashPointer = hashID_localPointer_map.get(cur_hash);
-				} else {
-					if (localHashPointersAvailable.isEmpty()) {
-						localHashPointer = hashID_localPointer_map.size();
-					} else {
-						localHashPointer = localHashPointersAvailable.poll();
-						assert !hashID_localPointer_map.containsValue(localHashPointer);
-					}
-					hashID_localPointer_map.put(cur_hash, localHashPointer);
-				}
-				// increment the frequency of occurrence of the current hash
-				hash_freq_per_segment[localHashPointer]++;
-				// if we are at the end of the segment
-				if (hashPerSegment - curHashInSegment == 0) {
-					// add the posting lists for the distinct hashes in the
-					// current segment to the list of posting lists for the
-					// entire song
-					querySegments.add(new SegmentBagOfFeatures(hashID_localPointer_map, hash_freq_per_segment));
-					// store the number of distinct hashes in this segment
-					// segmentLengths.add(hashID_localPointer_map.size());
-					// identifier for the next segment
-					hashSegment++;
-
-					if (hashInSegmentOverlap == 0) {
-						// create a new vector for segment hash frequencies
-						hash_freq_per_segment = new int[hashPerSegment];
-						// create a new set for distinct hashes
-						hashID_localPointer_map = new TreeMap<Integer, Integer>();
-						// init the identifier of the hash for the next segment
-						localHashPointer = 0;
-						// set to zero the number of hash for the next segment
-						curHashInSegment = 0;
-					} else {
-						for (int h = 0; h < hashPerSegment - hashInSegmentOverlap; h++) {
-							int curHashToRemove = hashCache.poll();
-							int curHashLocaID = hashID_localPointer_map.get(curHashToRemove);
-							// decrease the frequency for the current hash
-							// to be removed
-							hash_freq_per_segment[curHashLocaID]--;
-							if (hash_freq_per_segment[curHashLocaID] == 0) {
-								localHashPointersAvailable.add(curHashLocaID);
-								hashID_localPointer_map.remove(curHashToRemove);
-							}
-						}
-						curHashInSegment = hashInSegmentOverlap;
-					}
-				}
-			}
+
+			while (scanner.hasNext())
+				addHash(Integer.parseInt(scanner.next()));
 
 		} catch (IOException ex) {
 			throw new QueryParsingException("IOException: Error during query extraction");
@@ -313,6 +265,120 @@ public class QueryParser {
 
 	}
 
+	/**
+	 * Starts a query whose hashes are added one at a time by
+	 * {@link #addHash(int)}, e.g. while they are extracted from a live
+	 * stream; {@link #extractQuery} reads all the hashes of a query at once.
+	 *
+	 * @param hashPerSegment
+	 *            number of hash per segment
+	 * @param hashInSegmentOverlap
+	 *            number of hash in the segment overlap
+	 * @throws QueryParsingException
+	 */
+	public void startQuery(int hashPerSegment, int hashInSegmentOverlap) throws QueryParsingException {
+
+		// the number of hash in a segment cannot be equal to the number
+		// of hash in the overlap: that will lead to an infinite loop
+		if (hashPerSegment == hashInSegmentOverlap) {
+			throw new QueryParsingException("Number of hash per segment cannot be equal to the"
+							+ "number of hash in the overlap");
+		}
+
+		querySegmentLength = hashPerSegment;
+		querySegmentOverlap = hashInSegmentOverlap;
+
+		querySegments = new ArrayList<SegmentBagOfFeatures>();
+		firstSegmentNumber = 0;
+		lastSegmentNumber = -1;
+		lastSegmentHashes = null;
+
+		hashCache = new LinkedList<Integer>();
+		localHashPointersAvailable = new LinkedList<Integer>();
+		curHashInSegment = 0;
+		hashID_localPointer_map = new TreeMap<Integer, Integer>();
+		hash_freq_per_segment = new int[hashPerSegment];
+	}
+
+	/**
+	 * Adds the next hash of the query started by {@link #startQuery}.
+	 *
+	 * @param cur_hash
+	 *            next hash, -1 for a chroma vector which is not considered
+	 * @return true if the hash completes a segment, which is the last one
+	 *         of the query
+	 */
+	public boolean addHash(int cur_hash) {
+		if (cur_hash == -1) {
+			return false;
+		}
+		// add current hash to the cache
+		hashCache.add(cur_hash);
+
+		curHashInSegment++;
+		// identifier of the hash in the segment
+		int localHashPointer;
+		// update local map for segment hash IDs
+		if (hashID_localPointer_map.containsKey(cur_hash)) {
+			localHashPointer = hashID_localPointer_map.get(cur_hash);
+		} else {
+			if (localHashPointersAvailable.isEmpty()) {
+				localHashPointer = hashID_localPointer_map.size();
+			} else {
+				localHashPointer = localHashPointersAvailable.poll();
+				assert !hashID_localPointer_map.containsValue(localHashPointer);
+			}
+			hashID_localPointer_map.put(cur_hash, localHashPointer);
+		}
+		// increment the frequency of occurrence of the current hash
+		hash_freq_per_segment[localHashPointer]++;
+		// if we are at the end of the segment
+		if (querySegmentLength - curHashInSegment != 0)
+			return false;
+		// add the posting lists for the distinct hashes in the
+		// current segment to the list of posting lists for the
+		// entire song
+		querySegments.add(new SegmentBagOfFeatures(hashID_localPointer_map, hash_freq_per_segment));
+
+		if (querySegmentOverlap == 0) {
+			// create a new vector for segment hash frequencies
+			hash_freq_per_segment = new int[querySegmentLength];
+			// create a new set for distinct hashes
+			hashID_localPointer_map = new TreeMap<Integer, Integer>();
+			hashCache.clear();
+			// set to zero the number of hash for the next segment
+			curHashInSegment = 0;
+		} else {
+			for (int h = 0; h < querySegmentLength - querySegmentOverlap; h++) {
+				int curHashToRemove = hashCache.poll();
+				int curHashLocaID = hashID_localPointer_map.get(curHashToRemove);
+				// decrease the frequency for the current hash
+				// to be removed
+				hash_freq_per_segment[curHashLocaID]--;
+				if (hash_freq_per_segment[curHashLocaID] == 0) {
+					localHashPointersAvailable.add(curHashLocaID);
+					hashID_localPointer_map.remove(curHashToRemove);
+				}
+			}
+			curHashInSegment = querySegmentOverlap;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the segments before the given one, which cannot be requested
+	 * any more; the numbers of the following segments do not change. Used
+	 * when the query is an unbounded stream.
+	 *
+	 * @param segmentNumber number of the first segment to keep
+	 */
+	public void discardSegmentsBefore(int segmentNumber) {
+		while (firstSegmentNumber < segmentNumber && !querySegments.isEmpty()) {
+			querySegments.remove(0);
+			firstSegmentNumber++;
+		}
+	}
+
 	/**
 	 * Returns a {@link SegmentQuery} from the segment "segmentNumber" 
 	 *
@@ -320,34 +386,58 @@ public class QueryParser {
 	 *            number of the segment of the query song
 	 * @return {@link SegmentQuery} from the segment at the specified segmentNumber
 	 */
-	public Query getQueryFromSegment(int segmentNumber) {
+	public Query getQueryFromSegment(int segmentNumber) throws IOException {
 
 		// creates an empty query
 		SegmentQuery query = new SegmentQuery(querySegmentLength);
+
+		for (Map.Entry<Integer, Integer> e : getHashesFromSegment(segmentNumber).entrySet()) {
+			query.add(new HashQuery(new Term("CONTENT", Integer.toString(e.getKey())), e.getValue(), querySegmentLength, docsSegmentNorm));
+		}
+		return query;
+	}
+
+	/**
+	 * Returns the hashes of the segment "segmentNumber" which are retained
+	 * after query pruning, together with their frequency of occurrence in
+	 * the segment. This is the same information used to build the
+	 * {@link SegmentQuery} returned by {@link #getQueryFromSegment(int)},
+	 * for evaluators which do not go through Lucene.
+	 * Requesting again the last requested segment returns the same map,
+	 * and does not count its hashes twice in the query session.
+	 *
+	 * @param segmentNumber
+	 *            number of the segment of the query song
+	 * @return map from retained hashes to their frequency in the segment, which cannot be modified
+	 */
+	public SortedMap<Integer, Integer> getHashesFromSegment(int segmentNumber) throws IOException {
+
+		if (segmentNumber == lastSegmentNumber)
+			return lastSegmentHashes;
+
 		// gets the bag of features representation for the segment with
 		// identifier "segmentNumber"
-		SegmentBagOfFeatures segmentBagOfFeatures = querySegments.get(segmentNumber);
-
-		HashStats hashStats;
-		int hashFreq;
-
-		for (int hash : segmentBagOfFeatures.getDistinctHashInSegment()) {
-			totalHash++;    // increment total number of hash
-			// get collection statistics for current hash
-			hashStats = this.hashFeatureMap.get(hash);
-			// decomment for query length normalization //
-			// segmentLengths.get(segmentNumber)
-			hashFreq = segmentBagOfFeatures.getHashFrequency(hash);
-
-			// check if the hash can be pruned
-			if (pruning_enabled && pruningStrategy.pruneHash(hash, (double) hashFreq / querySegmentLength, hashStats)) {
-				prunedHash++;
-				continue;
-			} else {
-				query.add(new HashQuery(new Term("CONTENT", Integer.toString(hash)), segmentBagOfFeatures.getHashFrequency(hash), querySegmentLength, docsSegmentNorm));
-			}
+		SegmentBagOfFeatures segmentBagOfFeatures = querySegments.get(segmentNumber - firstSegmentNumber);
+		SortedMap<Integer, Integer> retained = new TreeMap<Integer, Integer>(segmentBagOfFeatures.getHashFrequencies());
+		totalHash += retained.size();    // increment total number of hash
+
+		// remove the stop hashes computed at indexing time
+		if (!stopHashes.isEmpty()) {
+			int size = retained.size();
+			retained.keySet().removeAll(stopHashes);
+			prunedHash += size - retained.size();
 		}
-		return query;
+
+		// remove the hashes which can be pruned, based on their collection
+		// statistics and on their frequency in the segment
+		if (pruning_enabled) {
+			Set<Integer> pruned = pruningStrategy.pruneSegment(retained, querySegmentLength, hashFeatureMap, indexReader);
+			prunedHash += pruned.size();
+			retained.keySet().removeAll(pruned);
+		}
+		lastSegmentNumber = segmentNumber;
+		lastSegmentHashes = Collections.unmodifiableSortedMap(retained);
+		return lastSegmentHashes;
 	}
 
 	/**
@@ -384,6 +474,19 @@ public class QueryParser {
 		}
 	}
 
+	/**
+	 * Loads the stop-hash list stored in the index folder, if any. Stop
+	 * hashes are removed from each segment before query pruning, and are
+	 * counted among the pruned hashes.
+	 *
+	 * @param indexPath
+	 *              full path to the folder where the index is stored
+	 * @throws FileNotFoundException
+	 */
+	public void loadStopHashes(String indexPath) throws FileNotFoundException {
+		stopHashes = new HashSet<Integer>(Indexing.loadStopHashes(new File(indexPath)).keySet());
+	}
+
 	/**
 	 * Returns the total number of hashes considered in the evaluation session
 	 * 
@@ -411,6 +514,16 @@ public class QueryParser {
 		return this.pruning_enabled;
 	}
 
+	/**
+	 * Sets the reader of the index the query is evaluated on, used by the
+	 * pruning strategies which need live collection statistics, see
+	 * {@link CostBudgetQueryPruningStrategy}
+	 * @param reader    index reader, or null to use the statistics stored at indexing time
+	 */
+	public void setIndexReader(IndexReader reader) {
+		indexReader = reader;
+	}
+
 	/**
 	 * Sets the length of each segment
 	 * @param documentsSegmentLength    length of document segments
@@ -418,4 +531,20 @@ public class QueryParser {
 	public void setDocumentSegmentLength(int documentsSegmentLength) {
 		docsSegmentNorm = 1.0f / documentsSegmentLength;
 	}
+
+	/**
+	 * Returns the norm of the document segments, i.e. the reciprocal of their length
+	 * @return  reciprocal of the length of document segments
+	 */
+	public float getDocumentSegmentNorm() {
+		return docsSegmentNorm;
+	}
+
+	/**
+	 * Returns the number of hashes which constitute a segment of the query
+	 * @return  length of query segments
+	 */
+	public int getQuerySegmentLength() {
+		return querySegmentLength;
+	}
 }
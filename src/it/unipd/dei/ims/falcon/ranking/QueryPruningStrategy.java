@@ -16,6 +16,11 @@ package it.unipd.dei.ims.falcon.ranking;
  * limitations under the License.
  */
 
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+
 /**
  * Defines the basic interface for a query pruning strategy.
  * 
@@ -25,4 +30,17 @@ public interface QueryPruningStrategy {
 	/** @return true if hash should be pruned */
 	public boolean pruneHash(int hash, double ntf, HashStats hs);
 
-}
\ No newline at end of file
+	/**
+	 * Select the hashes of a query segment that should be pruned; this allows
+	 * decisions which depend on the whole segment.
+	 *
+	 * @param segment        map from the hashes in the segment to their frequency
+	 * @param segmentLength  number of hashes in the segment
+	 * @param hashStats      collection statistics of the hashes, computed at indexing time
+	 * @param reader         reader of the index the segment is evaluated on,
+	 *                       for live collection statistics, or null if not available
+	 * @return the hashes that should be pruned
+	 */
+	public Set<Integer> pruneSegment(Map<Integer, Integer> segment, int segmentLength, Map<Integer, HashStats> hashStats,
+					IndexReader reader) throws IOException;
+}
@@ -0,0 +1,78 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Bounded cache of query results, with least-recently-used eviction.
+ * <p>
+ * The size of the cache is the total number of song scores in the cached
+ * results. The cache is shared by all the threads performing queries.
+ *
+ */
+class QueryResultCache extends LruCache<QueryResultCache.Key, QueryResults> {
+
+	/**
+	 * Key of the cache: a fingerprint of the query hashes and of all the
+	 * parameters affecting the results, together with the query pruning
+	 * strategy, which is compared with {@link Object#equals(java.lang.Object)}.
+	 */
+	static final class Key {
+
+		private final byte[] fingerprint;
+		private final QueryPruningStrategy pruningStrategy;
+
+		Key(byte[] fingerprint, QueryPruningStrategy pruningStrategy) {
+			this.fingerprint = fingerprint;
+			this.pruningStrategy = pruningStrategy;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return Arrays.equals(fingerprint, k.fingerprint)
+							&& (pruningStrategy == null ? k.pruningStrategy == null : pruningStrategy.equals(k.pruningStrategy));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(fingerprint) + (pruningStrategy == null ? 0 : pruningStrategy.hashCode());
+		}
+	}
+
+	/** @param maxSize max total number of song scores in the cached results */
+	QueryResultCache(int maxSize) {
+		super(maxSize);
+	}
+
+	@Override
+	protected int sizeOf(QueryResults res) {
+		return res.getResults().size();
+	}
+
+	/** @return the cached copy of the results, which cannot be modified */
+	QueryResults cache(Key key, QueryResults res) {
+		QueryResults cached = new QueryResults(Collections.unmodifiableMap(res.getResults()),
+						res.getPrunedHashes(), res.getTotalConsideredHashes());
+		put(key, cached);
+		return cached;
+	}
+}
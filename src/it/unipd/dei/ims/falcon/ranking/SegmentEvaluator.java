@@ -0,0 +1,41 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Evaluates the segments of a query against an index.
+ * For each query segment, an evaluator returns the score of the best
+ * matching segment of each song. The default implementation searches the
+ * Lucene index through the {@link SegmentQuery} built by {@link QueryParser};
+ * other implementations may use auxiliary index structures.
+ * <p>
+ * An instance is used by a single thread, for the segments of a single query,
+ * in increasing segment order.
+ *
+ */
+public interface SegmentEvaluator {
+
+	/**
+	 * @param queryParser     parser holding the segments of the current query
+	 * @param segmentNumber   number of the query segment to evaluate
+	 * @return map from song identifier to the max score of its segments
+	 */
+	public Map<String, Double> evaluate(QueryParser queryParser, int segmentNumber) throws IOException;
+}
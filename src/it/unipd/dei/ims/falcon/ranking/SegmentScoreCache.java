@@ -0,0 +1,114 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Bounded cache of the evaluation of query segments, with least-recently-used
+ * eviction, shared by all the threads performing queries.
+ * <p>
+ * Segments of different transpositions, overlapping segments and segments
+ * of different queries often retain the same hashes with the same
+ * frequencies. A segment is identified by its retained hashes and their
+ * frequencies, together with the query segment length and a tag of the
+ * index and of the evaluation settings, which determine the scores; the
+ * cached value is the max score of each song. The size of the cache is the
+ * total number of song scores in the cached values, plus one for each value.
+ *
+ */
+class SegmentScoreCache extends LruCache<SegmentScoreCache.Key, Map<String, Double>> {
+
+	/** Signature of an evaluated segment. */
+	static final class Key {
+
+		// tag, query segment length, then pairs of hash and frequency
+		private final int[] signature;
+		private final int hash;
+
+		Key(int[] signature) {
+			this.signature = signature;
+			this.hash = Arrays.hashCode(signature);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(signature, ((Key) o).signature);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/** @param maxSize max total number of song scores in the cached values */
+	SegmentScoreCache(int maxSize) {
+		super(maxSize);
+	}
+
+	@Override
+	protected int sizeOf(Map<String, Double> songid2maxscore) {
+		return 1 + songid2maxscore.size();
+	}
+
+	/**
+	 * Returns an evaluator which looks up segments in this cache, and
+	 * evaluates with the given evaluator only the ones not found.
+	 *
+	 * @param evaluator evaluator of the segments not in the cache
+	 * @param tag       identifies the index and the evaluation settings,
+	 *                  segments are shared only by evaluators with the same tag
+	 */
+	SegmentEvaluator getEvaluator(SegmentEvaluator evaluator, int[] tag) {
+		return new CachingEvaluator(evaluator, tag);
+	}
+
+	private class CachingEvaluator implements SegmentEvaluator {
+
+		private final SegmentEvaluator evaluator;
+		private final int[] tag;
+
+		private CachingEvaluator(SegmentEvaluator evaluator, int[] tag) {
+			this.evaluator = evaluator;
+			this.tag = tag;
+		}
+
+		public Map<String, Double> evaluate(QueryParser queryParser, int segmentNumber) throws IOException {
+			Map<Integer, Integer> hashes = queryParser.getHashesFromSegment(segmentNumber);
+			int[] signature = new int[tag.length + 1 + 2 * hashes.size()];
+			System.arraycopy(tag, 0, signature, 0, tag.length);
+			int i = tag.length;
+			signature[i++] = queryParser.getQuerySegmentLength();
+			// hashes are sorted, hence the signature is canonical
+			for (Map.Entry<Integer, Integer> e : hashes.entrySet()) {
+				signature[i++] = e.getKey();
+				signature[i++] = e.getValue();
+			}
+			Key key = new Key(signature);
+			Map<String, Double> songid2maxscore = get(key);
+			if (songid2maxscore == null) {
+				songid2maxscore = Collections.unmodifiableMap(evaluator.evaluate(queryParser, segmentNumber));
+				put(key, songid2maxscore);
+			}
+			return songid2maxscore;
+		}
+	}
+}
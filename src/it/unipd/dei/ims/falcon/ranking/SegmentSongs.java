@@ -0,0 +1,112 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps the segments (documents) of an index to the songs they belong to.
+ * Songs are identified by a dense ordinal, so that per-song scores can be
+ * kept in primitive arrays while evaluating a query segment.
+ *
+ */
+final class SegmentSongs {
+
+	// song ordinal of each segment
+	private final int[] songOfSegment;
+	// song identifier of each ordinal
+	private final String[] songIds;
+
+	/**
+	 * @param segmentSongIds  song identifier of each segment, e.g. the TITLE field
+	 *                        of each Lucene document as returned by the field cache
+	 */
+	SegmentSongs(String[] segmentSongIds) {
+		songOfSegment = new int[segmentSongIds.length];
+		Map<String, Integer> ordinals = new HashMap<String, Integer>();
+		for (int d = 0; d < segmentSongIds.length; d++) {
+			Integer o = ordinals.get(segmentSongIds[d]);
+			if (o == null) {
+				o = ordinals.size();
+				ordinals.put(segmentSongIds[d], o);
+			}
+			songOfSegment[d] = o;
+		}
+		songIds = new String[ordinals.size()];
+		for (Map.Entry<String, Integer> e : ordinals.entrySet())
+			songIds[e.getValue()] = e.getKey();
+	}
+
+	/**
+	 * @param songOfSegment  song ordinal of each segment
+	 * @param songIds        song identifier of each ordinal
+	 */
+	SegmentSongs(int[] songOfSegment, String[] songIds) {
+		this.songOfSegment = songOfSegment;
+		this.songIds = songIds;
+	}
+
+	int getNumberOfSegments() {
+		return songOfSegment.length;
+	}
+
+	int getNumberOfSongs() {
+		return songIds.length;
+	}
+
+	int getSong(int segment) {
+		return songOfSegment[segment];
+	}
+
+	String getSongId(int song) {
+		return songIds[song];
+	}
+
+	/**
+	 * Per-song max score of a query segment, backed by primitive arrays
+	 * which are reused from one query segment to the next.
+	 */
+	final class MaxScores {
+
+		private final float[] best = new float[songIds.length];
+		private final int[] touched = new int[songIds.length];
+		private int ntouched = 0;
+
+		/** record the score of a segment (must be positive) */
+		void add(int segment, float score) {
+			int s = songOfSegment[segment];
+			if (best[s] == 0)
+				touched[ntouched++] = s;
+			if (score > best[s])
+				best[s] = score;
+		}
+
+		/** @return map from song identifier to max score; resets the scores */
+		Map<String, Double> drain() {
+			Map<String, Double> songid2maxscore = new TreeMap<String, Double>();
+			for (int i = 0; i < ntouched; i++) {
+				int s = touched[i];
+				songid2maxscore.put(songIds[s], Double.valueOf(best[s]));
+				best[s] = 0;
+			}
+			ntouched = 0;
+			return songid2maxscore;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+
+/**
+ * Evaluates consecutive query segments incrementally. Overlapping query
+ * segments share most of their hashes, hence the score of each index
+ * segment is kept from one query segment to the next, and only the
+ * postings of the hashes whose frequency changes, that is the hashes
+ * entering and leaving the window, are read.
+ * <p>
+ * The score of a posting min(f * docsSegmentNorm, qtf / querySegmentLength)
+ * is accumulated as the integer min(f * querySegmentLength, qtf * L), where
+ * L is the length of document segments, so that adding and subtracting
+ * contributions is exact; scores may differ from the ones of
+ * {@link LuceneSegmentEvaluator} in the last digits, since the latter sums
+ * floating-point numbers. When a segment is not the successor of the last
+ * evaluated one, scores are computed from scratch.
+ *
+ */
+public class SlidingWindowEvaluator implements SegmentEvaluator {
+
+	private IndexReader reader;
+	private SegmentSongs.MaxScores scores;
+	private int documentSegmentLength;
+	// score of each index segment, scaled by querySegmentLength * documentSegmentLength
+	private int[] acc;
+	// index segments with positive score, and their position in the list (-1 if absent)
+	private int[] active;
+	private int nactive = 0;
+	private int[] position;
+	// buffers to read posting lists which are not cached
+	private int[] docs = new int[HashScorer.DEFAULT_BUFFER_SIZE];
+	private int[] freqs = new int[HashScorer.DEFAULT_BUFFER_SIZE];
+	// last evaluated segment
+	private QueryParser lastParser = null;
+	private int lastSegmentNumber = -1;
+	private SortedMap<Integer, Integer> lastHashes = null;
+
+	/**
+	 * @param reader                 reader of the index
+	 * @param songs                  song of each segment in the index
+	 * @param documentSegmentLength  number of hashes per segment in the index
+	 */
+	SlidingWindowEvaluator(IndexReader reader, SegmentSongs songs, int documentSegmentLength) {
+		this.reader = reader;
+		this.scores = songs.new MaxScores();
+		this.documentSegmentLength = documentSegmentLength;
+		acc = new int[reader.maxDoc()];
+		active = new int[acc.length];
+		position = new int[acc.length];
+		Arrays.fill(position, -1);
+	}
+
+	public Map<String, Double> evaluate(QueryParser queryParser, int segmentNumber) throws IOException {
+		SortedMap<Integer, Integer> hashes = queryParser.getHashesFromSegment(segmentNumber);
+		SortedMap<Integer, Integer> previous = lastHashes;
+		if (queryParser != lastParser || segmentNumber != lastSegmentNumber + 1) {
+			clear();
+			previous = new TreeMap<Integer, Integer>();
+		}
+		int querySegmentLength = queryParser.getQuerySegmentLength();
+
+		// merge the two sorted maps, updating the hashes whose frequency changed
+		Iterator<Map.Entry<Integer, Integer>> oldIter = previous.entrySet().iterator();
+		Iterator<Map.Entry<Integer, Integer>> newIter = hashes.entrySet().iterator();
+		Map.Entry<Integer, Integer> o = oldIter.hasNext() ? oldIter.next() : null;
+		Map.Entry<Integer, Integer> n = newIter.hasNext() ? newIter.next() : null;
+		while (o != null || n != null) {
+			int c = o == null ? 1 : (n == null ? -1 : o.getKey().compareTo(n.getKey()));
+			if (c < 0) {
+				update(o.getKey(), o.getValue(), 0, querySegmentLength);
+				o = oldIter.hasNext() ? oldIter.next() : null;
+			} else if (c > 0) {
+				update(n.getKey(), 0, n.getValue(), querySegmentLength);
+				n = newIter.hasNext() ? newIter.next() : null;
+			} else {
+				if (!o.getValue().equals(n.getValue()))
+					update(n.getKey(), o.getValue(), n.getValue(), querySegmentLength);
+				o = oldIter.hasNext() ? oldIter.next() : null;
+				n = newIter.hasNext() ? newIter.next() : null;
+			}
+		}
+		lastParser = queryParser;
+		lastSegmentNumber = segmentNumber;
+		lastHashes = hashes;
+
+		double scale = (double) querySegmentLength * documentSegmentLength;
+		for (int i = 0; i < nactive; i++)
+			scores.add(active[i], (float) (acc[active[i]] / scale));
+		return scores.drain();
+	}
+
+	/** updates the scores for a change of the frequency of a hash in the query segment */
+	private void update(int hash, int oldQtf, int newQtf, int querySegmentLength) throws IOException {
+		int oldBound = oldQtf * documentSegmentLength;
+		int newBound = newQtf * documentSegmentLength;
+		Term term = new Term("CONTENT", Integer.toString(hash));
+		PostingListCache cache = PostingListCache.getInstance();
+		PostingListCache.PostingList postings = cache == null ? null : cache.get(reader, term);
+		if (postings != null) {
+			update(postings.docs, postings.freqs, postings.length, oldBound, newBound, querySegmentLength);
+			return;
+		}
+		TermDocs termDocs = reader.termDocs(term);
+		try {
+			int length;
+			while ((length = termDocs.read(docs, freqs)) > 0)
+				update(docs, freqs, length, oldBound, newBound, querySegmentLength);
+		} finally {
+			termDocs.close();
+		}
+	}
+
+	private void update(int[] docs, int[] freqs, int length, int oldBound, int newBound, int querySegmentLength) {
+		for (int i = 0; i < length; i++) {
+			int d = docs[i];
+			int f = freqs[i] * querySegmentLength;
+			int a = acc[d] + Math.min(f, newBound) - Math.min(f, oldBound);
+			acc[d] = a;
+			if (a > 0 && position[d] < 0) {
+				position[d] = nactive;
+				active[nactive++] = d;
+			} else if (a == 0 && position[d] >= 0) {
+				// move the last active segment in place of this one
+				int last = active[--nactive];
+				active[position[d]] = last;
+				position[last] = position[d];
+				position[d] = -1;
+			}
+		}
+	}
+
+	/** resets the scores of all the index segments */
+	private void clear() {
+		for (int i = 0; i < nactive; i++) {
+			acc[active[i]] = 0;
+			position[active[i]] = -1;
+		}
+		nactive = 0;
+	}
+}
@@ -15,9 +15,14 @@ package it.unipd.dei.ims.falcon.ranking;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.apache.lucene.index.IndexReader;
 
 /**
  * Defines a strategy for pruning hashes in the query
@@ -49,6 +54,19 @@ public class StaticQueryPruningStrategy implements QueryPruningStrategy {
 		public String toString() {
 			return String.format("[%f,%f]", low, high);
 		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Interval))
+				return false;
+			Interval i = (Interval) o;
+			return Double.compare(low, i.low) == 0 && Double.compare(high, i.high) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Double.valueOf(low).hashCode() + Double.valueOf(high).hashCode();
+		}
 	}
 	// intervals-weights for normalized [term,document,collection,max] frequency
 	private double wt, wd, wc, wm;
@@ -96,7 +114,24 @@ public class StaticQueryPruningStrategy implements QueryPruningStrategy {
 	 * double, it.unipd.dei.ims.mirlucene.ranking.HashStats)
 	 */
 	public boolean pruneHash(int hash, double ntf, HashStats hs) {
-		return !retainHash(hash, ntf, hs);
+		// hashes which do not appear in the index have no postings
+		return hs == null || !retainHash(hash, ntf, hs);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy#pruneSegment(java.util.Map,
+	 * int, java.util.Map, org.apache.lucene.index.IndexReader)
+	 */
+	public Set<Integer> pruneSegment(Map<Integer, Integer> segment, int segmentLength, Map<Integer, HashStats> hashStats,
+					IndexReader reader) throws IOException {
+		Set<Integer> pruned = new HashSet<Integer>();
+		for (Map.Entry<Integer, Integer> e : segment.entrySet())
+			if (pruneHash(e.getKey(), (double) e.getValue() / segmentLength, hashStats.get(e.getKey())))
+				pruned.add(e.getKey());
+		return pruned;
 	}
 
 	// add an interval with a specific weight - note that 0 <= low < high <= 1
@@ -135,4 +170,28 @@ public class StaticQueryPruningStrategy implements QueryPruningStrategy {
 		s += String.format("nmf:%f*%s;", wm, im.toString());
 		return s;
 	}
+
+	/** two strategies are equal if they prune the same hashes, e.g. for caching query results */
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof StaticQueryPruningStrategy))
+			return false;
+		StaticQueryPruningStrategy q = (StaticQueryPruningStrategy) o;
+		return Double.compare(wt, q.wt) == 0 && Double.compare(wd, q.wd) == 0
+						&& Double.compare(wc, q.wc) == 0 && Double.compare(wm, q.wm) == 0
+						&& it.equals(q.it) && id.equals(q.id) && ic.equals(q.ic) && im.equals(q.im);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = it.hashCode();
+		h = 31 * h + id.hashCode();
+		h = 31 * h + ic.hashCode();
+		h = 31 * h + im.hashCode();
+		h = 31 * h + Double.valueOf(wt).hashCode();
+		h = 31 * h + Double.valueOf(wd).hashCode();
+		h = 31 * h + Double.valueOf(wc).hashCode();
+		h = 31 * h + Double.valueOf(wm).hashCode();
+		return h;
+	}
 }
@@ -0,0 +1,204 @@
+package it.unipd.dei.ims.falcon.server;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.ranking.QueryResults;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends queries to a set of {@link ShardServer}'s and merges their results.
+ * <p>
+ * Each server holds a disjoint set of songs, typically a shard of a sharded
+ * index, so the score of a song is the one returned by the server holding
+ * it; as for transpositions, the max is retained should a song be returned
+ * by more than one server. The numbers of pruned and considered hashes are
+ * those of the first server, since all the servers parse the same query.
+ * <p>
+ * A connection to each server is opened when the coordinator is created,
+ * and used for all the queries; queries are sent to all the servers in
+ * parallel, one query at a time. A query returns only when all the servers
+ * have responded or failed, so that the responses of a failed query are not
+ * read by the next one. After an I/O error the connection may be in the
+ * middle of a response, hence it is opened again before the next query.
+ *
+ */
+public class ShardCoordinator {
+
+	private List<InetSocketAddress> servers;
+	private Socket[] sockets;
+	private DataInputStream[] ins;
+	private DataOutputStream[] outs;
+	// connections which failed during a request, to be opened again
+	private boolean[] broken;
+	private ExecutorService pool;
+
+	/**
+	 * Connects to the given servers.
+	 *
+	 * @param servers  addresses of the shard servers
+	 * @throws IOException
+	 */
+	public ShardCoordinator(List<InetSocketAddress> servers) throws IOException {
+		this.servers = new ArrayList<InetSocketAddress>(servers);
+		sockets = new Socket[servers.size()];
+		ins = new DataInputStream[servers.size()];
+		outs = new DataOutputStream[servers.size()];
+		broken = new boolean[servers.size()];
+		try {
+			for (int s = 0; s < sockets.length; s++)
+				connect(s);
+		} catch (IOException ex) {
+			closeSockets();
+			throw ex;
+		}
+		pool = Executors.newFixedThreadPool(sockets.length);
+	}
+
+	/** opens the connection to the given server */
+	private void connect(int s) throws IOException {
+		sockets[s] = new Socket(servers.get(s).getAddress(), servers.get(s).getPort());
+		sockets[s].setTcpNoDelay(true);
+		ins[s] = new DataInputStream(new BufferedInputStream(sockets[s].getInputStream()));
+		outs[s] = new DataOutputStream(new BufferedOutputStream(sockets[s].getOutputStream()));
+	}
+
+	/** sends the query to a server, opening the connection again if it is broken */
+	private QueryResults query(int s, byte[] chroma) throws IOException {
+		if (broken[s]) {
+			sockets[s].close();
+			connect(s);
+			broken[s] = false;
+		}
+		try {
+			ShardProtocol.writeRequest(outs[s], chroma);
+			return ShardProtocol.readResults(ins[s]);
+		} catch (ShardProtocol.ServerError ex) {
+			throw ex;
+		} catch (IOException ex) {
+			broken[s] = true;
+			throw ex;
+		} catch (RuntimeException ex) {
+			// malformed response
+			broken[s] = true;
+			throw new IOException("invalid response from shard server " + servers.get(s) + ": " + ex);
+		}
+	}
+
+	/**
+	 * Parses a comma-separated list of "host:port" addresses.
+	 *
+	 * @param s  list of addresses, e.g. "localhost:5001,localhost:5002"
+	 * @return the addresses
+	 */
+	public static List<InetSocketAddress> parseAddresses(String s) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String a : s.split(",")) {
+			int colon = a.lastIndexOf(':');
+			addresses.add(new InetSocketAddress(a.substring(0, colon).trim(), Integer.parseInt(a.substring(colon + 1).trim())));
+		}
+		return addresses;
+	}
+
+	/**
+	 * Performs a query on all the servers.
+	 *
+	 * @param query  input stream containing the chroma matrix in text format
+	 * @return the merged results
+	 * @throws IOException  if a server cannot be reached or fails, after all
+	 *                      the servers have responded
+	 */
+	public synchronized QueryResults query(InputStream query) throws IOException {
+		final byte[] chroma = ShardProtocol.readFully(query);
+		List<Future<QueryResults>> futures = new ArrayList<Future<QueryResults>>();
+		for (int s = 0; s < sockets.length; s++) {
+			final int shard = s;
+			futures.add(pool.submit(new Callable<QueryResults>() {
+
+				public QueryResults call() throws IOException {
+					return query(shard, chroma);
+				}
+			}));
+		}
+		// wait for all the servers, so that no request of this query is
+		// still running when the next query is sent
+		List<QueryResults> results = new ArrayList<QueryResults>();
+		IOException failure = null;
+		boolean interrupted = false;
+		for (Future<QueryResults> f : futures) {
+			while (true) {
+				try {
+					results.add(f.get());
+				} catch (InterruptedException ex) {
+					interrupted = true;
+					continue;
+				} catch (ExecutionException ex) {
+					if (failure == null)
+						failure = ex.getCause() instanceof IOException ? (IOException) ex.getCause()
+										: new IOException("shard server failure: " + ex.getCause());
+				}
+				break;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null)
+			throw failure;
+		Map<String, Double> finalRes = new TreeMap<String, Double>();
+		// every server parses the same query, hence the pruning statistics
+		// are those of the first one
+		long pruned = 0, total = 0;
+		for (QueryResults res : results) {
+			for (Map.Entry<String, Double> e : res.getResults().entrySet()) {
+				if (!finalRes.containsKey(e.getKey()) || e.getValue() > finalRes.get(e.getKey()))
+					finalRes.put(e.getKey(), e.getValue());
+			}
+			if (res == results.get(0)) {
+				pruned = res.getPrunedHashes();
+				total = res.getTotalConsideredHashes();
+			}
+		}
+		return new QueryResults(finalRes, pruned, total);
+	}
+
+	/** closes the connections to the servers */
+	public void close() throws IOException {
+		pool.shutdown();
+		closeSockets();
+	}
+
+	private void closeSockets() throws IOException {
+		for (Socket s : sockets)
+			if (s != null)
+				s.close();
+	}
+}
@@ -0,0 +1,120 @@
+package it.unipd.dei.ims.falcon.server;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.ranking.QueryResults;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary protocol between a {@link ShardServer} and a {@link ShardCoordinator}.
+ * <p>
+ * A connection carries any number of request/response pairs, and is closed
+ * by the client. A request is an int with the length of the query chroma
+ * matrix, followed by the matrix itself in the usual text format. A response
+ * is a status byte; if the status is {@link #OK}, the number of pruned
+ * hashes and the total number of hashes (two longs) follow, then the number
+ * of songs (int) and, for each song, its identifier (modified UTF-8) and its
+ * score (double). Otherwise the status is {@link #ERROR} and an error
+ * message (modified UTF-8) follows.
+ *
+ */
+final class ShardProtocol {
+
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+
+	private ShardProtocol() {
+	}
+
+	/**
+	 * Error returned by a server: the response was read completely, hence
+	 * the connection can still be used for the next requests.
+	 */
+	static class ServerError extends IOException {
+
+		ServerError(String message) {
+			super(message);
+		}
+	}
+
+	/** @return the content of a stream, read until its end */
+	static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = is.read(buf)) >= 0)
+			bos.write(buf, 0, n);
+		return bos.toByteArray();
+	}
+
+	static void writeRequest(DataOutputStream out, byte[] chroma) throws IOException {
+		out.writeInt(chroma.length);
+		out.write(chroma);
+		out.flush();
+	}
+
+	/** @return the query chroma matrix, or null if the client closed the connection */
+	static byte[] readRequest(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException ex) {
+			return null;
+		}
+		byte[] chroma = new byte[length];
+		in.readFully(chroma);
+		return chroma;
+	}
+
+	static void writeResults(DataOutputStream out, QueryResults res) throws IOException {
+		out.writeByte(OK);
+		out.writeLong(res.getPrunedHashes());
+		out.writeLong(res.getTotalConsideredHashes());
+		out.writeInt(res.getResults().size());
+		for (Map.Entry<String, Double> e : res.getResults().entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeDouble(e.getValue());
+		}
+		out.flush();
+	}
+
+	static void writeError(DataOutputStream out, String message) throws IOException {
+		out.writeByte(ERROR);
+		out.writeUTF(message == null ? "" : message);
+		out.flush();
+	}
+
+	/** @throws ServerError if the server returned an error */
+	static QueryResults readResults(DataInputStream in) throws IOException {
+		if (in.readByte() != OK)
+			throw new ServerError("shard server error: " + in.readUTF());
+		long pruned = in.readLong();
+		long total = in.readLong();
+		int n = in.readInt();
+		Map<String, Double> results = new HashMap<String, Double>(2 * n);
+		for (int i = 0; i < n; i++)
+			results.put(in.readUTF(), in.readDouble());
+		return new QueryResults(results, pruned, total);
+	}
+}
@@ -0,0 +1,125 @@
+package it.unipd.dei.ims.falcon.server;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.ranking.QueryMethods;
+import it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy;
+import it.unipd.dei.ims.falcon.ranking.QueryResults;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves queries on a single index over a local socket, with the protocol
+ * described in {@link ShardProtocol}. The index is typically one shard of
+ * a collection, and the queries are sent by a {@link ShardCoordinator}
+ * which merges the results of all the shards.
+ * <p>
+ * All the query parameters but the query itself are fixed when the server
+ * is created, and the index is opened by {@link QueryMethods} when the first
+ * query is performed; it stays open for the following ones. Each connection
+ * is served by its own thread.
+ *
+ */
+public class ShardServer {
+
+	private File index;
+	private int hps;
+	private int overlap;
+	private int nranks;
+	private int subsampling;
+	private TranspositionEstimator tpe;
+	private int ntransp;
+	private double minkurt;
+	private QueryPruningStrategy pruningStrategy;
+
+	/**
+	 * Creates a server for the given index; the parameters are those of
+	 * {@link QueryMethods#query}, and are used for all the queries.
+	 */
+	public ShardServer(File index, int hps, int overlap, int nranks, int subsampling,
+					TranspositionEstimator tpe, int ntransp, double minkurt, QueryPruningStrategy pruningStrategy) {
+		this.index = index;
+		this.hps = hps;
+		this.overlap = overlap;
+		this.nranks = nranks;
+		this.subsampling = subsampling;
+		this.tpe = tpe;
+		this.ntransp = ntransp;
+		this.minkurt = minkurt;
+		this.pruningStrategy = pruningStrategy;
+	}
+
+	/**
+	 * Accepts connections on the loopback interface, never returns.
+	 *
+	 * @param port  port to listen on
+	 * @throws IOException
+	 */
+	public void serve(int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+		while (true) {
+			final Socket socket = server.accept();
+			new Thread(new Runnable() {
+
+				public void run() {
+					try {
+						handle(socket);
+					} catch (IOException ex) {
+						Logger.getLogger(ShardServer.class.getName()).log(Level.SEVERE, null, ex);
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException ex) {
+							Logger.getLogger(ShardServer.class.getName()).log(Level.SEVERE, null, ex);
+						}
+					}
+				}
+			}).start();
+		}
+	}
+
+	/** serves the requests of a connection until the client closes it */
+	private void handle(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		byte[] chroma;
+		while ((chroma = ShardProtocol.readRequest(in)) != null) {
+			QueryResults res;
+			try {
+				res = QueryMethods.query(new ByteArrayInputStream(chroma), index, hps, overlap, nranks,
+								subsampling, tpe, ntransp, minkurt, pruningStrategy);
+			} catch (Exception ex) {
+				Logger.getLogger(ShardServer.class.getName()).log(Level.SEVERE, null, ex);
+				ShardProtocol.writeError(out, ex.toString());
+				continue;
+			}
+			ShardProtocol.writeResults(out, res);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package it.unipd.dei.ims.falcon;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a query daemon on stdin/stdout in a separate process, and checks that
+ * requests keep the options the daemon was started with, and that invalid
+ * requests get a response without stopping the daemon.
+ */
+public class DaemonTest {
+
+	private TestCollection collection;
+	private Process daemon;
+	private File log;
+	private PrintStream requests;
+	private BufferedReader responses;
+
+	@Before
+	public void setUp() throws Exception {
+		collection = new TestCollection(20, 2, 34);
+		File index = collection.index("index", null);
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(CmdLine.class.getName());
+		cmd.add("-D");
+		cmd.add("-");
+		cmd.add("-l" + TestCollection.HPS);
+		cmd.add("-o" + TestCollection.OVERLAP);
+		cmd.add("-Q" + TestCollection.NRANKS);
+		cmd.add("-C");
+		cmd.add("100000");
+		cmd.add(index.getPath());
+		log = collection.newIndexFolder("daemon.log");
+		daemon = new ProcessBuilder(cmd).redirectError(log).start();
+		requests = new PrintStream(daemon.getOutputStream(), true, "UTF-8");
+		responses = new BufferedReader(new InputStreamReader(daemon.getInputStream(), "UTF-8"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		requests.close();
+		daemon.waitFor();
+		collection.delete();
+	}
+
+	@Test
+	public void requestsKeepTheDaemonOptions() throws Exception {
+		String q = collection.getQueries().get(0).getPath();
+		List<String> first = request("-b -v", q, q);
+		assertTrue(first.contains("result cache hits|misses 1 1"));
+		List<String> ranks = ranks(first);
+		assertFalse(ranks.isEmpty());
+
+		// invalid requests, which do not give -C
+		assertTrue(request("-q " + q + " -l abc").get(0).startsWith("ERROR"));
+		assertTrue(request("-b -R x", q).get(0).startsWith("ERROR"));
+		File malformed = new File(collection.getSongs().getParentFile(), "malformed.csv");
+		PrintWriter pw = new PrintWriter(malformed);
+		pw.println("a,b,c,d,e,f,g,h,i,j,k,l");
+		pw.close();
+		assertTrue(request("-q " + malformed.getPath()).isEmpty());
+
+		// the result cache is still there, and the segment length is still the daemon one
+		List<String> last = request("-b -v", q);
+		assertTrue(last.get(last.size() - 1).startsWith("result cache hits|misses 2 "));
+		assertEquals(ranks.subList(0, ranks.size() / 2), ranks(last));
+		requests.close();
+		daemon.waitFor();
+		assertTrue(new String(Files.readAllBytes(log.toPath()), "UTF-8").contains("NumberFormatException"));
+	}
+
+	/** @return the response to a request, without the end line */
+	private List<String> request(String options, String... queries) throws Exception {
+		requests.println(options);
+		if (options.startsWith("-b")) {
+			for (String q : queries)
+				requests.println(q);
+			requests.println();
+		}
+		List<String> response = new ArrayList<String>();
+		for (String line = responses.readLine(); !CmdLine.END_OF_RESPONSE.equals(line); line = responses.readLine()) {
+			assertNotNull("the daemon stopped", line);
+			response.add(line);
+		}
+		return response;
+	}
+
+	private static List<String> ranks(List<String> response) {
+		List<String> ranks = new ArrayList<String>();
+		for (String line : response)
+			if (line.startsWith("rank"))
+				ranks.add(line);
+		return ranks;
+	}
+}
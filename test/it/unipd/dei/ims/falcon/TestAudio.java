@@ -0,0 +1,100 @@
+package it.unipd.dei.ims.falcon;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Synthetic audio for the tests: random chords, with silences.
+ */
+public class TestAudio {
+
+	// semitones of the notes of a major triad
+	private static final int[] TRIAD = {0, 4, 7};
+
+	/**
+	 * @param channels   number of channels
+	 * @param sampleRate sample rate
+	 * @param seconds    length
+	 * @param seed       seed of the random generator
+	 * @return samples[channel][i] in [-1, 1]; major triads on random roots
+	 *         last half a second, and every fourth one is a silence
+	 */
+	public static double[][] chords(int channels, float sampleRate, double seconds, long seed) {
+		Random random = new Random(seed);
+		int n = (int) (seconds * sampleRate);
+		int chordLength = (int) (sampleRate / 2);
+		double[][] samples = new double[channels][n];
+		double[] freqs = new double[3];
+		for (int start = 0, chord = 0; start < n; start += chordLength, chord++) {
+			int root = random.nextInt(12);
+			for (int k = 0; k < freqs.length; k++)
+				freqs[k] = 220 * Math.pow(2, (root + TRIAD[k]) / 12.);
+			if (chord % 4 == 3)
+				continue;
+			for (int c = 0; c < channels; c++)
+				for (int i = start; i < Math.min(n, start + chordLength); i++)
+					for (int k = 0; k < freqs.length; k++)
+						samples[c][i] += (0.3 - 0.1 * c / channels) * Math.sin(2 * Math.PI * freqs[k] * i / sampleRate + c);
+		}
+		return samples;
+	}
+
+	/**
+	 * Writes samples as signed integer PCM.
+	 *
+	 * @param f              output file
+	 * @param samples        samples[channel][i] in [-1, 1]
+	 * @param sampleRate     sample rate
+	 * @param bytesPerSample bytes of each sample, 1 to 4
+	 * @param bigEndian      byte order (WAV is little endian, AU big endian)
+	 * @param type           file type
+	 * @return the integer value written for each sample
+	 */
+	public static long[][] write(File f, double[][] samples, float sampleRate, int bytesPerSample, boolean bigEndian,
+					AudioFileFormat.Type type) throws IOException {
+		int channels = samples.length;
+		int n = samples[0].length;
+		long max = (1L << (8 * bytesPerSample - 1)) - 1;
+		long[][] values = new long[channels][n];
+		byte[] data = new byte[n * channels * bytesPerSample];
+		int p = 0;
+		for (int i = 0; i < n; i++)
+			for (int c = 0; c < channels; c++) {
+				long v = Math.round(samples[c][i] * max);
+				values[c][i] = v;
+				for (int b = 0; b < bytesPerSample; b++)
+					data[p + (bigEndian ? bytesPerSample - 1 - b : b)] = (byte) (v >> (8 * b));
+				p += bytesPerSample;
+			}
+		AudioFormat format = new AudioFormat(sampleRate, 8 * bytesPerSample, channels, true, bigEndian);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(data), format, n), type, f);
+		return values;
+	}
+
+	/** writes samples as a 16 bit WAV file */
+	public static void writeWav(File f, double[][] samples, float sampleRate) throws IOException {
+		write(f, samples, sampleRate, 2, false, AudioFileFormat.Type.WAVE);
+	}
+}
@@ -0,0 +1,168 @@
+package it.unipd.dei.ims.falcon;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import it.unipd.dei.ims.falcon.indexing.IndexingException;
+import it.unipd.dei.ims.falcon.ranking.QueryMethods;
+import it.unipd.dei.ims.falcon.ranking.QueryParsingException;
+import it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import static org.junit.Assert.*;
+
+/**
+ * Synthetic collection of chroma matrices, and queries which are noisy and
+ * possibly transposed excerpts of its songs, for the tests.
+ * <p>
+ * Songs are sequences of random chroma vectors which change every 20
+ * frames, with some noise on each frame.
+ */
+public class TestCollection {
+
+	/** number of hashes in a segment of the test indexes */
+	public static final int HPS = 30;
+	/** number of hashes in the overlap of the test indexes */
+	public static final int OVERLAP = 10;
+	/** quantization level of the test indexes */
+	public static final int NRANKS = 3;
+
+	private File folder;
+	private File songs;
+	private List<File> queries = new ArrayList<File>();
+
+	/**
+	 * Writes a collection in a new temporary folder.
+	 *
+	 * @param nsongs   number of songs
+	 * @param nqueries number of queries, from songs spread over the collection
+	 * @param seed     seed of the random generator
+	 */
+	public TestCollection(int nsongs, int nqueries, long seed) throws IOException {
+		folder = newFolder("falcon-test");
+		songs = new File(folder, "songs");
+		songs.mkdir();
+		File queryFolder = new File(folder, "queries");
+		queryFolder.mkdir();
+		Random random = new Random(seed);
+		for (int s = 0; s < nsongs; s++) {
+			float[][] song = randomSong(random, 400 + random.nextInt(500));
+			write(song, new File(songs, String.format("song%03d.csv", s)));
+			if (nqueries > 0 && s % Math.max(1, nsongs / nqueries) == 0 && queries.size() < nqueries) {
+				File q = new File(queryFolder, String.format("query%03d.csv", s));
+				write(excerpt(random, song, random.nextInt(song.length - 300), 300, s % 12), q);
+				queries.add(q);
+			}
+		}
+	}
+
+	/** @return the folder of the chroma matrices of the songs */
+	public File getSongs() {
+		return songs;
+	}
+
+	/** @return the query files */
+	public List<File> getQueries() {
+		return queries;
+	}
+
+	/** @return a new folder in the folder of the collection, for an index */
+	public File newIndexFolder(String name) {
+		return new File(folder, name);
+	}
+
+	/** deletes all the files of the collection and of its indexes */
+	public void delete() {
+		deleteRecursively(folder);
+	}
+
+	/** indexes the songs in a new folder, with the current static settings of Indexing */
+	public File index(String name, TranspositionEstimator tpe) throws IOException, IndexingException {
+		File index = newIndexFolder(name);
+		Indexing.index(songs, index, HPS, OVERLAP, 1, NRANKS, -100, tpe, false);
+		return index;
+	}
+
+	/** @return the results of a query, with the current static settings of QueryMethods */
+	public static Map<String, Double> query(File query, File index, TranspositionEstimator tpe, int ntransp,
+					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+		return QueryMethods.query(query, index, HPS, OVERLAP, NRANKS, 1, tpe, ntransp, -100, pruningStrategy).getResults();
+	}
+
+	/** checks that two results have the same songs, and the same scores up to the given tolerance */
+	public static void assertSameResults(Map<String, Double> expected, Map<String, Double> actual, double tolerance) {
+		assertEquals(new TreeSet<String>(expected.keySet()), new TreeSet<String>(actual.keySet()));
+		for (Map.Entry<String, Double> e : expected.entrySet())
+			assertEquals(e.getKey(), e.getValue(), actual.get(e.getKey()), tolerance);
+	}
+
+	private static float[][] randomSong(Random random, int length) {
+		float[][] song = new float[length][12];
+		float[] base = new float[12];
+		for (int i = 0; i < length; i++) {
+			if (i % 20 == 0)
+				for (int j = 0; j < 12; j++)
+					base[j] = (float) Math.pow(random.nextFloat(), 3);
+			for (int j = 0; j < 12; j++)
+				song[i][j] = Math.max(0f, base[j] + (float) random.nextGaussian() * 0.05f);
+		}
+		return song;
+	}
+
+	// noisy excerpt, rotated by shift semitones
+	private static float[][] excerpt(Random random, float[][] song, int start, int length, int shift) {
+		float[][] q = new float[length][12];
+		for (int i = 0; i < length; i++)
+			for (int j = 0; j < 12; j++)
+				q[i][j] = Math.max(0f, song[start + i][(j + shift) % 12] + (float) random.nextGaussian() * 0.03f);
+		return q;
+	}
+
+	private static void write(float[][] chroma, File f) throws IOException {
+		PrintWriter pw = new PrintWriter(f);
+		for (float[] v : chroma) {
+			for (int j = 0; j < 12; j++)
+				pw.print((j > 0 ? "," : "") + v[j]);
+			pw.println();
+		}
+		pw.close();
+	}
+
+	/** @return a new empty temporary folder */
+	public static File newFolder(String prefix) throws IOException {
+		File f = File.createTempFile(prefix, "");
+		if (!f.delete() || !f.mkdir())
+			throw new IOException("cannot create " + f);
+		return f;
+	}
+
+	/** deletes a file, or a folder with all its content */
+	public static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				deleteRecursively(c);
+		f.delete();
+	}
+}
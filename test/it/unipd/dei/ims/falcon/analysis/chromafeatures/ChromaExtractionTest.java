@@ -0,0 +1,176 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+import it.unipd.dei.ims.falcon.TestAudio;
+import it.unipd.dei.ims.falcon.TestCollection;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the chroma extraction with a straightforward implementation, and
+ * the rank hashes of the chroma extracted in single and in double precision,
+ * see {@link ChromaExtraction#setSinglePrecision(boolean)}.
+ */
+public class ChromaExtractionTest {
+
+	/** max fraction of frames whose hash differs, up to 3 ranks and up to 6 ranks */
+	private static final double MAX_MISMATCH_RATE_3 = 0.001;
+	private static final double MAX_MISMATCH_RATE_6 = 0.01;
+	private File folder;
+	private File wav;
+
+	@Before
+	public void setUp() throws Exception {
+		folder = TestCollection.newFolder("falcon-precision");
+		wav = new File(folder, "chords.wav");
+		TestAudio.writeWav(wav, TestAudio.chords(1, 22050, 300, 47), 22050);
+	}
+
+	@After
+	public void tearDown() {
+		ChromaExtraction.setSinglePrecision(false);
+		TestCollection.deleteRecursively(folder);
+	}
+
+	@Test
+	public void singlePrecisionRarelyChangesHashes() throws Exception {
+		ChromaVector[] doubles = ChromaMatrixUtils.readChromaFeatures(wav, 1);
+		ChromaExtraction.setSinglePrecision(true);
+		ChromaVector[] floats = ChromaMatrixUtils.readChromaFeatures(wav, 1);
+		assertEquals(doubles.length, floats.length);
+		for (int nranks = 1; nranks <= 6; nranks++) {
+			int mismatches = 0;
+			for (int i = 0; i < doubles.length; i++)
+				if (doubles[i].rankRepresentation(nranks) != floats[i].rankRepresentation(nranks))
+					mismatches++;
+			double rate = (double) mismatches / doubles.length;
+			assertTrue(nranks + " ranks: " + mismatches + " of " + doubles.length + " hashes differ",
+							rate <= (nranks <= 3 ? MAX_MISMATCH_RATE_3 : MAX_MISMATCH_RATE_6));
+		}
+	}
+
+	@Test
+	public void sameChromaAsReferenceImplementation() throws Exception {
+		List<ChromaVector> expected = referenceChroma(wav, 186, 2);
+		AudioReader reader = new AudioReader(wav);
+		try {
+			assertSameChroma(expected, ChromaExtraction.getChromaFeatures(reader, 186, 2));
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void sameChromaAsReferenceForOtherFramesAndSampleRates() throws Exception {
+		// folding plans are cached by sample rate and window length
+		double[][] frames = {{50, 1}, {93, 3}, {186, 2}, {400, 4}};
+		for (float sampleRate : new float[]{8000, 44100, 22050}) {
+			File f = new File(folder, "chords" + (int) sampleRate + ".wav");
+			TestAudio.writeWav(f, TestAudio.chords(1, sampleRate, 20, (long) sampleRate), sampleRate);
+			for (double[] frame : frames) {
+				AudioReader reader = new AudioReader(f);
+				try {
+					assertSameChroma(referenceChroma(f, frame[0], (int) frame[1]),
+									ChromaExtraction.getChromaFeatures(reader, frame[0], (int) frame[1]));
+				} finally {
+					reader.close();
+				}
+			}
+		}
+	}
+
+	private static void assertSameChroma(List<ChromaVector> expected, List<ChromaVector> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			assertArrayEquals(expected.get(i).getChromaValues(), actual.get(i).getChromaValues(), 0f);
+	}
+
+	/**
+	 * Chroma features computed frame by frame with new buffers, as by the
+	 * implementation before the streaming one: the peaks of the magnitude
+	 * spectrum below 10 kHz are summed into the pitch class of their bin.
+	 * Zero vectors are skipped.
+	 */
+	private static List<ChromaVector> referenceChroma(File f, double winLenInMs, int hopsizeRatio) throws Exception {
+		AudioReader reader = new AudioReader(f);
+		try {
+			float sampleRate = reader.getSampleRate();
+			int winLen = (int) (sampleRate * (winLenInMs / 1000.));
+			for (int p = 1; p < 16; p++) {
+				int h = 1 << p;
+				int l = 1 << (p - 1);
+				if (h >= winLen && l <= winLen) {
+					winLen = winLen - l < h - winLen ? l : h;
+					break;
+				}
+			}
+			int hopSize = winLen / hopsizeRatio;
+			double[] win = new double[winLen];
+			for (int n = 0; n < winLen; n++)
+				win[n] = .54 - .46 * Math.cos(2 * Math.PI * n / (winLen - 1));
+			int[] pitches = new int[winLen / 2];
+			for (int i = 0; i < pitches.length; i++) {
+				double octs = Math.log10(i * sampleRate / winLen / (440. / 16.)) / Math.log10(2);
+				octs -= Math.floor(octs);
+				pitches[i] = ((int) Math.round(octs * 12)) % 12;
+			}
+			DoubleFFT_1D fftizer = new DoubleFFT_1D(winLen);
+			List<ChromaVector> chromas = new ArrayList<ChromaVector>();
+			double[] audio = new double[winLen];
+			shiftAndRead(audio, reader, hopSize * (hopsizeRatio - 1));
+			while (shiftAndRead(audio, reader, hopSize)) {
+				double[] fft = Arrays.copyOf(audio, winLen);
+				for (int i = 0; i < winLen; i++)
+					fft[i] *= win[i];
+				fftizer.realForward(fft);
+				double[] spectrum = new double[winLen / 2];
+				for (int i = 0; i < Math.min(spectrum.length, 10000 / sampleRate * winLen); i++)
+					spectrum[i] = Math.sqrt(fft[2 * i] * fft[2 * i] + fft[2 * i + 1] * fft[2 * i + 1]);
+				float[] chroma = new float[12];
+				float sum = 0;
+				for (int i = 1; i < spectrum.length - 1; i++)
+					if (spectrum[i] > spectrum[i - 1] && spectrum[i] > spectrum[i + 1])
+						chroma[pitches[i]] += spectrum[i];
+				for (float c : chroma)
+					sum += c;
+				if (sum > 0)
+					chromas.add(new ChromaVector(chroma));
+			}
+			return chromas;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static boolean shiftAndRead(double[] buffer, AudioReader reader, int n) throws Exception {
+		double[] tmp = reader.readDoubleSamples(n);
+		if (tmp.length < n)
+			return false;
+		System.arraycopy(buffer, n, buffer, 0, buffer.length - n);
+		System.arraycopy(tmp, 0, buffer, buffer.length - n, n);
+		return true;
+	}
+}
@@ -0,0 +1,83 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.TestAudio;
+import it.unipd.dei.ims.falcon.TestCollection;
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the chroma features of audio files are the same whichever way
+ * they are extracted: sequentially or in parallel chunks, directly or
+ * through binary chroma files.
+ */
+public class ChromaMatrixUtilsTest {
+
+	private File folder;
+	private File wav;
+
+	@Before
+	public void setUp() throws Exception {
+		folder = TestCollection.newFolder("falcon-chroma");
+		wav = new File(folder, "chords.wav");
+		TestAudio.writeWav(wav, TestAudio.chords(1, 22050, 40, 46), 22050);
+	}
+
+	@After
+	public void tearDown() {
+		ChromaMatrixUtils.setAudioThreads(1);
+		TestCollection.deleteRecursively(folder);
+	}
+
+	@Test
+	public void parallelExtractionIsSequential() throws Exception {
+		for (int subsampling = 1; subsampling <= 3; subsampling++) {
+			ChromaVector[] expected = ChromaMatrixUtils.readChromaFeatures(wav, subsampling);
+			for (int nthreads = 2; nthreads <= 4; nthreads++) {
+				ChromaMatrixUtils.setAudioThreads(nthreads);
+				assertSameChroma(expected, ChromaMatrixUtils.readChromaFeatures(wav, subsampling));
+			}
+			ChromaMatrixUtils.setAudioThreads(1);
+		}
+	}
+
+	@Test
+	public void binaryChromaFilesSubsampleLikeAudio() throws Exception {
+		File out = new File(folder, "chroma");
+		ChromaMatrixUtils.extractChromaFiles(new File[]{wav}, out, 1, false);
+		File chroma = new File(out, wav.getName() + ChromaMatrixUtils.BINARY_EXTENSION);
+		File copy = new File(folder, "copy");
+		ChromaMatrixUtils.extractChromaFiles(new File[]{chroma}, copy, 1, false);
+		// the synthetic audio has silences, written as zero vectors and skipped when reading
+		assertTrue(ChromaMatrixUtils.readChromaFeatures(chroma, 1).length < chroma.length() / (12 * 4));
+		for (int subsampling = 1; subsampling <= 3; subsampling++) {
+			ChromaVector[] expected = ChromaMatrixUtils.readChromaFeatures(wav, subsampling);
+			assertSameChroma(expected, ChromaMatrixUtils.readChromaFeatures(chroma, subsampling));
+			assertSameChroma(expected, ChromaMatrixUtils.readChromaFeatures(new File(copy, chroma.getName() + ChromaMatrixUtils.BINARY_EXTENSION), subsampling));
+		}
+	}
+
+	private static void assertSameChroma(ChromaVector[] expected, ChromaVector[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals(expected[i].getChromaValues(), actual[i].getChromaValues(), 0f);
+	}
+}
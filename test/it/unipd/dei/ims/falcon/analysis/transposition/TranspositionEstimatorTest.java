@@ -0,0 +1,107 @@
+package it.unipd.dei.ims.falcon.analysis.transposition;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaVector;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the keys found by the transposition estimator against the ones of
+ * a reference implementation, which correlates the weights with each
+ * rotation of the profile and selects the highest correlations one at a
+ * time, and the ranks of the keys used by the trainer.
+ */
+public class TranspositionEstimatorTest {
+
+	@Test
+	public void keysAreTheHighestCorrelations() throws Exception {
+		Random random = new Random(49);
+		for (int w = 0; w < 20; w++) {
+			float[] weights = new float[12];
+			for (int i = 0; i < 12; i++)
+				// negative weights give negative correlations; few distinct weights give ties
+				weights[i] = w % 4 == 0 ? 1 : w % 4 == 1 ? random.nextInt(2) : w % 4 == 2 ? random.nextFloat() : random.nextFloat() - .5f;
+			if (w % 4 == 1)
+				weights[0] = 1;
+			TranspositionEstimator tpe = new TranspositionEstimator(weights);
+			ChromaVector[] vectors = new ChromaVector[500];
+			float[][] profiles = new float[vectors.length][];
+			float[] corr = new float[12];
+			for (int p = 0; p < profiles.length; p++) {
+				float[] values = new float[12];
+				for (int i = 0; i < 12; i++)
+					// binary profiles give ties, whatever the order of the sums
+					values[i] = p % 2 == 0 ? random.nextInt(2) : random.nextFloat();
+				values[random.nextInt(12)] = 1;
+				vectors[p] = new ChromaVector(values);
+				profiles[p] = vectors[p].getChromaValues().clone();
+			}
+			for (int n = 1; n <= 12; n++) {
+				for (int p = 0; p < profiles.length; p++) {
+					String message = "weights " + w + ", profile " + p + ", n " + n;
+					int[] expected = referenceKeys(tpe.getWeights(), profiles[p], n);
+					assertArrayEquals(message, expected, tpe.findKey(vectors[p], n));
+					assertArrayEquals(message + ", profile modified", profiles[p], vectors[p].getChromaValues(), 0);
+				}
+			}
+			// the ranks used by the trainer are the positions in the keys
+			for (int p = 0; p < profiles.length; p++) {
+				int[] keys = referenceKeys(tpe.getWeights(), profiles[p], 12);
+				TranspositionEstimator.correlate(profiles[p], tpe.getWeights(), corr, 0);
+				for (int i = 0; i < 12; i++)
+					assertEquals("weights " + w + ", profile " + p, i + 1, TranspositionEstimator.getRank(corr, 0, keys[i]));
+			}
+		}
+	}
+
+	@Test
+	public void tiedKeysAreInIncreasingOrder() throws Exception {
+		float[] weights = new float[12];
+		Arrays.fill(weights, 1);
+		float[] profile = new float[12];
+		Arrays.fill(profile, 1);
+		int[] keys = new TranspositionEstimator(weights).findKey(new ChromaVector(profile), 12);
+		for (int i = 0; i < 12; i++)
+			assertEquals(i, keys[i]);
+	}
+
+	/**
+	 * @return the n transpositions whose rotation of the profile has the
+	 *         highest correlation with the weights, selecting the max one at a
+	 *         time; ties go to the lowest transposition
+	 */
+	private static int[] referenceKeys(float[] weights, float[] profile, int n) {
+		float[] corr = new float[12];
+		for (int r = 0; r < 12; r++)
+			// profile rotated to the left by r
+			for (int j = 0; j < 12; j++)
+				corr[r] += profile[(j + r) % 12] * weights[j];
+		int[] keys = new int[n];
+		for (int i = 0; i < n; i++) {
+			int max = 0;
+			for (int r = 0; r < 12; r++)
+				if (corr[r] > corr[max])
+					max = r;
+			keys[i] = max;
+			corr[max] = Float.NEGATIVE_INFINITY;
+		}
+		return keys;
+	}
+}
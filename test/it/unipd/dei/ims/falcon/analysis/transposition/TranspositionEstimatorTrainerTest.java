@@ -0,0 +1,60 @@
+package it.unipd.dei.ims.falcon.analysis.transposition;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.TestCollection;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the training does not depend on the number of threads.
+ */
+public class TranspositionEstimatorTrainerTest {
+
+	@Test
+	public void trainingDoesNotDependOnTheNumberOfThreads() throws Exception {
+		TestCollection collection = new TestCollection(40, 0, 50);
+		try {
+			File[] songs = collection.getSongs().listFiles();
+			Arrays.sort(songs);
+			StringBuilder pairs = new StringBuilder();
+			for (File song : songs)
+				pairs.append(song.getPath()).append('\n');
+			String expected = train(pairs.toString(), 1);
+			assertTrue(expected.contains("initial random weights have score"));
+			for (int nthreads = 2; nthreads <= 4; nthreads += 2)
+				assertEquals(nthreads + " threads", expected, train(pairs.toString(), nthreads));
+		} finally {
+			collection.delete();
+		}
+	}
+
+	/** @return the output of a training on the given pairs, with a fixed seed */
+	private static String train(String pairs, int nthreads) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new TranspositionEstimatorTrainer(nthreads, new Random(50)).train(
+						new BufferedReader(new StringReader(pairs)), new PrintStream(out, true, "UTF-8"));
+		return out.toString("UTF-8");
+	}
+}
@@ -0,0 +1,239 @@
+package it.unipd.dei.ims.falcon.audio;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.TestAudio;
+import it.unipd.dei.ims.falcon.TestCollection;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaVector;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the samples decoded by the audio reader against the integer
+ * values written to the files, for every supported sample size and file
+ * type, on both the memory-mapped and the streamed path; and checks the
+ * downmix of multi-channel files and the decimation filter.
+ */
+public class AudioReaderTest {
+
+	private static final float SAMPLE_RATE = 11025;
+	private File folder;
+
+	@Before
+	public void setUp() throws Exception {
+		folder = TestCollection.newFolder("falcon-audio");
+	}
+
+	@After
+	public void tearDown() {
+		TestCollection.deleteRecursively(folder);
+	}
+
+	@Test
+	public void pcmSamplesAreDecodedExactly() throws Exception {
+		double[][] samples = TestAudio.chords(1, SAMPLE_RATE, 3, 44);
+		AudioFileFormat.Type[] types = {AudioFileFormat.Type.WAVE, AudioFileFormat.Type.AU, AudioFileFormat.Type.AIFF};
+		for (AudioFileFormat.Type type : types)
+			for (int bytes = 1; bytes <= 4; bytes++) {
+				File f = new File(folder, "chords" + bytes + "." + type.getExtension());
+				long[][] values = TestAudio.write(f, samples, SAMPLE_RATE, bytes, type != AudioFileFormat.Type.WAVE, type);
+				double[] expected = new double[values[0].length];
+				for (int i = 0; i < expected.length; i++)
+					expected[i] = values[0][i] / (double) (1L << (8 * bytes - 1));
+				String name = f.getName();
+				assertArrayEquals(name, expected, readAll(new AudioReader(f), 1000), 0);
+				assertArrayEquals(name + " streamed", expected, readAll(new AudioReader(stream(f)), 1000), 0);
+				float[] floats = readAllFloats(new AudioReader(f), 1000);
+				float[] streamed = readAllFloats(new AudioReader(stream(f)), 1000);
+				assertEquals(name, expected.length, floats.length);
+				assertEquals(name, expected.length, streamed.length);
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals(name + " float sample " + i, (float) expected[i], floats[i], 0);
+					assertEquals(name + " streamed float sample " + i, (float) expected[i], streamed[i], 0);
+				}
+			}
+	}
+
+	@Test
+	public void sixteenBitSamplesAreTheJavaSoundOnes() throws Exception {
+		double[][] samples = TestAudio.chords(1, SAMPLE_RATE, 3, 44);
+		AudioFileFormat.Type[] types = {AudioFileFormat.Type.WAVE, AudioFileFormat.Type.AU, AudioFileFormat.Type.AIFF};
+		for (AudioFileFormat.Type type : types) {
+			File f = new File(folder, "chords." + type.getExtension());
+			TestAudio.write(f, samples, SAMPLE_RATE, 2, type != AudioFileFormat.Type.WAVE, type);
+			assertArrayEquals(f.getName(), javaSound(f), readAll(new AudioReader(f), 1000), 0);
+		}
+	}
+
+	@Test
+	public void channelsAreAveraged() throws Exception {
+		for (int channels = 2; channels <= 3; channels++) {
+			double[][] samples = TestAudio.chords(channels, SAMPLE_RATE, 3, 45);
+			AudioFileFormat.Type[] types = {AudioFileFormat.Type.WAVE, AudioFileFormat.Type.AU};
+			for (AudioFileFormat.Type type : types) {
+				File f = new File(folder, "chords" + channels + "." + type.getExtension());
+				long[][] values = TestAudio.write(f, samples, SAMPLE_RATE, 2, type != AudioFileFormat.Type.WAVE, type);
+				double[] expected = new double[values[0].length];
+				for (int i = 0; i < expected.length; i++) {
+					double sum = 0;
+					for (int c = 0; c < channels; c++)
+						sum += values[c][i] / 32768.0;
+					expected[i] = sum / channels;
+				}
+				assertArrayEquals(f.getName(), expected, readAll(new AudioReader(f), 1000), 0);
+				assertArrayEquals(f.getName() + " streamed", expected, readAll(new AudioReader(stream(f)), 1000), 0);
+				float[] floats = readAllFloats(new AudioReader(f), 1000);
+				for (int i = 0; i < expected.length; i++)
+					assertEquals(f.getName() + " float sample " + i, (float) expected[i], floats[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void identicalChannelsGiveTheMonoChroma() throws Exception {
+		double[][] mono = TestAudio.chords(1, SAMPLE_RATE, 20, 45);
+		File monoFile = new File(folder, "mono.wav");
+		File stereoFile = new File(folder, "stereo.wav");
+		TestAudio.writeWav(monoFile, mono, SAMPLE_RATE);
+		TestAudio.writeWav(stereoFile, new double[][]{mono[0], mono[0]}, SAMPLE_RATE);
+		ChromaVector[] expected = ChromaMatrixUtils.readChromaFeatures(monoFile, 1);
+		ChromaVector[] actual = ChromaMatrixUtils.readChromaFeatures(stereoFile, 1);
+		assertTrue(expected.length > 0);
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals("vector " + i, expected[i].getChromaValues(), actual[i].getChromaValues(), 0);
+	}
+
+	@Test
+	public void decimationDoesNotDependOnTheReadSize() throws Exception {
+		File f = new File(folder, "chords.wav");
+		TestAudio.writeWav(f, TestAudio.chords(2, 44100, 5, 45), 44100);
+		float[] minRates = {22050, 11025, 8000};
+		float[] rates = {22050, 11025, 8820};
+		for (int r = 0; r < minRates.length; r++) {
+			AudioReader reader = new AudioReader(f, minRates[r]);
+			assertEquals(rates[r], reader.getSampleRate(), 0);
+			double[] expected = readAll(reader, 1 << 20);
+			assertEquals(5 * rates[r], expected.length, 1);
+			int[] sizes = {1, 7, 1000};
+			for (int n : sizes)
+				assertArrayEquals(minRates[r] + " Hz, reads of " + n, expected, readAll(new AudioReader(f, minRates[r]), n), 0);
+			assertArrayEquals(minRates[r] + " Hz streamed", expected, readAll(new AudioReader(stream(f), minRates[r]), 1000), 0);
+		}
+		AudioReader reader = new AudioReader(f, 48000);
+		assertEquals(44100, reader.getSampleRate(), 0);
+		assertArrayEquals(readAll(new AudioReader(f), 1000), readAll(reader, 1000), 0);
+	}
+
+	@Test
+	public void decimationFiltersTheFrequenciesAboveTheNewNyquist() throws Exception {
+		// 44.1 kHz decimated by 2: the cutoff is at 9922.5 Hz
+		assertEquals(1, decimatedAmplitude(1000), 1e-3);
+		assertEquals(1, decimatedAmplitude(8000), 1e-3);
+		assertEquals(0, decimatedAmplitude(12000), 1e-3);
+		assertEquals(0, decimatedAmplitude(20000), 1e-3);
+	}
+
+	/** @return amplitude of a tone at the given frequency, relative to the original, after decimation from 44.1 to 22.05 kHz */
+	private double decimatedAmplitude(double frequency) throws Exception {
+		double[][] tone = new double[1][44100];
+		for (int i = 0; i < tone[0].length; i++)
+			tone[0][i] = 0.5 * Math.sin(2 * Math.PI * frequency * i / 44100);
+		File f = new File(folder, "tone.wav");
+		TestAudio.write(f, tone, 44100, 4, false, AudioFileFormat.Type.WAVE);
+		double[] samples = readAll(new AudioReader(f, 22050), 1000);
+		// skip the filter transients at the start and at the end
+		double energy = 0;
+		int n = 0;
+		for (int i = 1000; i < samples.length - 1000; i++, n++)
+			energy += samples[i] * samples[i];
+		return Math.sqrt(2 * energy / n) / 0.5;
+	}
+
+	/** the samples as decoded by Java Sound, converting to 16-bit big-endian PCM */
+	private static double[] javaSound(File f) throws Exception {
+		AudioInputStream in = AudioSystem.getAudioInputStream(f);
+		AudioFormat af = in.getFormat();
+		AudioFormat destaf = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+						af.getSampleRate(), 16, 1, 2, af.getSampleRate(), true);
+		AudioInputStream converted = AudioSystem.getAudioInputStream(destaf, in);
+		try {
+			byte[] bytes = new byte[(int) converted.getFrameLength() * 2];
+			int read = 0;
+			while (read < bytes.length) {
+				int r = converted.read(bytes, read, bytes.length - read);
+				if (r < 0)
+					break;
+				read += r;
+			}
+			double[] samples = new double[read / 2];
+			for (int i = 0; i < samples.length; i++)
+				samples[i] = (short) ((bytes[2 * i] << 8) | (bytes[2 * i + 1] & 0xFF)) / 32768.0;
+			return samples;
+		} finally {
+			converted.close();
+		}
+	}
+
+	/** @return the audio stream of the file, which is then read as a stream rather than mapped */
+	static AudioInputStream stream(File f) throws Exception {
+		return AudioSystem.getAudioInputStream(new BufferedInputStream(new FileInputStream(f)));
+	}
+
+	/** reads all the samples, n at a time, and closes the reader */
+	static double[] readAll(AudioReader reader, int n) throws Exception {
+		try {
+			double[] samples = new double[n];
+			int size = 0, read;
+			while ((read = reader.readDoubleSamples(samples, size, n)) > 0) {
+				size += read;
+				if (samples.length < size + n)
+					samples = Arrays.copyOf(samples, 2 * (size + n));
+			}
+			return Arrays.copyOf(samples, size);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** reads all the samples as floats, n at a time, and closes the reader */
+	private static float[] readAllFloats(AudioReader reader, int n) throws Exception {
+		try {
+			float[] samples = new float[n];
+			int size = 0, read;
+			while ((read = reader.readFloatSamples(samples, size, n)) > 0) {
+				size += read;
+				if (samples.length < size + n)
+					samples = Arrays.copyOf(samples, 2 * (size + n));
+			}
+			return Arrays.copyOf(samples, size);
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.TestAudio;
+import it.unipd.dei.ims.falcon.TestCollection;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaExtraction;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
+import it.unipd.dei.ims.falcon.analysis.transposition.ForcedTranspositionEstimator;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that audio files are indexed and queried as their chroma matrices.
+ */
+public class AudioIndexingTest {
+
+	private static final float SAMPLE_RATE = 11025;
+	private File folder;
+	private File wavs;
+	private File csvs;
+
+	@Before
+	public void setUp() throws Exception {
+		folder = TestCollection.newFolder("falcon-audio");
+		wavs = new File(folder, "wav");
+		csvs = new File(folder, "csv");
+		wavs.mkdir();
+		csvs.mkdir();
+		for (int s = 0; s < 6; s++) {
+			double[][] samples = TestAudio.chords(1, SAMPLE_RATE, 40, s);
+			writeSong(new File(wavs, "song" + s + ".wav"), samples);
+			if (s % 2 == 0) {
+				// the query is an excerpt of the song
+				double[][] excerpt = {Arrays.copyOfRange(samples[0], (int) (10 * SAMPLE_RATE), (int) (25 * SAMPLE_RATE))};
+				writeSong(new File(folder, "query" + s + ".wav"), excerpt);
+			}
+		}
+	}
+
+	// writes a WAV file, and its chroma matrix in text format
+	private void writeSong(File wav, double[][] samples) throws Exception {
+		TestAudio.writeWav(wav, samples, SAMPLE_RATE);
+		OutputStream os = new FileOutputStream(new File(wav.getParentFile().equals(wavs) ? csvs : folder, wav.getName() + ".csv"));
+		try {
+			ChromaMatrixUtils.writeChromaMatrix(ChromaMatrixUtils.readChromaFeatures(wav, 1), os);
+		} finally {
+			os.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		ChromaExtraction.setSinglePrecision(false);
+		TestCollection.deleteRecursively(folder);
+	}
+
+	@Test
+	public void audioFilesAreIndexedAsTheirChroma() throws Exception {
+		File wavIndex = new File(folder, "wav-index");
+		File csvIndex = new File(folder, "csv-index");
+		Indexing.index(wavs, wavIndex, TestCollection.HPS, TestCollection.OVERLAP, 1, TestCollection.NRANKS, -100, null, false);
+		Indexing.index(csvs, csvIndex, TestCollection.HPS, TestCollection.OVERLAP, 1, TestCollection.NRANKS, -100, null, false);
+		ForcedTranspositionEstimator tpe = new ForcedTranspositionEstimator(new int[]{0, 5});
+		for (int s = 0; s < 6; s += 2) {
+			Map<String, Double> expected = names(TestCollection.query(new File(folder, "query" + s + ".wav.csv"), csvIndex, tpe, 2, null));
+			assertEquals("song" + s + ".wav", best(expected));
+			TestCollection.assertSameResults(expected, names(TestCollection.query(new File(folder, "query" + s + ".wav"), wavIndex, tpe, 2, null)), 0);
+		}
+	}
+
+	@Test
+	public void audioWithAnotherPrecisionIsRejected() throws Exception {
+		File wavIndex = new File(folder, "wav-index");
+		File csvIndex = new File(folder, "csv-index");
+		Indexing.index(wavs, wavIndex, TestCollection.HPS, TestCollection.OVERLAP, 1, TestCollection.NRANKS, -100, null, false);
+		Indexing.index(csvs, csvIndex, TestCollection.HPS, TestCollection.OVERLAP, 1, TestCollection.NRANKS, -100, null, false);
+		assertEquals("double", Indexing.getAnalysisPrecision(wavIndex));
+		assertNull(Indexing.getAnalysisPrecision(csvIndex));
+		File query = new File(folder, "query0.wav");
+		ChromaExtraction.setSinglePrecision(true);
+		try {
+			TestCollection.query(query, wavIndex, null, 1, null);
+			fail("an audio query in single precision was accepted");
+		} catch (IOException ex) {
+		}
+		try {
+			Indexing.index(wavs, wavIndex, TestCollection.HPS, TestCollection.OVERLAP, 1, TestCollection.NRANKS, -100, null, false);
+			fail("audio was added in single precision");
+		} catch (IndexingException ex) {
+		}
+		// chroma matrices, and indexes without a recorded precision, are not checked
+		assertFalse(TestCollection.query(new File(folder, "query0.wav.csv"), wavIndex, null, 1, null).isEmpty());
+		assertFalse(TestCollection.query(query, csvIndex, null, 1, null).isEmpty());
+		ChromaExtraction.setSinglePrecision(false);
+		assertFalse(TestCollection.query(query, wavIndex, null, 1, null).isEmpty());
+	}
+
+	// results by song file name, without the extension of the chroma matrices
+	private static Map<String, Double> names(Map<String, Double> results) {
+		Map<String, Double> names = new TreeMap<String, Double>();
+		for (Map.Entry<String, Double> e : results.entrySet())
+			names.put(new File(e.getKey()).getName().replace(".csv", ""), e.getValue());
+		return names;
+	}
+
+	private static String best(Map<String, Double> results) {
+		String best = null;
+		for (Map.Entry<String, Double> e : results.entrySet())
+			if (best == null || e.getValue() > results.get(best))
+				best = e.getKey();
+		return best;
+	}
+}
@@ -0,0 +1,85 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.TestCollection;
+import java.io.File;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that indexes written and read with each directory implementation
+ * give the same results.
+ */
+public class IndexDirectoryTypeTest {
+
+	private TestCollection collection;
+
+	@Before
+	public void setUp() throws Exception {
+		collection = new TestCollection(20, 4, 35);
+	}
+
+	@After
+	public void tearDown() {
+		Indexing.setDirectoryType(IndexDirectoryType.SIMPLE);
+		Indexing.setShards(0);
+		collection.delete();
+	}
+
+	@Test
+	public void directoryTypesGiveTheSameResults() throws Exception {
+		File reference = collection.index("SIMPLE", null);
+		for (IndexDirectoryType type : IndexDirectoryType.values()) {
+			Indexing.setDirectoryType(type);
+			File index = collection.index(type.name(), null);
+			for (File q : collection.getQueries()) {
+				Indexing.setDirectoryType(IndexDirectoryType.SIMPLE);
+				Map<String, Double> expected = TestCollection.query(q, reference, null, 1, null);
+				assertFalse(expected.isEmpty());
+				Indexing.setDirectoryType(type);
+				TestCollection.assertSameResults(expected, TestCollection.query(q, index, null, 1, null), 0);
+			}
+		}
+	}
+
+	@Test
+	public void shardsOfAnExistingIndexAreFound() throws Exception {
+		Indexing.setShards(2);
+		File index = collection.index("sharded", null);
+		assertEquals(2, Indexing.getShards(index).length);
+		// indexing again in the same shards is allowed, partitioning an existing index is not
+		collection.index("sharded", null);
+		Indexing.setShards(3);
+		try {
+			collection.index("sharded", null);
+			fail("the index was re-partitioned in a different number of shards");
+		} catch (IndexingException ex) {
+		}
+		Indexing.setShards(0);
+		collection.index("plain", null);
+		Indexing.setShards(2);
+		try {
+			collection.index("plain", null);
+			fail("an existing index was partitioned");
+		} catch (IndexingException ex) {
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.TestCollection;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an online query fed with the chroma vectors of a query gives
+ * each song the score of a batch query made of the last segments.
+ */
+public class OnlineQueryTest {
+
+	private static TestCollection collection;
+	private static File index;
+	private static File sharded;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		collection = new TestCollection(20, 4, 48);
+		index = collection.index("index", null);
+		Indexing.setShards(3);
+		try {
+			sharded = collection.index("sharded", null);
+		} finally {
+			Indexing.setShards(0);
+		}
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		collection.delete();
+	}
+
+	@Test
+	public void windowOfAllTheSegmentsIsTheBatchQuery() throws Exception {
+		for (File idx : new File[]{index, sharded})
+			for (File q : collection.getQueries()) {
+				Map<String, Double> expected = TestCollection.query(q, idx, null, 1, null);
+				assertFalse(expected.isEmpty());
+				TestCollection.assertSameResults(expected, onlineQuery(readChroma(q), idx, Integer.MAX_VALUE), 0);
+			}
+	}
+
+	@Test
+	public void windowOfTheLastSegmentsIsTheBatchQueryOfTheirVectors() throws Exception {
+		int window = 2;
+		int hop = TestCollection.HPS - TestCollection.OVERLAP;
+		for (File idx : new File[]{index, sharded})
+			for (File q : collection.getQueries()) {
+				List<float[]> chroma = readChroma(q);
+				// every vector is hashed, hence segment k starts from vector k * hop
+				int nsegments = (chroma.size() - TestCollection.OVERLAP) / hop;
+				File last = new File(q.getParentFile(), "last-" + q.getName());
+				write(chroma.subList((nsegments - window) * hop, chroma.size()), last);
+				try {
+					Map<String, Double> expected = TestCollection.query(last, idx, null, 1, null);
+					assertFalse(expected.isEmpty());
+					TestCollection.assertSameResults(expected, onlineQuery(chroma, idx, window), 0);
+				} finally {
+					last.delete();
+				}
+			}
+	}
+
+	/** @return the results after the last segment of an online query fed with the given vectors */
+	private static Map<String, Double> onlineQuery(List<float[]> chroma, File index, int window) throws Exception {
+		final List<Map<String, Double>> results = new ArrayList<Map<String, Double>>();
+		OnlineQuery online = new OnlineQuery(index, TestCollection.HPS, TestCollection.OVERLAP, TestCollection.NRANKS,
+						null, 1, -100, null, 1, window, new OnlineQuery.Listener() {
+
+			public void segmentEvaluated(int segmentNumber, Map<String, Double> res, long latency) {
+				assertEquals(results.size(), segmentNumber);
+				results.add(res);
+			}
+		});
+		try {
+			for (float[] v : chroma)
+				online.consume(v.clone());
+		} finally {
+			online.close();
+		}
+		assertFalse(results.isEmpty());
+		return results.get(results.size() - 1);
+	}
+
+	/** @return the chroma vectors of a matrix in text format, as read */
+	private static List<float[]> readChroma(File f) throws IOException {
+		List<float[]> chroma = new ArrayList<float[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(f));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] values = line.split(",");
+				float[] v = new float[12];
+				for (int j = 0; j < 12; j++)
+					v[j] = Float.parseFloat(values[j]);
+				chroma.add(v);
+			}
+		} finally {
+			reader.close();
+		}
+		return chroma;
+	}
+
+	private static void write(List<float[]> chroma, File f) throws IOException {
+		PrintWriter pw = new PrintWriter(f);
+		for (float[] v : chroma) {
+			for (int j = 0; j < 12; j++)
+				pw.print((j > 0 ? "," : "") + v[j]);
+			pw.println();
+		}
+		pw.close();
+	}
+}
@@ -0,0 +1,296 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.TestCollection;
+import it.unipd.dei.ims.falcon.analysis.transposition.ForcedTranspositionEstimator;
+import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.IndexDirectoryType;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the evaluation strategies which are meant to give the same
+ * results as the default evaluation actually do, on a synthetic collection.
+ */
+public class QueryMethodsTest {
+
+	// segment scores are float sums: evaluators which add the same terms in a
+	// different order than Lucene differ in the last bits
+	private static final double ROUNDING = 1e-6;
+	private static TestCollection collection;
+	// index with all the optional structures
+	private static File index;
+	// results of the default evaluation, for each query
+	private static List<Map<String, Double>> exact;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		collection = new TestCollection(40, 8, 26);
+		Indexing.setImpactOrderedPostings(true);
+		Indexing.setBlockMaxPostings(true);
+		Indexing.setHashIndex(true);
+		try {
+			index = collection.index("index", null);
+		} finally {
+			Indexing.setImpactOrderedPostings(false);
+			Indexing.setBlockMaxPostings(false);
+			Indexing.setHashIndex(false);
+		}
+		exact = queryAll(index, null);
+		for (Map<String, Double> r : exact)
+			assertFalse(r.isEmpty());
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		collection.delete();
+	}
+
+	@After
+	public void tearDown() {
+		QueryMethods.setImpactOrderedEvaluation(0);
+		QueryMethods.setBlockMaxEvaluation(false);
+		QueryMethods.setHashIndexEvaluation(false);
+		QueryMethods.setResultCacheSize(0);
+		QueryMethods.setSegmentCacheSize(0);
+		QueryMethods.setPostingCacheSize(0);
+		QueryMethods.setSlidingWindowEvaluation(false);
+		QueryMethods.setPostingBufferSize(QueryMethods.DEFAULT_POSTING_BUFFER_SIZE);
+	}
+
+	/** @return the results of all the queries, in two transpositions */
+	private static List<Map<String, Double>> queryAll(File index, QueryPruningStrategy pruningStrategy) throws Exception {
+		List<Map<String, Double>> results = new ArrayList<Map<String, Double>>();
+		TranspositionEstimator tpe = new ForcedTranspositionEstimator(new int[]{0, 3});
+		for (File q : collection.getQueries())
+			results.add(TestCollection.query(q, index, tpe, 2, pruningStrategy));
+		return results;
+	}
+
+	private static void assertSameResults(List<Map<String, Double>> expected, List<Map<String, Double>> actual, double tolerance) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++)
+			TestCollection.assertSameResults(expected.get(i), actual.get(i), tolerance);
+	}
+
+	@Test
+	public void impactOrderedEvaluationOfAllPostingsIsExact() throws Exception {
+		QueryMethods.setImpactOrderedEvaluation(Integer.MAX_VALUE);
+		assertSameResults(exact, queryAll(index, null), ROUNDING);
+	}
+
+	@Test
+	public void postingBufferSizeDoesNotChangeResults() throws Exception {
+		for (int size : new int[]{1, 7, 4096}) {
+			QueryMethods.setPostingBufferSize(size);
+			assertSameResults(exact, queryAll(index, null), 0);
+		}
+	}
+
+	@Test
+	public void blockMaxEvaluationIsExact() throws Exception {
+		QueryMethods.setBlockMaxEvaluation(true);
+		assertSameResults(exact, queryAll(index, null), ROUNDING);
+	}
+
+	@Test
+	public void costBudgetOnLiveAndStoredDocumentFrequencies() throws Exception {
+		for (double budget : new double[]{0.002, 0.01}) {
+			QueryPruningStrategy qps = new CostBudgetQueryPruningStrategy(budget);
+			// the Lucene evaluation reads the document frequencies from the index
+			List<Map<String, Double>> live = queryAll(index, qps);
+			assertFalse("nothing was pruned", live.equals(exact));
+			// the hash index evaluation uses the ones stored at indexing time
+			QueryMethods.setHashIndexEvaluation(true);
+			assertSameResults(live, queryAll(index, qps), ROUNDING);
+			QueryMethods.setHashIndexEvaluation(false);
+		}
+	}
+
+	@Test
+	public void skippingStopHashPostingsDoesNotChangeResults() throws Exception {
+		File stop, skip;
+		try {
+			Indexing.setStopHashes(0.005, false);
+			stop = collection.index("stop", null);
+			Indexing.setStopHashes(0.005, true);
+			skip = collection.index("stop-skip", null);
+		} finally {
+			Indexing.setStopHashes(0, false);
+		}
+		assertFalse(Indexing.loadStopHashes(stop).isEmpty());
+		assertEquals(Indexing.loadStopHashes(stop), Indexing.loadStopHashes(skip));
+		List<Map<String, Double>> expected = queryAll(stop, null);
+		assertFalse("no stop hash in the queries", expected.equals(exact));
+		assertSameResults(expected, queryAll(skip, null), 0);
+	}
+
+	@Test
+	public void hashIndexEvaluationIsExact() throws Exception {
+		QueryMethods.setHashIndexEvaluation(true);
+		assertSameResults(exact, queryAll(index, null), ROUNDING);
+	}
+
+	@Test
+	public void shardedIndexGivesTheSameResults() throws Exception {
+		File sharded;
+		Indexing.setShards(3);
+		try {
+			sharded = collection.index("sharded", null);
+		} finally {
+			Indexing.setShards(0);
+		}
+		assertEquals(3, Indexing.getShards(sharded).length);
+		assertSameResults(exact, queryAll(sharded, null), 0);
+		// the hashes of the query are counted once, not once per shard
+		QueryPruningStrategy qps = new CostBudgetQueryPruningStrategy(0.01);
+		for (File q : collection.getQueries()) {
+			QueryResults r = QueryMethods.query(q, index, TestCollection.HPS, TestCollection.OVERLAP, TestCollection.NRANKS, 1, null, 1, -100, qps);
+			QueryResults s = QueryMethods.query(q, sharded, TestCollection.HPS, TestCollection.OVERLAP, TestCollection.NRANKS, 1, null, 1, -100, qps);
+			assertEquals(r.getTotalConsideredHashes(), s.getTotalConsideredHashes());
+			assertTrue(s.getPrunedHashes() <= s.getTotalConsideredHashes());
+		}
+	}
+
+	@Test
+	public void resultCacheReturnsTheSameResults() throws Exception {
+		QueryMethods.setResultCacheSize(100000);
+		long hits = QueryMethods.getResultCacheHits();
+		assertSameResults(exact, queryAll(index, null), 0);
+		assertSameResults(exact, queryAll(index, null), 0);
+		assertEquals(collection.getQueries().size(), QueryMethods.getResultCacheHits() - hits);
+		// a different pruning strategy is not answered from the cache
+		QueryPruningStrategy qps = new CostBudgetQueryPruningStrategy(0.01);
+		List<Map<String, Double>> pruned = queryAll(index, qps);
+		assertFalse(pruned.equals(exact));
+		assertSameResults(pruned, queryAll(index, new CostBudgetQueryPruningStrategy(0.01)), 0);
+	}
+
+	@Test
+	public void segmentCacheReturnsTheSameResults() throws Exception {
+		List<Map<String, Double>> pruned = queryAll(index, new CostBudgetQueryPruningStrategy(0.01));
+		QueryMethods.setSegmentCacheSize(100000);
+		long hits = QueryMethods.getSegmentCacheHits();
+		assertSameResults(exact, queryAll(index, null), 0);
+		assertSameResults(exact, queryAll(index, null), 0);
+		assertTrue(QueryMethods.getSegmentCacheHits() > hits);
+		// segments evaluated with other settings are not reused
+		assertSameResults(pruned, queryAll(index, new CostBudgetQueryPruningStrategy(0.01)), 0);
+		QueryMethods.setHashIndexEvaluation(true);
+		assertSameResults(exact, queryAll(index, null), ROUNDING);
+	}
+
+	@Test
+	public void postingCacheReturnsTheSameResults() throws Exception {
+		QueryMethods.setPostingCacheSize(16 << 20);
+		long hits = QueryMethods.getPostingCacheHits();
+		assertSameResults(exact, queryAll(index, null), 0);
+		assertSameResults(exact, queryAll(index, null), 0);
+		assertTrue(QueryMethods.getPostingCacheHits() > hits);
+		// a cache too small for most lists
+		QueryMethods.setPostingCacheSize(1 << 10);
+		assertSameResults(exact, queryAll(index, null), 0);
+	}
+
+	@Test
+	public void previousVersionIsClosedAfterItsLastQuery() throws Exception {
+		File updated = collection.index("updated", null);
+		QueryMethods.SearchedIndex[] held = QueryMethods.openIndex(updated);
+		QueryMethods.release(QueryMethods.openIndex(updated));
+		collection.index("updated", null);
+		QueryMethods.SearchedIndex[] current = QueryMethods.openIndex(updated);
+		try {
+			assertNotSame(held[0], current[0]);
+			assertFalse(held[0].isClosed());
+			QueryMethods.release(held);
+			assertTrue(held[0].isClosed());
+		} finally {
+			QueryMethods.release(current);
+		}
+		assertFalse(current[0].isClosed());
+		assertSameResults(exact, queryAll(updated, null), 0);
+	}
+
+	@Test
+	public void indexIsOpenedForEachDirectoryType() throws Exception {
+		QueryMethods.SearchedIndex[] simple = QueryMethods.openIndex(index);
+		QueryMethods.release(simple);
+		Indexing.setDirectoryType(IndexDirectoryType.RAM);
+		try {
+			QueryMethods.SearchedIndex[] ram = QueryMethods.openIndex(index);
+			QueryMethods.release(ram);
+			assertNotSame(simple[0], ram[0]);
+			assertSameResults(exact, queryAll(index, null), 0);
+		} finally {
+			Indexing.setDirectoryType(IndexDirectoryType.SIMPLE);
+		}
+	}
+
+	@Test
+	public void postingCacheDoesNotKeepClosedReaders() throws Exception {
+		QueryMethods.setPostingCacheSize(16 << 20);
+		WeakReference<IndexReader> ref = cacheFirstList();
+		for (int i = 0; i < 100 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(ref.get());
+	}
+
+	/** caches the first posting list of a reader, closes the reader and returns it */
+	private static WeakReference<IndexReader> cacheFirstList() throws Exception {
+		IndexReader reader = IndexReader.open(FSDirectory.open(index), true);
+		try {
+			TermEnum terms = reader.terms(new Term("CONTENT", ""));
+			Term term = terms.term();
+			terms.close();
+			PostingListCache cache = PostingListCache.getInstance();
+			long hits = cache.getHits();
+			assertNotNull(cache.get(reader, term));
+			assertNotNull(cache.get(reader, term));
+			assertEquals(1, cache.getHits() - hits);
+		} finally {
+			reader.close();
+		}
+		return new WeakReference<IndexReader>(reader);
+	}
+
+	@Test
+	public void slidingWindowEvaluationIsExact() throws Exception {
+		QueryMethods.setSlidingWindowEvaluation(true);
+		assertSameResults(exact, queryAll(index, null), ROUNDING);
+		// with pruning, the window moves on the retained hashes
+		QueryPruningStrategy qps = new CostBudgetQueryPruningStrategy(0.01);
+		List<Map<String, Double>> pruned = queryAll(index, qps);
+		QueryMethods.setSlidingWindowEvaluation(false);
+		assertSameResults(queryAll(index, qps), pruned, ROUNDING);
+	}
+}
@@ -0,0 +1,93 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the segments extracted by the query parser, read at once or added
+ * one hash at a time, against the bags of hashes of the segments computed
+ * directly from the hash sequence.
+ */
+public class QueryParserTest {
+
+	// hashes per segment and hashes in the overlap
+	private static final int[][] SEGMENTATIONS = {{30, 10}, {30, 0}, {100, 70}, {5, 4}, {1, 0}, {7, 3}};
+
+	@Test
+	public void extractedSegmentsAreTheBagsOfHashes() throws Exception {
+		Random random = new Random(48);
+		for (int range : new int[]{10, 1000, Integer.MAX_VALUE})
+			for (int[] s : SEGMENTATIONS) {
+				List<Integer> hashes = new ArrayList<Integer>();
+				StringBuilder line = new StringBuilder();
+				for (int i = 0; i < 1000; i++) {
+					if (random.nextInt(10) == 0) {
+						line.append("-1 ");
+						continue;
+					}
+					int h = random.nextInt(range);
+					hashes.add(h);
+					line.append(h).append(' ');
+				}
+				List<Map<Integer, Integer>> expected = segments(hashes, s[0], s[1]);
+				String message = s[0] + "/" + s[1] + " hashes in [0, " + range + ")";
+
+				QueryParser parser = new QueryParser(null);
+				parser.extractQuery(new ByteArrayInputStream(line.toString().getBytes("US-ASCII")), s[0], s[1]);
+				assertEquals(message, expected.size(), parser.getNumberOfSegments());
+				// in reverse, so that every segment is extracted from the list
+				for (int k = expected.size() - 1; k >= 0; k--)
+					assertEquals(message + ", segment " + k, expected.get(k), parser.getHashesFromSegment(k));
+
+				parser = new QueryParser(null);
+				parser.startQuery(s[0], s[1]);
+				int completed = 0;
+				for (int i = 0; i < hashes.size(); i++) {
+					if (i % 3 == 0)
+						assertFalse(parser.addHash(-1));
+					if (parser.addHash(hashes.get(i))) {
+						assertEquals(message, completed + 1, parser.getNumberOfSegments());
+						assertEquals(message + ", segment " + completed, expected.get(completed), parser.getHashesFromSegment(completed));
+						parser.discardSegmentsBefore(completed);
+						completed++;
+					}
+				}
+				assertEquals(message, expected.size(), completed);
+			}
+	}
+
+	/** @return frequencies of the hashes in each full segment, each one starting hashPerSegment - overlap hashes after the previous one */
+	private static List<Map<Integer, Integer>> segments(List<Integer> hashes, int hashPerSegment, int overlap) {
+		List<Map<Integer, Integer>> segments = new ArrayList<Map<Integer, Integer>>();
+		for (int start = 0; start + hashPerSegment <= hashes.size(); start += hashPerSegment - overlap) {
+			SortedMap<Integer, Integer> segment = new TreeMap<Integer, Integer>();
+			for (int h : hashes.subList(start, start + hashPerSegment))
+				segment.put(h, segment.containsKey(h) ? segment.get(h) + 1 : 1);
+			segments.add(segment);
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,186 @@
+package it.unipd.dei.ims.falcon.server;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.ranking.QueryResults;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the coordinator keeps each connection in step with its
+ * server when queries fail, against fake servers which answer each query
+ * with a score equal to its length, after a delay, or fail.
+ */
+public class ShardCoordinatorTest {
+
+	private List<ServerSocket> servers = new ArrayList<ServerSocket>();
+
+	/** response of a fake server */
+	private interface Responder {
+
+		/** @return false to close the connection without responding */
+		boolean respond(String query, DataOutputStream out) throws Exception;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (ServerSocket s : servers)
+			s.close();
+	}
+
+	@Test
+	public void failedQueryDoesNotShiftTheResponses() throws Exception {
+		// a fails at once, b fails after a while: the next query must not read the error of b
+		InetSocketAddress a = startServer("a", 0, true);
+		InetSocketAddress b = startServer("b", 300, true);
+		ShardCoordinator coordinator = new ShardCoordinator(addresses(a, b));
+		try {
+			for (int i = 0; i < 3; i++) {
+				long start = System.currentTimeMillis();
+				try {
+					query(coordinator, "bad");
+					fail("the query should fail");
+				} catch (IOException ex) {
+				}
+				// the error of b was read by the failed query
+				assertTrue(System.currentTimeMillis() - start >= 250);
+				Map<String, Double> res = query(coordinator, "good" + i).getResults();
+				assertEquals(2, res.size());
+				assertEquals(5., res.get("a"), 0);
+				assertEquals(5., res.get("b"), 0);
+			}
+		} finally {
+			coordinator.close();
+		}
+	}
+
+	@Test
+	public void brokenConnectionIsOpenedAgain() throws Exception {
+		InetSocketAddress a = startServer("a", 0, false);
+		InetSocketAddress b = startServer(new Responder() {
+
+			public boolean respond(String query, DataOutputStream out) throws Exception {
+				if (query.equals("bad")) {
+					// half a response
+					out.writeByte(ShardProtocol.OK);
+					out.flush();
+					return false;
+				}
+				ShardProtocol.writeResults(out, results("b", query));
+				return true;
+			}
+		});
+		ShardCoordinator coordinator = new ShardCoordinator(addresses(a, b));
+		try {
+			try {
+				query(coordinator, "bad");
+				fail("the query should fail");
+			} catch (IOException ex) {
+			}
+			Map<String, Double> res = query(coordinator, "good").getResults();
+			assertEquals(4., res.get("a"), 0);
+			assertEquals(4., res.get("b"), 0);
+		} finally {
+			coordinator.close();
+		}
+	}
+
+	private static QueryResults query(ShardCoordinator coordinator, String query) throws IOException {
+		return coordinator.query(new ByteArrayInputStream(query.getBytes("UTF-8")));
+	}
+
+	private static QueryResults results(String song, String query) {
+		return new QueryResults(Collections.singletonMap(song, (double) query.length()), 0, 0);
+	}
+
+	private static List<InetSocketAddress> addresses(InetSocketAddress... a) {
+		List<InetSocketAddress> l = new ArrayList<InetSocketAddress>();
+		Collections.addAll(l, a);
+		return l;
+	}
+
+	/** starts a server which responds to query "bad" with an error, if failBad, and waits delay ms before each response */
+	private InetSocketAddress startServer(final String song, final long delay, final boolean failBad) throws IOException {
+		return startServer(new Responder() {
+
+			public boolean respond(String query, DataOutputStream out) throws Exception {
+				Thread.sleep(delay);
+				if (failBad && query.equals("bad"))
+					ShardProtocol.writeError(out, "bad query");
+				else
+					ShardProtocol.writeResults(out, results(song, query));
+				return true;
+			}
+		});
+	}
+
+	private InetSocketAddress startServer(final Responder responder) throws IOException {
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(null));
+		servers.add(server);
+		Thread t = new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						Thread connection = new Thread(new Runnable() {
+
+							public void run() {
+								try {
+									DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+									DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+									byte[] query;
+									while ((query = ShardProtocol.readRequest(in)) != null)
+										if (!responder.respond(new String(query, "UTF-8"), out))
+											break;
+								} catch (Exception ex) {
+								} finally {
+									try {
+										socket.close();
+									} catch (IOException ex) {
+									}
+								}
+							}
+						});
+						connection.setDaemon(true);
+						connection.start();
+					}
+				} catch (IOException ex) {
+					// server closed
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+	}
+}
@@ -0,0 +1,140 @@
+package it.unipd.dei.ims.falcon.server;
+
+/**
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import it.unipd.dei.ims.falcon.CmdLine;
+import it.unipd.dei.ims.falcon.TestCollection;
+import it.unipd.dei.ims.falcon.analysis.transposition.ForcedTranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Starts a shard server process on localhost for each shard of a sharded
+ * index, and checks that the results merged by the coordinator are the same
+ * as those of a local query on the sharded index.
+ */
+public class ShardServerTest {
+
+	private static final int NSHARDS = 3;
+	private TestCollection collection;
+	private List<Process> servers = new ArrayList<Process>();
+
+	@Before
+	public void setUp() throws Exception {
+		collection = new TestCollection(30, 5, 33);
+	}
+
+	@After
+	public void tearDown() {
+		for (Process p : servers)
+			p.destroy();
+		Indexing.setShards(0);
+		collection.delete();
+	}
+
+	@Test
+	public void remoteShardsGiveTheLocalResults() throws Exception {
+		Indexing.setShards(NSHARDS);
+		File index = collection.index("index", null);
+		Indexing.setShards(0);
+
+		// transpositions 0 and 3, so that results are merged across transpositions too
+		String[] transpositions = {"-f", "0,3"};
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (File shard : Indexing.getShards(index)) {
+			int port = freePort();
+			servers.add(startServer(port, shard, transpositions));
+			addresses.add(new InetSocketAddress("localhost", port));
+		}
+		assertEquals(NSHARDS, addresses.size());
+		for (InetSocketAddress a : addresses)
+			waitForServer(a);
+
+		ShardCoordinator coordinator = new ShardCoordinator(addresses);
+		try {
+			for (File q : collection.getQueries()) {
+				InputStream in = new FileInputStream(q);
+				try {
+					Map<String, Double> local = TestCollection.query(q, index,
+									new ForcedTranspositionEstimator(new int[]{0, 3}), 2, null);
+					assertFalse(local.isEmpty());
+					TestCollection.assertSameResults(local, coordinator.query(in).getResults(), 1e-9);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			coordinator.close();
+		}
+	}
+
+	private static Process startServer(int port, File shard, String[] options) throws IOException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(CmdLine.class.getName());
+		cmd.add("-Z");
+		cmd.add(Integer.toString(port));
+		cmd.add("-l");
+		cmd.add(Integer.toString(TestCollection.HPS));
+		cmd.add("-o");
+		cmd.add(Integer.toString(TestCollection.OVERLAP));
+		cmd.add("-Q");
+		cmd.add(Integer.toString(TestCollection.NRANKS));
+		for (String o : options)
+			cmd.add(o);
+		cmd.add(shard.getPath());
+		return new ProcessBuilder(cmd).redirectErrorStream(true).start();
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+	private static void waitForServer(InetSocketAddress address) throws Exception {
+		long deadline = System.currentTimeMillis() + 60000;
+		while (true) {
+			try {
+				new Socket(address.getAddress(), address.getPort()).close();
+				return;
+			} catch (IOException ex) {
+				if (System.currentTimeMillis() > deadline)
+					throw ex;
+				Thread.sleep(100);
+			}
+		}
+	}
+}